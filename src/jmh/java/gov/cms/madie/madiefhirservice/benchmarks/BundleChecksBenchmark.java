@@ -0,0 +1,76 @@
+package gov.cms.madie.madiefhirservice.benchmarks;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.util.OperationOutcomeUtil;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import gov.cms.madie.madiefhirservice.services.ResourceValidationService;
+import org.hl7.fhir.instance.model.api.IBaseOperationOutcome;
+import org.hl7.fhir.r4.model.Bundle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/** The bundle-level checks the validation endpoints run alongside instance validation. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class BundleChecksBenchmark {
+
+  @Param({"SMALL", "MEDIUM", "LARGE"})
+  private SyntheticBundles.BundleSize size;
+
+  private FhirContext fhirContext;
+  private ResourceValidationService validationService;
+  private Bundle bundle;
+  private IBaseOperationOutcome[] outcomes;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    fhirContext = FhirContext.forR4();
+    validationService = new ResourceValidationService(new ObjectMapper());
+    bundle = SyntheticBundles.create(size);
+    // one issue per entry spread over the outcomes the controller combines
+    outcomes = new IBaseOperationOutcome[3];
+    for (int index = 0; index < outcomes.length; index++) {
+      outcomes[index] = OperationOutcomeUtil.newInstance(fhirContext);
+    }
+    for (int index = 0; index < size.getEntries(); index++) {
+      OperationOutcomeUtil.addIssue(
+          fhirContext,
+          outcomes[index % outcomes.length],
+          "warning",
+          "Benchmark issue " + index,
+          "Bundle.entry[" + index + "].resource",
+          "invalid");
+    }
+  }
+
+  @Benchmark
+  public IBaseOperationOutcome validateBundleResourcesProfiles() {
+    return validationService.validateBundleResourcesProfiles(fhirContext, bundle);
+  }
+
+  @Benchmark
+  public IBaseOperationOutcome validateBundleResourcesIdValid() {
+    return validationService.validateBundleResourcesIdValid(fhirContext, bundle);
+  }
+
+  @Benchmark
+  public IBaseOperationOutcome combineOutcomes() {
+    return validationService.combineOutcomes(fhirContext, outcomes);
+  }
+}
@@ -0,0 +1,58 @@
+package gov.cms.madie.madiefhirservice.benchmarks;
+
+import ca.uhn.fhir.context.FhirContext;
+import gov.cms.madie.madiefhirservice.dto.DateShiftOptions;
+import gov.cms.madie.madiefhirservice.services.TestCaseDateShifterService;
+import gov.cms.madie.models.measure.TestCase;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/** Shifting the dates of one test case, parse and encode included. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class DateShiftBenchmark {
+
+  @Param({"SMALL", "MEDIUM", "LARGE"})
+  private SyntheticBundles.BundleSize size;
+
+  private TestCaseDateShifterService dateShifterService;
+  private String testCaseJson;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    FhirContext fhirContext = FhirContext.forR4();
+    dateShifterService = new TestCaseDateShifterService(fhirContext, Runnable::run);
+    testCaseJson =
+        fhirContext.newJsonParser().encodeResourceToString(SyntheticBundles.create(size));
+  }
+
+  @Benchmark
+  public TestCase shiftDates() {
+    // a fresh test case every time, shifting updates its JSON in place
+    return dateShifterService.shiftDates(TestCase.builder().json(testCaseJson).build(), 1);
+  }
+
+  @Benchmark
+  public TestCase shiftDatesPreservingFormatting() {
+    return dateShifterService.shiftDates(
+        TestCase.builder().json(testCaseJson).build(),
+        1,
+        DateShiftOptions.builder().preserveFormatting(true).build());
+  }
+}
@@ -0,0 +1,85 @@
+package gov.cms.madie.madiefhirservice.benchmarks;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+
+/** Test case shaped bundles of a patient followed by that patient's encounters. */
+public class SyntheticBundles {
+
+  private static final String QICORE_PROFILE_BASE =
+      "http://hl7.org/fhir/us/qicore/StructureDefinition/";
+  private static final int ENCOUNTERS_PER_PATIENT = 4;
+
+  public enum BundleSize {
+    SMALL(10),
+    MEDIUM(100),
+    LARGE(500);
+
+    private final int entries;
+
+    BundleSize(int entries) {
+      this.entries = entries;
+    }
+
+    public int getEntries() {
+      return entries;
+    }
+  }
+
+  public static Bundle create(BundleSize size) {
+    Bundle bundle = new Bundle();
+    bundle.setType(Bundle.BundleType.COLLECTION);
+    String patientId = null;
+    for (int index = 0; index < size.getEntries(); index++) {
+      if (index % (ENCOUNTERS_PER_PATIENT + 1) == 0) {
+        patientId = "patient-" + index;
+        bundle
+            .addEntry()
+            .setFullUrl("https://madie.cms.gov/Patient/" + patientId)
+            .setResource(patient(patientId));
+      } else {
+        String encounterId = "encounter-" + index;
+        bundle
+            .addEntry()
+            .setFullUrl("https://madie.cms.gov/Encounter/" + encounterId)
+            .setResource(encounter(encounterId, patientId, index));
+      }
+    }
+    return bundle;
+  }
+
+  private static Patient patient(String id) {
+    Patient patient = new Patient();
+    patient.setId(id);
+    patient.getMeta().addProfile(QICORE_PROFILE_BASE + "qicore-patient");
+    patient.addName().setFamily("Benchmark").addGiven(id);
+    patient.setGender(Enumerations.AdministrativeGender.FEMALE);
+    patient.getBirthDateElement().setValueAsString("1970-01-01");
+    return patient;
+  }
+
+  private static Encounter encounter(String id, String patientId, int index) {
+    Encounter encounter = new Encounter();
+    encounter.setId(id);
+    encounter.getMeta().addProfile(QICORE_PROFILE_BASE + "qicore-encounter");
+    encounter.setStatus(Encounter.EncounterStatus.FINISHED);
+    encounter
+        .getClass_()
+        .setSystem("http://terminology.hl7.org/CodeSystem/v3-ActCode")
+        .setCode("AMB");
+    encounter
+        .addType()
+        .addCoding()
+        .setSystem("http://snomed.info/sct")
+        .setCode("185463005")
+        .setDisplay("Visit out of hours (procedure)");
+    encounter.setSubject(new Reference("Patient/" + patientId));
+    String day = String.format("2024-01-%02d", index % 28 + 1);
+    encounter.getPeriod().getStartElement().setValueAsString(day + "T08:00:00Z");
+    encounter.getPeriod().getEndElement().setValueAsString(day + "T09:00:00Z");
+    return encounter;
+  }
+}
@@ -0,0 +1,71 @@
+package gov.cms.madie.madiefhirservice.benchmarks;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.validation.FhirValidator;
+import ca.uhn.fhir.validation.ValidationResult;
+import gov.cms.madie.madiefhirservice.config.ConformancePackageCache;
+import gov.cms.madie.madiefhirservice.config.HapiFhirConfig;
+import gov.cms.madie.models.common.ModelType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static gov.cms.madie.madiefhirservice.utils.ModelEndpointMap.QICORE_VERSION_MODELTYPE_MAP;
+
+/**
+ * Instance validation of a bundle with the production validation support chain of each QI-Core
+ * model. The chain is built the same way as HapiFhirConfig builds it, without the conformance
+ * cache file, so a HAPI upgrade is measured together with the snapshots it generates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class ValidationBenchmark {
+
+  @Param({"4-1-1", "6-0-0"})
+  private String model;
+
+  @Param({"SMALL", "MEDIUM", "LARGE"})
+  private SyntheticBundles.BundleSize size;
+
+  private FhirValidator fhirValidator;
+  private Bundle bundle;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    ModelType modelType = QICORE_VERSION_MODELTYPE_MAP.get(model);
+    HapiFhirConfig config = new HapiFhirConfig();
+    ConformancePackageCache packageCache = new ConformancePackageCache("");
+    FhirContext fhirContext = FhirContext.forR4();
+    if (modelType == ModelType.QI_CORE) {
+      IValidationSupport chain = config.validationSupportChain411(fhirContext, packageCache);
+      fhirValidator = config.qicoreNpmFhirValidator(fhirContext, chain);
+    } else {
+      IValidationSupport chain = config.validationSupportChainQiCore600(fhirContext, packageCache);
+      fhirValidator = config.qicore6NpmFhirValidator(fhirContext, chain);
+    }
+    bundle = SyntheticBundles.create(size);
+  }
+
+  @Benchmark
+  public ValidationResult validateWithResult() {
+    return fhirValidator.validateWithResult(bundle);
+  }
+}
@@ -1,19 +1,56 @@
 package gov.cms.madie.madiefhirservice.config;
 
+import com.github.benmanes.caffeine.cache.Caffeine;
+import gov.cms.madie.models.library.CqlLibrary;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.cache.CacheManager;
 import org.springframework.cache.annotation.EnableCaching;
-import org.springframework.cache.concurrent.ConcurrentMapCacheManager;
+import org.springframework.cache.caffeine.CaffeineCacheManager;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.time.Duration;
+
 @Slf4j
 @Configuration
 @EnableCaching
 public class CacheConfig {
 
+  public static final String LIBRARIES_CACHE = "libraries";
+
+  /**
+   * Libraries expire individually, and the cache is bounded by the size of their CQL and ELM so a
+   * few very large libraries cannot take over the heap. A library past its TTL is kept, and served
+   * stale while it is revalidated, for at most the maximum staleness. Caches registered here are
+   * picked up by the actuator cache metrics.
+   */
   @Bean
-  public CacheManager cacheManager() {
-    return new ConcurrentMapCacheManager("libraries");
+  public CacheManager cacheManager(
+      @Value("${caching.spring.libraries.maxWeight}") long librariesMaxWeight,
+      @Value("${caching.spring.libraries.ttlMillis}") long librariesTtlMillis,
+      @Value("${caching.spring.libraries.maxStalenessMillis}") long librariesMaxStalenessMillis) {
+    CaffeineCacheManager cacheManager = new CaffeineCacheManager();
+    cacheManager.registerCustomCache(
+        LIBRARIES_CACHE,
+        Caffeine.newBuilder()
+            .maximumWeight(librariesMaxWeight)
+            .weigher(CacheConfig::libraryWeight)
+            .expireAfterWrite(Duration.ofMillis(librariesTtlMillis + librariesMaxStalenessMillis))
+            .recordStats()
+            .build());
+    return cacheManager;
+  }
+
+  private static int libraryWeight(Object key, Object value) {
+    if (!(value instanceof CqlLibrary library)) {
+      return 1;
+    }
+    long weight =
+        (long) StringUtils.length(library.getCql())
+            + StringUtils.length(library.getElmJson())
+            + StringUtils.length(library.getElmXml());
+    return (int) Math.max(1, Math.min(Integer.MAX_VALUE, weight));
   }
 }
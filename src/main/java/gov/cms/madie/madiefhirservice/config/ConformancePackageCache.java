@@ -0,0 +1,204 @@
+package gov.cms.madie.madiefhirservice.config;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.DefaultProfileValidationSupport;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.context.support.ValidationSupportContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.util.VersionUtil;
+import gov.cms.madie.madiefhirservice.utils.NpmPackageUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.common.hapi.validation.support.NpmPackageValidationSupport;
+import org.hl7.fhir.common.hapi.validation.support.PrePopulatedValidationSupport;
+import org.hl7.fhir.common.hapi.validation.support.SnapshotGeneratingValidationSupport;
+import org.hl7.fhir.common.hapi.validation.support.ValidationSupportChain;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Loads the conformance resources of a set of NPM packages with the snapshots of their profiles
+ * already generated. The first boot unpacks the packages, generates the missing profile snapshots
+ * and writes every resource to a gzipped NDJSON file named after the package versions and the HAPI
+ * version; later boots read that file instead. Extensions, such as the large xver-extensions sets,
+ * are left to the validator to snapshot on demand. The directory only saves work across restarts
+ * if it is a mounted volume; when it is blank the packages are loaded as they are and every
+ * snapshot is generated on demand.
+ */
+@Slf4j
+@Component
+public class ConformancePackageCache {
+
+  private final String cacheDirectory;
+
+  public ConformancePackageCache(
+      @Value("${madie.validation.package-cache.directory:}") String cacheDirectory) {
+    this.cacheDirectory = cacheDirectory;
+  }
+
+  public IValidationSupport loadPackages(FhirContext fhirContext, List<String> npmPackages)
+      throws IOException {
+    if (StringUtils.isBlank(cacheDirectory)) {
+      return loadNpmPackages(fhirContext, npmPackages);
+    }
+    Path cacheFile =
+        Path.of(cacheDirectory)
+            .resolve("conformance-" + cacheFingerprint(npmPackages) + ".ndjson.gz");
+    if (Files.isRegularFile(cacheFile)) {
+      try {
+        return readCacheFile(fhirContext, cacheFile);
+      } catch (Exception ex) {
+        log.warn("Discarding unreadable conformance cache file [{}]", cacheFile, ex);
+        Files.deleteIfExists(cacheFile);
+      }
+    }
+    PrePopulatedValidationSupport support = loadAndSnapshot(fhirContext, npmPackages);
+    try {
+      writeCacheFile(fhirContext, support, cacheFile);
+    } catch (IOException ex) {
+      // the packages are loaded either way, the next boot just has to do it again
+      log.warn("Unable to write conformance cache file [{}]", cacheFile, ex);
+    }
+    return support;
+  }
+
+  private String cacheFingerprint(List<String> npmPackages) {
+    // the packages are named by version; snapshots also depend on the generator
+    String packagesFingerprint =
+        HexFormat.of()
+            .formatHex(
+                NpmPackageUtil.newSha256()
+                    .digest(String.join(",", npmPackages).getBytes(StandardCharsets.UTF_8)))
+            .substring(0, 16);
+    return packagesFingerprint + "-" + VersionUtil.getVersion();
+  }
+
+  private NpmPackageValidationSupport loadNpmPackages(
+      FhirContext fhirContext, List<String> npmPackages) throws IOException {
+    NpmPackageValidationSupport npmPackageSupport = new NpmPackageValidationSupport(fhirContext);
+    for (String npmPackage : npmPackages) {
+      npmPackageSupport.loadPackageFromClasspath(npmPackage);
+    }
+    return npmPackageSupport;
+  }
+
+  private PrePopulatedValidationSupport loadAndSnapshot(
+      FhirContext fhirContext, List<String> npmPackages) throws IOException {
+    long start = System.currentTimeMillis();
+    NpmPackageValidationSupport npmPackageSupport = loadNpmPackages(fhirContext, npmPackages);
+
+    SnapshotGeneratingValidationSupport snapshotGenerator =
+        new SnapshotGeneratingValidationSupport(fhirContext);
+    ValidationSupportContext snapshotContext =
+        new ValidationSupportContext(
+            new ValidationSupportChain(
+                npmPackageSupport,
+                new DefaultProfileValidationSupport(fhirContext),
+                snapshotGenerator));
+
+    PrePopulatedValidationSupport support = new PrePopulatedValidationSupport(fhirContext);
+    for (IBaseResource resource : npmPackageSupport.fetchAllConformanceResources()) {
+      support.addResource(withSnapshot(snapshotGenerator, snapshotContext, resource));
+    }
+    log.info(
+        "Loaded NPM packages {} and snapshotted their profiles in [{}] ms",
+        npmPackages,
+        System.currentTimeMillis() - start);
+    return support;
+  }
+
+  private IBaseResource withSnapshot(
+      SnapshotGeneratingValidationSupport snapshotGenerator,
+      ValidationSupportContext snapshotContext,
+      IBaseResource resource) {
+    // all supported models are R4, see ModelAwareFhirFactory.parseForModel
+    if (!(resource instanceof StructureDefinition structureDefinition)
+        || structureDefinition.hasSnapshot()
+        || !isProfile(structureDefinition)) {
+      return resource;
+    }
+    try {
+      IBaseResource snapshot =
+          snapshotGenerator.generateSnapshot(
+              snapshotContext,
+              structureDefinition,
+              structureDefinition.getUrl(),
+              null,
+              structureDefinition.getName());
+      return snapshot != null ? snapshot : resource;
+    } catch (Exception ex) {
+      log.debug("Unable to generate snapshot for [{}]", structureDefinition.getUrl(), ex);
+      return resource;
+    }
+  }
+
+  /** Profiles are what resources claim in meta.profile, as opposed to extensions or base types. */
+  private static boolean isProfile(StructureDefinition structureDefinition) {
+    return structureDefinition.getDerivation() == StructureDefinition.TypeDerivationRule.CONSTRAINT
+        && !"Extension".equals(structureDefinition.getType());
+  }
+
+  private IValidationSupport readCacheFile(FhirContext fhirContext, Path cacheFile)
+      throws IOException {
+    long start = System.currentTimeMillis();
+    IParser parser = fhirContext.newJsonParser();
+    PrePopulatedValidationSupport support = new PrePopulatedValidationSupport(fhirContext);
+    try (BufferedReader reader =
+        new BufferedReader(
+            new InputStreamReader(
+                new GZIPInputStream(Files.newInputStream(cacheFile)), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (StringUtils.isNotBlank(line)) {
+          support.addResource(parser.parseResource(line));
+        }
+      }
+    }
+    log.info(
+        "Loaded conformance resources from [{}] in [{}] ms",
+        cacheFile,
+        System.currentTimeMillis() - start);
+    return support;
+  }
+
+  private void writeCacheFile(
+      FhirContext fhirContext, PrePopulatedValidationSupport support, Path cacheFile)
+      throws IOException {
+    Files.createDirectories(cacheFile.getParent());
+    // write aside and move into place, so pods sharing the directory never read a partial file
+    Path tempFile = Files.createTempFile(cacheFile.getParent(), "conformance-", ".tmp");
+    IParser parser = fhirContext.newJsonParser().setPrettyPrint(false);
+    List<IBaseResource> resources = new ArrayList<>(support.fetchAllConformanceResources());
+    try (BufferedWriter writer =
+        new BufferedWriter(
+            new OutputStreamWriter(
+                new GZIPOutputStream(Files.newOutputStream(tempFile)), StandardCharsets.UTF_8))) {
+      for (IBaseResource resource : resources) {
+        writer.write(parser.encodeResourceToString(resource));
+        writer.newLine();
+      }
+    } catch (IOException ex) {
+      Files.deleteIfExists(tempFile);
+      throw ex;
+    }
+    Files.move(tempFile, cacheFile, StandardCopyOption.ATOMIC_MOVE);
+    log.info("Wrote [{}] conformance resources to [{}]", resources.size(), cacheFile);
+  }
+}
@@ -0,0 +1,15 @@
+package gov.cms.madie.madiefhirservice.config;
+
+import gov.cms.madie.madiefhirservice.dto.EncodingFormat;
+import org.springframework.core.convert.converter.Converter;
+import org.springframework.stereotype.Component;
+
+/** Binds the format request parameter, so both format=compact and format=COMPACT are accepted. */
+@Component
+public class EncodingFormatConverter implements Converter<String, EncodingFormat> {
+
+  @Override
+  public EncodingFormat convert(String source) {
+    return EncodingFormat.fromParameter(source);
+  }
+}
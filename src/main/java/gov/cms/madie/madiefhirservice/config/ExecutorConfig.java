@@ -0,0 +1,166 @@
+package gov.cms.madie.madiefhirservice.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.task.TaskExecutionAutoConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+
+@Configuration
+public class ExecutorConfig {
+
+  @Value("${madie.validation.executor.pool-size}")
+  private int validationPoolSize;
+
+  @Value("${madie.validation.executor.queue-capacity}")
+  private int validationQueueCapacity;
+
+  @Value("${madie.date-shift.executor.pool-size}")
+  private int dateShiftPoolSize;
+
+  @Value("${madie.date-shift.executor.queue-capacity}")
+  private int dateShiftQueueCapacity;
+
+  @Value("${madie.library.executor.pool-size}")
+  private int libraryPoolSize;
+
+  @Value("${madie.library.executor.queue-capacity}")
+  private int libraryQueueCapacity;
+
+  @Value("${madie.library.refresh-executor.pool-size}")
+  private int libraryRefreshPoolSize;
+
+  @Value("${madie.library.refresh-executor.queue-capacity}")
+  private int libraryRefreshQueueCapacity;
+
+  @Value("${madie.measure-bundle.executor.pool-size}")
+  private int measureBundlePoolSize;
+
+  @Value("${madie.measure-bundle.executor.queue-capacity}")
+  private int measureBundleQueueCapacity;
+
+  @Value("${madie.export.executor.pool-size}")
+  private int exportPoolSize;
+
+  @Value("${madie.export.executor.queue-capacity}")
+  private int exportQueueCapacity;
+
+  @Value("${madie.mvc.async.executor.pool-size}")
+  private int mvcAsyncPoolSize;
+
+  @Value("${madie.mvc.async.executor.queue-capacity}")
+  private int mvcAsyncQueueCapacity;
+
+  @Value("${madie.export.jobs.executor.pool-size}")
+  private int exportJobPoolSize;
+
+  @Value("${madie.export.jobs.executor.queue-capacity}")
+  private int exportJobQueueCapacity;
+
+  /**
+   * Bounded pool used to validate bundles concurrently. The FhirValidator beans are thread-safe,
+   * so workers share them; once the queue is full the submitting thread runs the task itself.
+   */
+  @Bean
+  public ThreadPoolTaskExecutor validationTaskExecutor() {
+    return boundedExecutor("validation-", validationPoolSize, validationQueueCapacity);
+  }
+
+  /**
+   * Separate pool for per-entry validation of a single bundle. Kept apart from the bundle pool so
+   * that a bundle task waiting on its entries can never starve the pool it is running on.
+   */
+  @Bean
+  public ThreadPoolTaskExecutor entryValidationTaskExecutor() {
+    return boundedExecutor("entry-validation-", validationPoolSize, validationQueueCapacity);
+  }
+
+  /** Bounded pool used to export the test cases of a measure concurrently. */
+  @Bean
+  public ThreadPoolTaskExecutor exportTaskExecutor() {
+    return boundedExecutor("export-", exportPoolSize, exportQueueCapacity);
+  }
+
+  /** Bounded pool used to shift the dates of many test cases concurrently. */
+  @Bean
+  public ThreadPoolTaskExecutor dateShiftTaskExecutor() {
+    return boundedExecutor("date-shift-", dateShiftPoolSize, dateShiftQueueCapacity);
+  }
+
+  /** Bounded pool used to fetch the included libraries of a measure concurrently. */
+  @Bean
+  public ThreadPoolTaskExecutor libraryTaskExecutor() {
+    return boundedExecutor("library-", libraryPoolSize, libraryQueueCapacity);
+  }
+
+  /**
+   * Pool revalidating cached libraries in the background. Kept apart from the library pool, which
+   * readers may be waiting on, and discards refreshes rather than running them on the reader's
+   * thread once full; the stale library is served until a later read refreshes it.
+   */
+  @Bean
+  public ThreadPoolTaskExecutor libraryRefreshTaskExecutor() {
+    return boundedExecutor(
+        "library-refresh-",
+        libraryRefreshPoolSize,
+        libraryRefreshQueueCapacity,
+        new ThreadPoolExecutor.AbortPolicy());
+  }
+
+  /**
+   * Pool running the remote stages of measure bundle creation. Kept apart from the library pool,
+   * since the stage fetching the included libraries waits on the fetches it starts there.
+   */
+  @Bean
+  public ThreadPoolTaskExecutor measureBundleTaskExecutor() {
+    return boundedExecutor("measure-bundle-", measureBundlePoolSize, measureBundleQueueCapacity);
+  }
+
+  /**
+   * Pool running asynchronous export jobs. Separate from the export pool a job fans its test cases
+   * out to, and rejects rather than running on the caller, since the point of a job is to free the
+   * request thread.
+   */
+  @Bean
+  public ThreadPoolTaskExecutor exportJobTaskExecutor() {
+    return boundedExecutor(
+        "export-job-",
+        exportJobPoolSize,
+        exportJobQueueCapacity,
+        new ThreadPoolExecutor.AbortPolicy());
+  }
+
+  /**
+   * Pool Spring MVC runs async request handling on, such as writing streamed export zips. Boot only
+   * provides one when no other executor bean exists, so without this MVC would fall back to a new
+   * thread per request.
+   */
+  @Bean(name = TaskExecutionAutoConfiguration.APPLICATION_TASK_EXECUTOR_BEAN_NAME)
+  public ThreadPoolTaskExecutor applicationTaskExecutor() {
+    return boundedExecutor("mvc-async-", mvcAsyncPoolSize, mvcAsyncQueueCapacity);
+  }
+
+  private ThreadPoolTaskExecutor boundedExecutor(
+      String threadNamePrefix, int poolSize, int queueCapacity) {
+    return boundedExecutor(
+        threadNamePrefix, poolSize, queueCapacity, new ThreadPoolExecutor.CallerRunsPolicy());
+  }
+
+  private ThreadPoolTaskExecutor boundedExecutor(
+      String threadNamePrefix,
+      int poolSize,
+      int queueCapacity,
+      RejectedExecutionHandler rejectedExecutionHandler) {
+    int threads = poolSize > 0 ? poolSize : Runtime.getRuntime().availableProcessors();
+    ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+    executor.setThreadNamePrefix(threadNamePrefix);
+    executor.setCorePoolSize(threads);
+    executor.setMaxPoolSize(threads);
+    executor.setQueueCapacity(queueCapacity);
+    executor.setRejectedExecutionHandler(rejectedExecutionHandler);
+    return executor;
+  }
+}
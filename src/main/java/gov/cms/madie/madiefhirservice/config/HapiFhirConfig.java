@@ -5,10 +5,10 @@ import ca.uhn.fhir.context.support.DefaultProfileValidationSupport;
 import ca.uhn.fhir.context.support.IValidationSupport;
 import ca.uhn.fhir.validation.FhirValidator;
 import ca.uhn.fhir.validation.IValidatorModule;
+import gov.cms.madie.models.common.ModelType;
 import lombok.extern.slf4j.Slf4j;
 import org.hl7.fhir.common.hapi.validation.support.CommonCodeSystemsTerminologyService;
 import org.hl7.fhir.common.hapi.validation.support.InMemoryTerminologyServerValidationSupport;
-import org.hl7.fhir.common.hapi.validation.support.NpmPackageValidationSupport;
 import org.hl7.fhir.common.hapi.validation.support.UnknownCodeSystemWarningValidationSupport;
 import org.hl7.fhir.common.hapi.validation.support.ValidationSupportChain;
 import org.hl7.fhir.common.hapi.validation.validator.FhirInstanceValidator;
@@ -18,13 +18,34 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Lazy;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.Map;
 
 @Slf4j
 @Configuration
 public class HapiFhirConfig {
 
+  /**
+   * NPM packages loaded into the validation support chain of each model, in load order. The chains
+   * and validators are lazy, so a model's packages are only loaded when it is first used or when
+   * it is listed in madie.validation.eager-models.
+   */
+  public static final Map<ModelType, List<String>> NPM_PACKAGES_BY_MODEL =
+      Map.of(
+          ModelType.QI_CORE,
+          List.of(
+              "classpath:packages/hl7.fhir.us.qicore-4.1.1.tgz",
+              "classpath:packages/hl7.fhir.us.core-3.1.0.tgz",
+              "classpath:packages/hl7.fhir.xver-extensions-0.0.13.tgz"),
+          ModelType.QI_CORE_6_0_0,
+          List.of(
+              "classpath:packages/hl7.fhir.us.qicore-6.0.0.tgz",
+              "classpath:packages/hl7.fhir.us.core-6.1.0.tgz",
+              "classpath:packages/hl7.fhir.xver-extensions-0.1.0.tgz"));
+
   @Bean
   @Qualifier("qicoreFhirContext")
   public FhirContext qicoreFhirContext() {
@@ -44,14 +65,13 @@ public class HapiFhirConfig {
   }
 
   @Bean
-  public IValidationSupport validationSupportChain411(@Autowired FhirContext qicoreFhirContext)
-      throws IOException {
-    NpmPackageValidationSupport npmPackageSupport =
-        new NpmPackageValidationSupport(qicoreFhirContext);
-    npmPackageSupport.loadPackageFromClasspath("classpath:packages/hl7.fhir.us.qicore-4.1.1.tgz");
-    npmPackageSupport.loadPackageFromClasspath("classpath:packages/hl7.fhir.us.core-3.1.0.tgz");
-    npmPackageSupport.loadPackageFromClasspath(
-        "classpath:packages/hl7.fhir.xver-extensions-0.0.13.tgz");
+  @Lazy
+  public IValidationSupport validationSupportChain411(
+      @Autowired FhirContext qicoreFhirContext,
+      @Autowired ConformancePackageCache conformancePackageCache) throws IOException {
+    IValidationSupport npmPackageSupport =
+        conformancePackageCache.loadPackages(
+            qicoreFhirContext, NPM_PACKAGES_BY_MODEL.get(ModelType.QI_CORE));
 
     UnknownCodeSystemWarningValidationSupport unknownCodeSystemWarningValidationSupport =
         new UnknownCodeSystemWarningValidationSupport(qicoreFhirContext);
@@ -67,14 +87,13 @@ public class HapiFhirConfig {
   }
 
   @Bean
+  @Lazy
   public IValidationSupport validationSupportChainQiCore600(
-      @Autowired FhirContext qicore6FhirContext) throws IOException {
-    NpmPackageValidationSupport npmPackageSupport =
-        new NpmPackageValidationSupport(qicore6FhirContext);
-    npmPackageSupport.loadPackageFromClasspath("classpath:packages/hl7.fhir.us.qicore-6.0.0.tgz");
-    npmPackageSupport.loadPackageFromClasspath("classpath:packages/hl7.fhir.us.core-6.1.0.tgz");
-    npmPackageSupport.loadPackageFromClasspath(
-        "classpath:packages/hl7.fhir.xver-extensions-0.1.0.tgz");
+      @Autowired FhirContext qicore6FhirContext,
+      @Autowired ConformancePackageCache conformancePackageCache) throws IOException {
+    IValidationSupport npmPackageSupport =
+        conformancePackageCache.loadPackages(
+            qicore6FhirContext, NPM_PACKAGES_BY_MODEL.get(ModelType.QI_CORE_6_0_0));
 
     UnknownCodeSystemWarningValidationSupport unknownCodeSystemWarningValidationSupport =
         new UnknownCodeSystemWarningValidationSupport(qicore6FhirContext);
@@ -90,6 +109,7 @@ public class HapiFhirConfig {
   }
 
   @Bean
+  @Lazy
   public FhirValidator qicoreNpmFhirValidator(
       @Autowired FhirContext qicoreFhirContext,
       @Autowired IValidationSupport validationSupportChain411) {
@@ -104,6 +124,7 @@ public class HapiFhirConfig {
   }
 
   @Bean
+  @Lazy
   public FhirValidator qicore6NpmFhirValidator(
       @Autowired FhirContext qicore6FhirContext,
       @Autowired IValidationSupport validationSupportChainQiCore600) {
@@ -10,7 +10,7 @@ import org.springframework.security.web.SecurityFilterChain;
 public class SecurityConfig {
 
   private static final String[] AUTH_WHITELIST = {
-    "/v3/api-docs/**", "/swagger/**", "/swagger-ui/**", "/actuator/**"
+    "/v3/api-docs/**", "/swagger/**", "/swagger-ui/**", "/actuator/health", "/actuator/health/**"
     // other public endpoints of your API may be appended to this array
   };
 
@@ -19,7 +19,8 @@ public class SecurityConfig {
     http.cors()
         .and()
         .authorizeHttpRequests()
-        .requestMatchers("/actuator/**")
+        // only health is public; metrics (cache stats included) need an authenticated caller
+        .requestMatchers("/actuator/health", "/actuator/health/**")
         .permitAll()
         .and()
         .authorizeHttpRequests()
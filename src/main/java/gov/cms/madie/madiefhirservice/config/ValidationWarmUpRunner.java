@@ -0,0 +1,130 @@
+package gov.cms.madie.madiefhirservice.config;
+
+import ca.uhn.fhir.validation.FhirValidator;
+import gov.cms.madie.madiefhirservice.factories.ModelAwareFhirFactory;
+import gov.cms.madie.models.common.ModelType;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.stereotype.Component;
+
+import java.util.Set;
+import java.util.TreeSet;
+
+import static gov.cms.madie.madiefhirservice.utils.ModelEndpointMap.QICORE_VERSION_MODELTYPE_MAP;
+
+/**
+ * Loads the validation chains of the eager models (madie.validation.eager-models) once the context
+ * has started, and unless disabled validates a small synthetic bundle with each of them. The
+ * validation support chains build StructureDefinition snapshots and compile FHIRPath lazily, so
+ * without this the first request after a deploy pays for it. Application runners complete before
+ * the readiness state changes to ACCEPTING_TRAFFIC, so the readiness probe only reports UP once
+ * every eager chain is warm. Models not listed are loaded on their first request.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class ValidationWarmUpRunner implements ApplicationRunner {
+
+  private static final String QICORE_PROFILE_BASE =
+      "http://hl7.org/fhir/us/qicore/StructureDefinition/";
+
+  private final ModelAwareFhirFactory validatorFactory;
+
+  @Value("${madie.validation.eager-models}")
+  private String[] eagerModelVersions;
+
+  @Value("${madie.validation.warm-up.enabled}")
+  private boolean warmUpEnabled;
+
+  @Override
+  public void run(ApplicationArguments args) {
+    Set<ModelType> modelTypes = new TreeSet<>();
+    for (String modelVersion : eagerModelVersions) {
+      ModelType modelType = QICORE_VERSION_MODELTYPE_MAP.get(modelVersion.strip());
+      if (modelType != null) {
+        modelTypes.add(modelType);
+      } else if (StringUtils.isNotBlank(modelVersion)) {
+        log.warn("Ignoring unknown eager model version [{}]", modelVersion);
+      }
+    }
+    long start = System.currentTimeMillis();
+    modelTypes.forEach(this::warmUp);
+    log.info(
+        "Validation warm-up of [{}] models completed in [{}] ms",
+        modelTypes.size(),
+        System.currentTimeMillis() - start);
+  }
+
+  private void warmUp(ModelType modelType) {
+    long start = System.currentTimeMillis();
+    try {
+      FhirValidator fhirValidator = validatorFactory.getValidatorForModel(modelType);
+      if (!warmUpEnabled) {
+        log.info(
+            "Loaded validation support chain for model [{}] in [{}] ms",
+            modelType,
+            System.currentTimeMillis() - start);
+        return;
+      }
+      Bundle bundle = syntheticBundle();
+      int issues = fhirValidator.validateWithResult(bundle).getMessages().size();
+      log.info(
+          "Warmed up validation support chain for model [{}] in [{}] ms ([{}] issues)",
+          modelType,
+          System.currentTimeMillis() - start,
+          issues);
+    } catch (Exception ex) {
+      // a failed warm-up only costs latency on the first request, it must not block startup
+      log.warn("Unable to warm up validation support chain for model [{}]", modelType, ex);
+    }
+  }
+
+  /** Bundle touching the profiles, references and terminology most test cases use. */
+  static Bundle syntheticBundle() {
+    Patient patient = new Patient();
+    patient.setId("warm-up-patient");
+    patient.getMeta().addProfile(QICORE_PROFILE_BASE + "qicore-patient");
+    patient.addName().setFamily("WarmUp").addGiven("Synthetic");
+    patient.setGender(Enumerations.AdministrativeGender.UNKNOWN);
+    patient.getBirthDateElement().setValueAsString("1970-01-01");
+
+    Encounter encounter = new Encounter();
+    encounter.setId("warm-up-encounter");
+    encounter.getMeta().addProfile(QICORE_PROFILE_BASE + "qicore-encounter");
+    encounter.setStatus(Encounter.EncounterStatus.FINISHED);
+    encounter
+        .getClass_()
+        .setSystem("http://terminology.hl7.org/CodeSystem/v3-ActCode")
+        .setCode("AMB");
+    encounter
+        .addType()
+        .addCoding()
+        .setSystem("http://snomed.info/sct")
+        .setCode("185463005")
+        .setDisplay("Visit out of hours (procedure)");
+    encounter.setSubject(new Reference("Patient/warm-up-patient"));
+    encounter.getPeriod().getStartElement().setValueAsString("2024-01-01T08:00:00Z");
+    encounter.getPeriod().getEndElement().setValueAsString("2024-01-01T09:00:00Z");
+
+    Bundle bundle = new Bundle();
+    bundle.setType(Bundle.BundleType.COLLECTION);
+    bundle
+        .addEntry()
+        .setFullUrl("https://madie.cms.gov/Patient/warm-up-patient")
+        .setResource(patient);
+    bundle
+        .addEntry()
+        .setFullUrl("https://madie.cms.gov/Encounter/warm-up-encounter")
+        .setResource(encounter);
+    return bundle;
+  }
+}
@@ -0,0 +1,33 @@
+package gov.cms.madie.madiefhirservice.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/** Optional query parameters accepted by the test case date shift endpoints. */
+@Data
+@Builder(toBuilder = true)
+@NoArgsConstructor
+@AllArgsConstructor
+public class DateShiftOptions {
+  /** Layout of the shifted test case JSON, pretty printed unless set. */
+  private EncodingFormat format;
+
+  /** Shift many test cases concurrently on the date shift executor. */
+  private boolean parallel;
+
+  /**
+   * Rewrite only the dates in the test case JSON, keeping its layout; format is then only used for
+   * test cases that have to go through the resource model.
+   */
+  private boolean preserveFormatting;
+
+  public EncodingFormat getFormat() {
+    return format == null ? EncodingFormat.PRETTY : format;
+  }
+
+  public static DateShiftOptions defaults() {
+    return new DateShiftOptions();
+  }
+}
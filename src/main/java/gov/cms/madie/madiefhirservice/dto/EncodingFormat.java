@@ -0,0 +1,23 @@
+package gov.cms.madie.madiefhirservice.dto;
+
+import java.util.Locale;
+
+/** How FHIR resources are laid out when they are encoded for a response or an export. */
+public enum EncodingFormat {
+  /** Indented, human readable output; the default. */
+  PRETTY,
+  /** No whitespace between elements, for machine consumers that want smaller payloads. */
+  COMPACT;
+
+  public boolean isPrettyPrint() {
+    return this == PRETTY;
+  }
+
+  /**
+   * @param value request parameter value, case-insensitive
+   * @throws IllegalArgumentException if the value is not a known format
+   */
+  public static EncodingFormat fromParameter(String value) {
+    return valueOf(value.trim().toUpperCase(Locale.ROOT));
+  }
+}
@@ -0,0 +1,24 @@
+package gov.cms.madie.madiefhirservice.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/** Optional query parameters accepted by endpoints returning an encoded FHIR resource. */
+@Data
+@Builder(toBuilder = true)
+@NoArgsConstructor
+@AllArgsConstructor
+public class EncodingOptions {
+  /** Layout of the encoded resource, pretty printed unless set. */
+  private EncodingFormat format;
+
+  public EncodingFormat getFormat() {
+    return format == null ? EncodingFormat.PRETTY : format;
+  }
+
+  public static EncodingOptions defaults() {
+    return new EncodingOptions();
+  }
+}
@@ -0,0 +1,39 @@
+package gov.cms.madie.madiefhirservice.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.Instant;
+
+@Data
+@Builder(toBuilder = true)
+@NoArgsConstructor
+@AllArgsConstructor
+public class ExportJob {
+
+  public enum Type {
+    TEST_CASES,
+    MEASURE
+  }
+
+  public enum Status {
+    QUEUED,
+    RUNNING,
+    COMPLETED,
+    FAILED
+  }
+
+  private String id;
+  private Type type;
+  private Status status;
+  private String measureId;
+  // test cases for a test case export, 1 for a measure export
+  private int processed;
+  private int total;
+  private String fileName;
+  private String message;
+  private Instant submittedAt;
+  private Instant completedAt;
+}
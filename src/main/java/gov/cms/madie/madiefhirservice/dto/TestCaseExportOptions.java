@@ -0,0 +1,44 @@
+package gov.cms.madie.madiefhirservice.dto;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+
+/** Optional query parameters accepted by the test case export endpoints. */
+@Data
+@Builder(toBuilder = true)
+@NoArgsConstructor
+@AllArgsConstructor
+public class TestCaseExportOptions {
+  /** Layout of the encoded bundles handed back on the test cases and zipped, pretty unless set. */
+  private EncodingFormat format;
+
+  /** Export the test cases concurrently on the export executor. */
+  private boolean parallel;
+
+  /**
+   * Called once per test case after it has been exported or skipped, possibly from an executor
+   * thread. Only set in code, never bound from a request.
+   */
+  @Setter(AccessLevel.NONE)
+  @EqualsAndHashCode.Exclude
+  @ToString.Exclude
+  private Runnable onTestCaseProcessed;
+
+  public EncodingFormat getFormat() {
+    return format == null ? EncodingFormat.PRETTY : format;
+  }
+
+  public Runnable getOnTestCaseProcessed() {
+    return onTestCaseProcessed == null ? () -> {} : onTestCaseProcessed;
+  }
+
+  public static TestCaseExportOptions defaults() {
+    return new TestCaseExportOptions();
+  }
+}
@@ -0,0 +1,33 @@
+package gov.cms.madie.madiefhirservice.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/** Optional query parameters accepted by the bundle validation endpoints. */
+@Data
+@Builder(toBuilder = true)
+@NoArgsConstructor
+@AllArgsConstructor
+public class ValidationOptions {
+  /** Validate each bundle entry on its own, concurrently, instead of the bundle as a whole. */
+  private boolean parallel;
+
+  /** Stop validating once this many error or fatal issues have been found. */
+  private Integer maxErrors;
+
+  /** Stop validating at the first error or fatal issue, same as maxErrors=1. */
+  private boolean failFast;
+
+  /**
+   * @return the number of error or fatal issues after which validation stops, or
+   *     Integer.MAX_VALUE if every check should run to completion
+   */
+  public int errorBudget() {
+    if (failFast) {
+      return 1;
+    }
+    return maxErrors != null && maxErrors > 0 ? maxErrors : Integer.MAX_VALUE;
+  }
+}
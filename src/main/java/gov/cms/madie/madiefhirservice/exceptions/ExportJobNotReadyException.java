@@ -0,0 +1,13 @@
+package gov.cms.madie.madiefhirservice.exceptions;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(value = HttpStatus.CONFLICT)
+public class ExportJobNotReadyException extends RuntimeException {
+  private static final String MESSAGE = "Export job %s is %s, its file is not available";
+
+  public ExportJobNotReadyException(String jobId, String status) {
+    super(String.format(MESSAGE, jobId, status));
+  }
+}
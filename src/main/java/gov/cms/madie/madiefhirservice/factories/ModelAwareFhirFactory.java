@@ -10,6 +10,8 @@ import gov.cms.madie.models.common.ModelType;
 import lombok.AllArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.NoSuchBeanDefinitionException;
 import org.springframework.stereotype.Component;
 
 import java.util.Map;
@@ -19,17 +21,18 @@ import java.util.Map;
 @AllArgsConstructor
 public class ModelAwareFhirFactory {
 
-  private final Map<String, FhirValidator> fhirValidatorMap;
+  // validators are looked up by name rather than injected as a map, so lazy validator beans (and
+  // the packages behind them) are only created once their model is requested
+  private final BeanFactory beanFactory;
   private final Map<String, FhirContext> fhirContextMap;
 
   public FhirValidator getValidatorForModel(ModelType modelType) {
-    FhirValidator validator = fhirValidatorMap.get(modelType.getShortValue() + "NpmFhirValidator");
-
-    if (validator == null) {
+    try {
+      return beanFactory.getBean(
+          modelType.getShortValue() + "NpmFhirValidator", FhirValidator.class);
+    } catch (NoSuchBeanDefinitionException ex) {
       throw new UnsupportedTypeException(this.getClass().getName(), modelType.toString());
     }
-
-    return validator;
   }
 
   public FhirContext getContextForModel(ModelType modelType) {
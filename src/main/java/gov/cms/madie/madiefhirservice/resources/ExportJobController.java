@@ -0,0 +1,55 @@
+package gov.cms.madie.madiefhirservice.resources;
+
+import gov.cms.madie.madiefhirservice.dto.ExportJob;
+import gov.cms.madie.madiefhirservice.services.ExportJobService;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+
+import java.net.URI;
+import java.nio.file.Path;
+import java.security.Principal;
+
+@Slf4j
+@RestController
+@RequestMapping(path = "/fhir/export-jobs")
+@Tag(name = "Export-Job-Controller", description = "API for polling and downloading export jobs")
+@RequiredArgsConstructor
+public class ExportJobController {
+
+  private final ExportJobService exportJobService;
+
+  @GetMapping(path = "/{jobId}", produces = MediaType.APPLICATION_JSON_VALUE)
+  public ExportJob getExportJob(Principal principal, @PathVariable("jobId") String jobId) {
+    return exportJobService.getJob(principal.getName(), jobId);
+  }
+
+  @GetMapping("/{jobId}/file")
+  public ResponseEntity<Resource> getExportJobFile(
+      Principal principal, @PathVariable("jobId") String jobId) {
+    ExportJob job = exportJobService.getJob(principal.getName(), jobId);
+    Path file = exportJobService.getJobFile(principal.getName(), jobId);
+    log.info("User [{}] is downloading export job [{}]", principal.getName(), jobId);
+    return ResponseEntity.ok()
+        .header(HttpHeaders.CONTENT_DISPOSITION, "attachment;filename=\"" + job.getFileName() + "\"")
+        .contentType(MediaType.APPLICATION_OCTET_STREAM)
+        .body(new FileSystemResource(file));
+  }
+
+  static URI jobLocation(ExportJob job) {
+    return ServletUriComponentsBuilder.fromCurrentContextPath()
+        .path("/fhir/export-jobs/{jobId}")
+        .buildAndExpand(job.getId())
+        .toUri();
+  }
+}
@@ -1,6 +1,9 @@
 package gov.cms.madie.madiefhirservice.resources;
 
 import ca.uhn.fhir.context.FhirContext;
+import gov.cms.madie.madiefhirservice.dto.EncodingOptions;
+import gov.cms.madie.madiefhirservice.dto.ExportJob;
+import gov.cms.madie.madiefhirservice.services.ExportJobService;
 import gov.cms.madie.madiefhirservice.services.ExportService;
 import gov.cms.madie.madiefhirservice.services.MeasureBundleService;
 import gov.cms.madie.madiefhirservice.utils.ExportFileNamesUtil;
@@ -22,6 +25,8 @@ import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 
+import java.security.Principal;
+
 @Slf4j
 @Controller
 @RequestMapping(path = "/fhir/measures")
@@ -31,6 +36,8 @@ public class MeasureBundleController {
 
   @Autowired private ExportService exportService;
 
+  @Autowired private ExportJobService exportJobService;
+
   @Autowired private FhirContext qicoreFhirContext;
 
   @PutMapping(
@@ -43,7 +50,8 @@ public class MeasureBundleController {
       @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept,
       @RequestHeader("Authorization") String accessToken,
       @RequestParam(required = false, defaultValue = "calculation", name = "bundleType")
-          String bundleType) {
+          String bundleType,
+      EncodingOptions options) {
 
     try {
       Bundle bundle =
@@ -57,7 +65,7 @@ public class MeasureBundleController {
             .body(
                 qicoreFhirContext
                     .newXmlParser()
-                    .setPrettyPrint(true)
+                    .setPrettyPrint(options.getFormat().isPrettyPrint())
                     .encodeResourceToString(bundle));
       }
       return ResponseEntity.ok()
@@ -65,7 +73,7 @@ public class MeasureBundleController {
           .body(
               qicoreFhirContext
                   .newJsonParser()
-                  .setPrettyPrint(true)
+                  .setPrettyPrint(options.getFormat().isPrettyPrint())
                   .encodeResourceToString(bundle));
     } catch (Exception ex) {
       log.error(
@@ -94,4 +102,22 @@ public class MeasureBundleController {
         .contentType(MediaType.APPLICATION_OCTET_STREAM)
         .body(exportService.createExport(measure, request.getUserPrincipal(), accessToken));
   }
+
+  /**
+   * Starts the export of /export in the background and returns the job to poll at
+   * /fhir/export-jobs/{jobId}.
+   */
+  @PutMapping(
+      value = "/export:async",
+      produces = MediaType.APPLICATION_JSON_VALUE,
+      consumes = MediaType.APPLICATION_JSON_VALUE)
+  public ResponseEntity<ExportJob> submitMeasureExportJob(
+      HttpServletRequest request,
+      @RequestBody @Validated(Measure.ValidationSequence.class) Measure measure,
+      @RequestHeader("Authorization") String accessToken) {
+    Principal principal = request.getUserPrincipal();
+    ExportJob job =
+        exportJobService.submitMeasureExport(principal.getName(), measure, principal, accessToken);
+    return ResponseEntity.accepted().location(ExportJobController.jobLocation(job)).body(job);
+  }
 }
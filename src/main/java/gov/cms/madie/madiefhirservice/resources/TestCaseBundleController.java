@@ -8,14 +8,20 @@ import java.util.stream.Collectors;
 
 import org.hl7.fhir.r4.model.Bundle;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import gov.cms.madie.madiefhirservice.dto.ExportJob;
+import gov.cms.madie.madiefhirservice.dto.TestCaseExportOptions;
 import gov.cms.madie.madiefhirservice.exceptions.ResourceNotFoundException;
+import gov.cms.madie.madiefhirservice.services.ExportJobService;
 import gov.cms.madie.madiefhirservice.services.TestCaseBundleService;
 import gov.cms.madie.madiefhirservice.utils.ExportFileNamesUtil;
 import gov.cms.madie.models.dto.ExportDTO;
@@ -35,41 +41,21 @@ import lombok.extern.slf4j.Slf4j;
 public class TestCaseBundleController {
 
   private final TestCaseBundleService testCaseBundleService;
+  private final ExportJobService exportJobService;
 
   @PutMapping("/export-all")
   public ResponseEntity<byte[]> getTestCaseExportBundle(
-      Principal principal, @RequestBody ExportDTO exportDTO) {
+      Principal principal,
+      @RequestBody ExportDTO exportDTO,
+      TestCaseExportOptions options) {
     Measure measure = exportDTO.getMeasure();
-
-    List<String> testCaseIds = exportDTO.getTestCaseIds();
-    final String username = principal.getName();
-    log.info(
-        "User [{}] is attempting to export all test cases from Measure [{}]",
-        username,
-        measure.getId());
-    if (testCaseIds == null || testCaseIds.isEmpty()) {
-      throw new ResourceNotFoundException("test cases", "measure", measure.getId());
-    }
-
-    List<TestCase> testCases =
-        Optional.ofNullable(measure.getTestCases())
-            .orElseThrow(
-                () -> new ResourceNotFoundException("test cases", "measure", measure.getId()))
-            .stream()
-            .filter(tc -> testCaseIds.stream().anyMatch(id -> id.equals(tc.getId())))
-            .collect(Collectors.toList());
+    List<TestCase> testCases = selectTestCases(principal, exportDTO);
 
     Map<String, Bundle> exportableTestCaseBundle =
-        testCaseBundleService.getTestCaseExportBundle(measure, testCases, exportDTO);
+        testCaseBundleService.getTestCaseExportBundle(measure, testCases, exportDTO, options);
     if (testCases.size() != exportableTestCaseBundle.size()) {
       // remove the test cases that couldn't be parsed
-      testCases =
-          testCases.stream()
-              .filter(
-                  testCase ->
-                      exportableTestCaseBundle.keySet().stream()
-                          .anyMatch(s -> s.contains(testCase.getPatientId().toString())))
-              .collect(Collectors.toList());
+      testCases = testCaseBundleService.getExportedTestCases(testCases, exportableTestCaseBundle);
       return ResponseEntity.status(206)
           .header(
               HttpHeaders.CONTENT_DISPOSITION,
@@ -92,4 +78,74 @@ public class TestCaseBundleController {
             testCaseBundleService.zipTestCaseContents(
                 measure, exportableTestCaseBundle, testCases));
   }
+
+  /**
+   * Same export as /export-all, but the zip is written straight to the response as it is built
+   * rather than assembled in memory first.
+   */
+  @PutMapping("/export-all:stream")
+  public ResponseEntity<StreamingResponseBody> streamTestCaseExportBundle(
+      Principal principal,
+      @RequestBody ExportDTO exportDTO,
+      TestCaseExportOptions options) {
+    Measure measure = exportDTO.getMeasure();
+    List<TestCase> testCases = selectTestCases(principal, exportDTO);
+
+    Map<String, Bundle> exportableTestCaseBundle =
+        testCaseBundleService.getTestCaseExportBundle(measure, testCases, exportDTO, options);
+    // remove the test cases that couldn't be parsed
+    List<TestCase> exportedTestCases =
+        testCaseBundleService.getExportedTestCases(testCases, exportableTestCaseBundle);
+    HttpStatus status =
+        testCases.size() != exportableTestCaseBundle.size()
+            ? HttpStatus.PARTIAL_CONTENT
+            : HttpStatus.OK;
+    StreamingResponseBody body =
+        out ->
+            testCaseBundleService.writeTestCaseZip(
+                measure, exportableTestCaseBundle, exportedTestCases, out);
+    return ResponseEntity.status(status)
+        .header(
+            HttpHeaders.CONTENT_DISPOSITION,
+            "attachment;filename=\""
+                + ExportFileNamesUtil.getTestCaseExportZipName(measure)
+                + ".zip\"")
+        .contentType(MediaType.APPLICATION_OCTET_STREAM)
+        .body(body);
+  }
+
+  /**
+   * Starts the export of /export-all in the background and returns the job to poll at
+   * /fhir/export-jobs/{jobId}.
+   */
+  @PutMapping("/export-all:async")
+  public ResponseEntity<ExportJob> submitTestCaseExportJob(
+      Principal principal,
+      @RequestBody ExportDTO exportDTO,
+      TestCaseExportOptions options) {
+    List<TestCase> testCases = selectTestCases(principal, exportDTO);
+    ExportJob job =
+        exportJobService.submitTestCaseExport(principal.getName(), exportDTO, testCases, options);
+    return ResponseEntity.accepted().location(ExportJobController.jobLocation(job)).body(job);
+  }
+
+  private List<TestCase> selectTestCases(Principal principal, ExportDTO exportDTO) {
+    Measure measure = exportDTO.getMeasure();
+
+    List<String> testCaseIds = exportDTO.getTestCaseIds();
+    final String username = principal.getName();
+    log.info(
+        "User [{}] is attempting to export all test cases from Measure [{}]",
+        username,
+        measure.getId());
+    if (testCaseIds == null || testCaseIds.isEmpty()) {
+      throw new ResourceNotFoundException("test cases", "measure", measure.getId());
+    }
+
+    return Optional.ofNullable(measure.getTestCases())
+        .orElseThrow(() -> new ResourceNotFoundException("test cases", "measure", measure.getId()))
+        .stream()
+        .filter(tc -> testCaseIds.stream().anyMatch(id -> id.equals(tc.getId())))
+        .collect(Collectors.toList());
+  }
 }
@@ -1,5 +1,6 @@
 package gov.cms.madie.madiefhirservice.resources;
 
+import gov.cms.madie.madiefhirservice.dto.DateShiftOptions;
 import gov.cms.madie.madiefhirservice.services.TestCaseDateShifterService;
 import gov.cms.madie.models.measure.TestCase;
 import io.swagger.v3.oas.annotations.tags.Tag;
@@ -25,25 +26,27 @@ public class TestCaseController {
   public ResponseEntity<List<TestCase>> shiftTestCasesDates(
       Principal principal,
       @RequestBody List<TestCase> testCases,
-      @RequestParam(name = "shifted", defaultValue = "0") int shifted) {
+      @RequestParam(name = "shifted", defaultValue = "0") int shifted,
+      DateShiftOptions options) {
     log.info(
         "User [{}] requested date shift for test cases [{}] of [{}] years",
         principal.getName(),
         testCases.stream().map(TestCase::getId).collect(joining(", ")),
         shifted);
-    return ResponseEntity.ok(testCaseDateShifterService.shiftDates(testCases, shifted));
+    return ResponseEntity.ok(testCaseDateShifterService.shiftDates(testCases, shifted, options));
   }
 
   @PutMapping("/test-case/shift-dates")
   public ResponseEntity<TestCase> shiftTestCaseDates(
       Principal principal,
       @RequestBody TestCase testCase,
-      @RequestParam(name = "shifted", defaultValue = "0") int shifted) {
+      @RequestParam(name = "shifted", defaultValue = "0") int shifted,
+      DateShiftOptions options) {
     log.info(
         "User [{}] requested date shift for test case [{}] of [{}] years",
         principal.getName(),
         testCase.getId(),
         shifted);
-    return ResponseEntity.ok(testCaseDateShifterService.shiftDates(testCase, shifted));
+    return ResponseEntity.ok(testCaseDateShifterService.shiftDates(testCase, shifted, options));
   }
 }
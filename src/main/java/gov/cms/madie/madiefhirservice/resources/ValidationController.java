@@ -6,26 +6,47 @@ import ca.uhn.fhir.parser.IParser;
 import ca.uhn.fhir.util.OperationOutcomeUtil;
 import ca.uhn.fhir.validation.FhirValidator;
 import ca.uhn.fhir.validation.ValidationResult;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import gov.cms.madie.madiefhirservice.dto.ValidationOptions;
 import gov.cms.madie.madiefhirservice.factories.ModelAwareFhirFactory;
 import gov.cms.madie.models.common.ModelType;
 import gov.cms.madie.models.measure.HapiOperationOutcome;
 import gov.cms.madie.madiefhirservice.exceptions.HapiJsonException;
+import gov.cms.madie.madiefhirservice.services.BundleEntryValidationService;
+import gov.cms.madie.madiefhirservice.services.IncrementalValidationService;
 import gov.cms.madie.madiefhirservice.services.ResourceValidationService;
+import gov.cms.madie.madiefhirservice.services.ResourceValidationService.BudgetedOutcome;
+import gov.cms.madie.madiefhirservice.services.StreamingBundleValidationService;
+import gov.cms.madie.madiefhirservice.services.ValidationResultCacheService;
 import io.swagger.v3.oas.annotations.tags.Tag;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import lombok.AllArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
 import org.hl7.fhir.instance.model.api.IBaseBundle;
 import org.hl7.fhir.instance.model.api.IBaseOperationOutcome;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
 import static gov.cms.madie.madiefhirservice.utils.ModelEndpointMap.QICORE_VERSION_MODELTYPE_MAP;
 
 @Slf4j
@@ -37,36 +58,194 @@ import static gov.cms.madie.madiefhirservice.utils.ModelEndpointMap.QICORE_VERSI
 @AllArgsConstructor
 public class ValidationController {
 
+  public static final String VALIDATION_TOKEN_HEADER = "X-Validation-Token";
+
   private ResourceValidationService validationService;
+  private BundleEntryValidationService entryValidationService;
+  private ValidationResultCacheService validationResultCache;
+  private StreamingBundleValidationService streamingValidationService;
+  private IncrementalValidationService incrementalValidationService;
   private ModelAwareFhirFactory validatorFactory;
 
   private ObjectMapper mapper;
 
+  private Executor validationTaskExecutor;
+
   @PostMapping(
       path = "/qicore/{model}/bundles",
       consumes = MediaType.APPLICATION_JSON_VALUE,
       produces = MediaType.APPLICATION_JSON_VALUE)
   public HapiOperationOutcome validateBundleByModel(
-      @PathVariable("model") String modelVersion, HttpEntity<String> request) {
+      @PathVariable("model") String modelVersion,
+      HttpEntity<String> request,
+      ValidationOptions options) {
+    return validateBundle(
+        QICORE_VERSION_MODELTYPE_MAP.get(modelVersion), request.getBody(), options);
+  }
+
+  /**
+   * Validates many bundles in one call. The body is either a JSON array of bundles or NDJSON (one
+   * bundle per line). Bundles are validated concurrently on the bounded validation pool and one
+   * outcome is returned per input bundle, in input order.
+   */
+  @PostMapping(
+      path = "/qicore/{model}/bundles:batch",
+      consumes = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_NDJSON_VALUE},
+      produces = MediaType.APPLICATION_JSON_VALUE)
+  public List<HapiOperationOutcome> validateBundleBatchByModel(
+      @PathVariable("model") String modelVersion,
+      HttpEntity<String> request,
+      ValidationOptions options) {
+    final ModelType modelType = QICORE_VERSION_MODELTYPE_MAP.get(modelVersion);
+    List<CompletableFuture<HapiOperationOutcome>> outcomes =
+        splitBatch(request.getBody()).stream()
+            .map(
+                bundleJson ->
+                    CompletableFuture.supplyAsync(
+                        () -> validateBundle(modelType, bundleJson, options),
+                        validationTaskExecutor))
+            .toList();
+    log.info("Validating batch of [{}] bundles for model [{}]", outcomes.size(), modelVersion);
+    return outcomes.stream().map(this::awaitOutcome).toList();
+  }
+
+  /**
+   * Validates a bundle without reading it into memory as a whole. Entries are parsed and validated
+   * one at a time and their issues are written to the response as NDJSON while the rest of the
+   * bundle is still being read; the last line summarizes the bundle.
+   */
+  @PostMapping(
+      path = "/qicore/{model}/bundles:stream",
+      consumes = MediaType.APPLICATION_JSON_VALUE,
+      produces = MediaType.APPLICATION_NDJSON_VALUE)
+  public void validateBundleStreamByModel(
+      @PathVariable("model") String modelVersion,
+      HttpServletRequest request,
+      HttpServletResponse response)
+      throws IOException {
     final ModelType modelType = QICORE_VERSION_MODELTYPE_MAP.get(modelVersion);
+    response.setContentType(MediaType.APPLICATION_NDJSON_VALUE);
+    streamingValidationService.validateBundleStream(
+        validatorFactory.getContextForModel(modelType),
+        validatorFactory.getValidatorForModel(modelType),
+        request.getInputStream(),
+        response.getOutputStream());
+  }
+
+  /**
+   * Validates a bundle, re-validating only the entries that changed since the validation the
+   * X-Validation-Token header refers to. The response carries a new token for the next call; an
+   * unknown or expired token simply validates every entry.
+   */
+  @PostMapping(
+      path = "/qicore/{model}/bundles:incremental",
+      consumes = MediaType.APPLICATION_JSON_VALUE,
+      produces = MediaType.APPLICATION_JSON_VALUE)
+  public ResponseEntity<HapiOperationOutcome> validateBundleIncrementallyByModel(
+      @PathVariable("model") String modelVersion,
+      @RequestHeader(value = VALIDATION_TOKEN_HEADER, required = false) String validationToken,
+      HttpEntity<String> request) {
+    final ModelType modelType = QICORE_VERSION_MODELTYPE_MAP.get(modelVersion);
+    final String nextToken = UUID.randomUUID().toString();
+    BundleValidation validation =
+        parseAndValidateBundle(
+            modelType,
+            request.getBody(),
+            Integer.MAX_VALUE,
+            (fhirContext, fhirValidator, bundle, priorErrors) ->
+                new BudgetedOutcome(
+                    validationService.combineOutcomes(
+                        fhirContext,
+                        incrementalValidationService.validateEntries(
+                            modelType,
+                            fhirContext,
+                            fhirValidator,
+                            bundle,
+                            validationToken,
+                            nextToken),
+                        validationService.validateBundleReferences(fhirContext, bundle)),
+                    false));
+    return ResponseEntity.ok()
+        .header(VALIDATION_TOKEN_HEADER, nextToken)
+        .body(validation.outcome());
+  }
+
+  private List<String> splitBatch(String body) {
+    if (StringUtils.isBlank(body)) {
+      return List.of();
+    }
+    String batch = body.strip();
+    if (batch.startsWith("[")) {
+      try {
+        List<String> bundles = new ArrayList<>();
+        mapper.readTree(batch).forEach(bundle -> bundles.add(bundle.toString()));
+        return bundles;
+      } catch (JsonProcessingException ex) {
+        throw new HapiJsonException("An error occurred while reading the batch of bundles", ex);
+      }
+    }
+    return batch.lines().filter(StringUtils::isNotBlank).toList();
+  }
+
+  private HapiOperationOutcome awaitOutcome(CompletableFuture<HapiOperationOutcome> outcome) {
+    try {
+      return outcome.join();
+    } catch (CompletionException ex) {
+      if (ex.getCause() instanceof RuntimeException cause) {
+        throw cause;
+      }
+      throw ex;
+    }
+  }
+
+  private HapiOperationOutcome validateBundle(
+      ModelType modelType, String bundleJson, ValidationOptions options) {
+    String cacheKey = validationResultCache.cacheKey(modelType, bundleJson, options);
+    Optional<HapiOperationOutcome> cachedOutcome = validationResultCache.get(cacheKey);
+    if (cachedOutcome.isPresent()) {
+      return cachedOutcome.get();
+    }
+    BundleValidation validation =
+        parseAndValidateBundle(
+            modelType,
+            bundleJson,
+            options.errorBudget(),
+            (fhirContext, fhirValidator, bundle, priorErrors) ->
+                validateInstance(fhirContext, fhirValidator, bundle, priorErrors, options));
+    // only complete outcomes are cached
+    if (!validation.stoppedEarly()) {
+      validationResultCache.put(cacheKey, validation.outcome());
+    }
+    return validation.outcome();
+  }
+
+  private BundleValidation parseAndValidateBundle(
+      ModelType modelType,
+      String bundleJson,
+      int errorBudget,
+      InstanceValidation instanceValidation) {
     FhirContext fhirContext = validatorFactory.getContextForModel(modelType);
     IParser parser = validatorFactory.getJsonParserForModel(modelType);
     FhirValidator fhirValidator = validatorFactory.getValidatorForModel(modelType);
     IBaseBundle bundle;
     try {
-      bundle = validatorFactory.parseForModel(modelType, request.getBody());
+      bundle = validatorFactory.parseForModel(modelType, bundleJson);
     } catch (DataFormatException | ClassCastException ex) {
-      return validationService.invalidErrorOutcome(
-          fhirContext, parser, "An error occurred while parsing the resource", ex.getMessage());
+      return new BundleValidation(
+          validationService.invalidErrorOutcome(
+              fhirContext, parser, "An error occurred while parsing the resource", ex.getMessage()),
+          false);
     }
 
     // only validate bundles
     if (!"BUNDLE".equalsIgnoreCase(bundle.fhirType())) {
-      return validationService.invalidErrorOutcome(
-          fhirContext,
-          parser,
-          "\"Resource must have resourceType of 'Bundle'",
-          "Resource must have resourceType of 'Bundle'");
+      return new BundleValidation(
+          validationService.invalidErrorOutcome(
+              fhirContext,
+              parser,
+              "\"Resource must have resourceType of 'Bundle'",
+              "Resource must have resourceType of 'Bundle'"),
+          false);
     }
 
     IBaseOperationOutcome requiredProfilesOutcome =
@@ -74,23 +253,86 @@ public class ValidationController {
     IBaseOperationOutcome validIdsOutcome =
         validationService.validateBundleResourcesIdValid(fhirContext, bundle);
 
-    ValidationResult result = fhirValidator.validateWithResult(bundle);
+    int priorErrors =
+        validationService.countErrors(fhirContext, requiredProfilesOutcome)
+            + validationService.countErrors(fhirContext, validIdsOutcome);
+    BudgetedOutcome instanceOutcome =
+        instanceValidation.validate(fhirContext, fhirValidator, bundle, priorErrors);
+    BudgetedOutcome combinedOutcome =
+        new BudgetedOutcome(
+            validationService.combineOutcomes(
+                fhirContext, requiredProfilesOutcome, validIdsOutcome, instanceOutcome.outcome()),
+            instanceOutcome.stoppedEarly());
+    if (errorBudget != Integer.MAX_VALUE) {
+      // the profile and id checks alone can exceed the budget, so it applies to all issues
+      combinedOutcome =
+          validationService.applyErrorBudget(
+              fhirContext, combinedOutcome.outcome(), errorBudget, combinedOutcome.stoppedEarly());
+    }
     try {
-      final IBaseOperationOutcome combinedOutcome =
-          validationService.combineOutcomes(
-              fhirContext, requiredProfilesOutcome, validIdsOutcome, result.toOperationOutcome());
-      String outcomeString = parser.encodeResourceToString(combinedOutcome);
-      return HapiOperationOutcome.builder()
-          .code(
-              OperationOutcomeUtil.hasIssues(fhirContext, requiredProfilesOutcome)
-                      || OperationOutcomeUtil.hasIssues(fhirContext, validIdsOutcome)
-                  ? HttpStatus.BAD_REQUEST.value()
-                  : HttpStatus.OK.value())
-          .successful(validationService.isSuccessful(fhirContext, combinedOutcome))
-          .outcomeResponse(mapper.readValue(outcomeString, Object.class))
-          .build();
+      String outcomeString = parser.encodeResourceToString(combinedOutcome.outcome());
+      HapiOperationOutcome outcome =
+          HapiOperationOutcome.builder()
+              .code(
+                  OperationOutcomeUtil.hasIssues(fhirContext, requiredProfilesOutcome)
+                          || OperationOutcomeUtil.hasIssues(fhirContext, validIdsOutcome)
+                      ? HttpStatus.BAD_REQUEST.value()
+                      : HttpStatus.OK.value())
+              .successful(validationService.isSuccessful(fhirContext, combinedOutcome.outcome()))
+              .outcomeResponse(mapper.readValue(outcomeString, Object.class))
+              .build();
+      return new BundleValidation(outcome, combinedOutcome.stoppedEarly());
     } catch (Exception ex) {
       throw new HapiJsonException("An error occurred processing the validation results", ex);
     }
   }
+
+  private BudgetedOutcome validateInstance(
+      FhirContext fhirContext,
+      FhirValidator fhirValidator,
+      IBaseBundle bundle,
+      int priorErrors,
+      ValidationOptions options) {
+    int errorBudget = options.errorBudget();
+    if (errorBudget != Integer.MAX_VALUE) {
+      // a whole-bundle run cannot be stopped part way, so a budget implies entry-wise validation;
+      // the profile, id and reference checks always run in full and are counted first
+      IBaseOperationOutcome referencesOutcome =
+          validationService.validateBundleReferences(fhirContext, bundle);
+      int remainingErrors =
+          errorBudget - priorErrors - validationService.countErrors(fhirContext, referencesOutcome);
+      BudgetedOutcome entriesOutcome =
+          remainingErrors > 0
+              ? entryValidationService.validateEntries(
+                  fhirContext, fhirValidator, bundle, remainingErrors)
+              : new BudgetedOutcome(OperationOutcomeUtil.newInstance(fhirContext), true);
+      return new BudgetedOutcome(
+          validationService.combineOutcomes(
+              fhirContext, referencesOutcome, entriesOutcome.outcome()),
+          entriesOutcome.stoppedEarly());
+    } else if (options.isParallel()) {
+      // entries are validated independently, so bundle-wide reference checks run once here
+      return new BudgetedOutcome(
+          validationService.combineOutcomes(
+              fhirContext,
+              entryValidationService.validateEntries(fhirContext, fhirValidator, bundle),
+              validationService.validateBundleReferences(fhirContext, bundle)),
+          false);
+    }
+    ValidationResult result = fhirValidator.validateWithResult(bundle);
+    return new BudgetedOutcome(result.toOperationOutcome(), false);
+  }
+
+  /**
+   * Validates the instance data of a parsed bundle, given the number of errors the profile and id
+   * checks found.
+   */
+  @FunctionalInterface
+  private interface InstanceValidation {
+    BudgetedOutcome validate(
+        FhirContext fhirContext, FhirValidator fhirValidator, IBaseBundle bundle, int priorErrors);
+  }
+
+  /** Response for a validated bundle, and whether an error budget cut its validation short. */
+  private record BundleValidation(HapiOperationOutcome outcome, boolean stoppedEarly) {}
 }
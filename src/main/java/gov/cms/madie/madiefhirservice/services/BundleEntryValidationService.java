@@ -0,0 +1,244 @@
+package gov.cms.madie.madiefhirservice.services;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.util.BundleUtil;
+import ca.uhn.fhir.util.bundle.BundleEntryParts;
+import ca.uhn.fhir.validation.FhirValidator;
+import ca.uhn.fhir.validation.ResultSeverityEnum;
+import ca.uhn.fhir.validation.SingleValidationMessage;
+import ca.uhn.fhir.validation.ValidationResult;
+import gov.cms.madie.madiefhirservice.services.ResourceValidationService.BudgetedOutcome;
+import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseOperationOutcome;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Resource;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+@Slf4j
+@Service
+@AllArgsConstructor
+public class BundleEntryValidationService {
+
+  // issues within an entry resource, e.g. "Bundle.entry[2].resource/*Encounter/1*/.status"
+  private static final Pattern ENTRY_RESOURCE_LOCATION =
+      Pattern.compile("Bundle\\.entry\\[\\d+]\\.resource");
+
+  private Executor entryValidationTaskExecutor;
+
+  /**
+   * Validates the bundle shell and every entry resource of the bundle on its own, concurrently,
+   * and merges the issues into a single outcome. Issue locations are rewritten to point back at
+   * Bundle.entry[n], so the result reads the same as a whole-bundle validation. Rules that need
+   * the whole bundle (id uniqueness, reference resolution) are not covered here and must be run
+   * separately.
+   *
+   * @param fhirContext context of the model the bundle belongs to
+   * @param fhirValidator validator for the model the bundle belongs to
+   * @param bundle bundle to validate
+   * @return outcome containing the issues of the bundle shell, then of all entries in entry order
+   */
+  public IBaseOperationOutcome validateEntries(
+      FhirContext fhirContext, FhirValidator fhirValidator, IBaseBundle bundle) {
+    return validateEntries(fhirContext, fhirValidator, bundle, Integer.MAX_VALUE).outcome();
+  }
+
+  /**
+   * Same as {@link #validateEntries(FhirContext, FhirValidator, IBaseBundle)}, but validation stops
+   * once errorBudget error or fatal issues have been found. The cutoff is applied in bundle order:
+   * the issues of the bundle shell and of each entry are counted in turn, only the issues up to
+   * and including the errorBudget-th error are kept, and no later entry contributes issues, however
+   * fast it was validated; the result then reports that validation stopped early. While a budget
+   * applies, at most one entry per available processor is in flight ahead of the entry being
+   * counted.
+   */
+  public BudgetedOutcome validateEntries(
+      FhirContext fhirContext, FhirValidator fhirValidator, IBaseBundle bundle, int errorBudget) {
+    List<BundleEntryParts> entries = BundleUtil.toListOfEntries(fhirContext, bundle);
+    // built here, before any entry is being validated, as reading the bundle can fill in elements
+    IBaseBundle shell = toBundleShell(fhirContext, bundle);
+    List<Supplier<List<SingleValidationMessage>>> validations = new ArrayList<>();
+    validations.add(() -> validateBundleShell(fhirValidator, shell));
+    for (int index = 0; index < entries.size(); index++) {
+      final IBaseResource resource = entries.get(index).getResource();
+      final int entryIndex = index;
+      if (resource != null) {
+        validations.add(() -> validateEntry(fhirValidator, resource, entryIndex));
+      }
+    }
+    int maxInFlight =
+        errorBudget == Integer.MAX_VALUE
+            ? validations.size()
+            : Runtime.getRuntime().availableProcessors();
+
+    AtomicBoolean stopped = new AtomicBoolean();
+    Deque<CompletableFuture<List<SingleValidationMessage>>> inFlight = new ArrayDeque<>();
+    List<SingleValidationMessage> messages = new ArrayList<>();
+    int errors = 0;
+    int next = 0;
+    while (!stopped.get() && (next < validations.size() || !inFlight.isEmpty())) {
+      // count finished validations in order before starting more, so none starts needlessly
+      boolean countNext =
+          !inFlight.isEmpty()
+              && (inFlight.peekFirst().isDone()
+                  || inFlight.size() >= maxInFlight
+                  || next == validations.size());
+      if (!countNext) {
+        Supplier<List<SingleValidationMessage>> validation = validations.get(next++);
+        inFlight.addLast(
+            CompletableFuture.supplyAsync(
+                () -> stopped.get() ? List.of() : validation.get(), entryValidationTaskExecutor));
+        continue;
+      }
+      for (SingleValidationMessage message : awaitMessages(inFlight.removeFirst())) {
+        if (errors >= errorBudget) {
+          stopped.set(true);
+          break;
+        }
+        messages.add(message);
+        errors += isError(message) ? 1 : 0;
+      }
+      if (errors >= errorBudget && (next < validations.size() || !inFlight.isEmpty())) {
+        stopped.set(true);
+      }
+    }
+    return new BudgetedOutcome(
+        new ValidationResult(fhirContext, messages).toOperationOutcome(), stopped.get());
+  }
+
+  private boolean isError(SingleValidationMessage message) {
+    return message.getSeverity() == ResultSeverityEnum.ERROR
+        || message.getSeverity() == ResultSeverityEnum.FATAL;
+  }
+
+  /**
+   * Validates the bundle itself (type, bdl-* invariants, bundle profile) without validating its
+   * entry resources again, given a shell built by {@link #toBundleShell}. Issues found within the
+   * stand-in entry resources are dropped.
+   */
+  public List<SingleValidationMessage> validateBundleShell(
+      FhirValidator fhirValidator, IBaseBundle shell) {
+    return fhirValidator.validateWithResult(shell).getMessages().stream()
+        .filter(
+            message ->
+                message.getLocationString() == null
+                    || !ENTRY_RESOURCE_LOCATION.matcher(message.getLocationString()).lookingAt())
+        .toList();
+  }
+
+  /**
+   * Copies the bundle with every entry resource replaced by an empty resource of the same type, id
+   * and meta. Everything else is shared with the bundle rather than copied. Bundles other than R4
+   * bundles are returned as they are, so they are validated whole.
+   */
+  public static IBaseBundle toBundleShell(FhirContext fhirContext, IBaseBundle bundle) {
+    if (!(bundle instanceof Bundle r4Bundle)) {
+      return bundle;
+    }
+    Bundle shell = new Bundle();
+    shell.setIdElement(r4Bundle.getIdElement());
+    shell.setMeta(r4Bundle.getMeta());
+    shell.setImplicitRulesElement(r4Bundle.getImplicitRulesElement());
+    shell.setLanguageElement(r4Bundle.getLanguageElement());
+    shell.setIdentifier(r4Bundle.getIdentifier());
+    shell.setTypeElement(r4Bundle.getTypeElement());
+    shell.setTimestampElement(r4Bundle.getTimestampElement());
+    shell.setTotalElement(r4Bundle.getTotalElement());
+    shell.setLink(r4Bundle.getLink());
+    shell.setSignature(r4Bundle.getSignature());
+    for (Bundle.BundleEntryComponent entry : r4Bundle.getEntry()) {
+      addShellEntry(fhirContext, shell, entry);
+    }
+    return shell;
+  }
+
+  /** Adds a copy of the entry to the shell, with its resource left as an empty stand-in. */
+  public static void addShellEntry(
+      FhirContext fhirContext, Bundle shell, Bundle.BundleEntryComponent entry) {
+    Bundle.BundleEntryComponent shellEntry = shell.addEntry();
+    shellEntry.setId(entry.getId());
+    shellEntry.setExtension(entry.getExtension());
+    shellEntry.setModifierExtension(entry.getModifierExtension());
+    shellEntry.setLink(entry.getLink());
+    shellEntry.setFullUrlElement(entry.getFullUrlElement());
+    shellEntry.setSearch(entry.getSearch());
+    shellEntry.setRequest(entry.getRequest());
+    shellEntry.setResponse(entry.getResponse());
+    Resource resource = entry.getResource();
+    if (resource != null) {
+      Resource standIn = (Resource) fhirContext.getResourceDefinition(resource).newInstance();
+      if (resource.hasIdElement()) {
+        standIn.setIdElement(resource.getIdElement());
+      }
+      if (resource.hasMeta()) {
+        standIn.setMeta(resource.getMeta());
+      }
+      shellEntry.setResource(standIn);
+    }
+  }
+
+  List<SingleValidationMessage> validateEntry(
+      FhirValidator fhirValidator, IBaseResource resource, int entryIndex) {
+    return toEntryMessages(fhirValidator.validateWithResult(resource).getMessages(), entryIndex);
+  }
+
+  /**
+   * Copies the issues found on a standalone resource with their locations rewritten to point at
+   * Bundle.entry[n]. The given issues are left untouched, so they can be shared.
+   */
+  static List<SingleValidationMessage> toEntryMessages(
+      List<SingleValidationMessage> resourceMessages, int entryIndex) {
+    List<SingleValidationMessage> messages = new ArrayList<>(resourceMessages.size());
+    for (SingleValidationMessage resourceMessage : resourceMessages) {
+      SingleValidationMessage message = new SingleValidationMessage();
+      message.setSeverity(resourceMessage.getSeverity());
+      message.setMessage(resourceMessage.getMessage());
+      message.setMessageId(resourceMessage.getMessageId());
+      message.setLocationLine(resourceMessage.getLocationLine());
+      message.setLocationCol(resourceMessage.getLocationCol());
+      message.setSliceMessages(resourceMessage.getSliceMessages());
+      message.setLocationString(toEntryLocation(resourceMessage.getLocationString(), entryIndex));
+      messages.add(message);
+    }
+    return messages;
+  }
+
+  private List<SingleValidationMessage> awaitMessages(
+      CompletableFuture<List<SingleValidationMessage>> entryMessages) {
+    try {
+      return entryMessages.join();
+    } catch (CompletionException ex) {
+      if (ex.getCause() instanceof RuntimeException cause) {
+        throw cause;
+      }
+      throw ex;
+    }
+  }
+
+  /**
+   * Rewrites the location of an issue found on a standalone resource, e.g. "Encounter.status", to
+   * its location within the bundle, e.g. "Bundle.entry[1].resource.status".
+   */
+  static String toEntryLocation(String resourceLocation, int entryIndex) {
+    String entryLocation = "Bundle.entry[" + entryIndex + "].resource";
+    if (StringUtils.isBlank(resourceLocation)) {
+      return entryLocation;
+    }
+    int pathStart = resourceLocation.indexOf('.');
+    return pathStart < 0 ? entryLocation : entryLocation + resourceLocation.substring(pathStart);
+  }
+}
@@ -1,28 +1,44 @@
 package gov.cms.madie.madiefhirservice.services;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import gov.cms.madie.madiefhirservice.config.CacheConfig;
 import gov.cms.madie.madiefhirservice.exceptions.CqlLibraryNotFoundException;
 import gov.cms.madie.models.library.CqlLibrary;
-import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.cache.annotation.Cacheable;
+import org.springframework.cache.CacheManager;
+import org.springframework.cache.caffeine.CaffeineCache;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
+import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.web.util.UriComponentsBuilder;
 
 import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 @Service
 @Slf4j
-@RequiredArgsConstructor
 public class CqlLibraryService {
 
   private final RestTemplate restTemplate;
+  private final Executor libraryRefreshTaskExecutor;
+  private final Cache<Object, Object> libraries;
+  // the outbound request of each library being loaded, shared by everyone waiting for it
+  private final ConcurrentMap<LibraryKey, CompletableFuture<CqlLibrary>> loads =
+      new ConcurrentHashMap<>();
 
   @Value("${madie.library.service.baseUrl}")
   private String madieLibraryService;
@@ -30,8 +46,124 @@ public class CqlLibraryService {
   @Value("${madie.library.service.versioned.uri}")
   private String librariesVersionedUri;
 
-  @Cacheable(value = "libraries", key = "{ #root.methodName, #name, #version }")
+  @Value("${caching.spring.libraries.refreshAfterMillis}")
+  private long refreshAfterMillis;
+
+  @Value("${madie.library.load-timeout-millis}")
+  private long loadTimeoutMillis;
+
+  public CqlLibraryService(
+      RestTemplate restTemplate, CacheManager cacheManager, Executor libraryRefreshTaskExecutor) {
+    this.restTemplate = restTemplate;
+    this.libraryRefreshTaskExecutor = libraryRefreshTaskExecutor;
+    this.libraries =
+        ((CaffeineCache) cacheManager.getCache(CacheConfig.LIBRARIES_CACHE)).getNativeCache();
+  }
+
+  /**
+   * Gets the library from the cache, or from the library service when it is not cached. A cached
+   * library read after the refresh interval is returned as is and revalidated in the background
+   * with the reader's token. It stays cached, and keeps being served if the library service cannot
+   * be reached, until it is older than the TTL plus the maximum staleness. Concurrent requests for
+   * a library that is not cached share one request to the library service; a request that has
+   * waited on the shared one for longer than the load timeout fetches the library itself.
+   */
   public CqlLibrary getLibrary(String name, String version, String accessToken) {
+    LibraryKey key = new LibraryKey(name, version);
+    CqlLibrary cachedLibrary = (CqlLibrary) libraries.getIfPresent(key);
+    if (cachedLibrary == null) {
+      return awaitLoad(key, accessToken, loadLibrary(key, accessToken, Runnable::run));
+    }
+    if (isDueForRefresh(key)) {
+      loadLibrary(key, accessToken, libraryRefreshTaskExecutor)
+          .whenComplete(
+              (library, ex) -> {
+                if (ex != null) {
+                  log.warn("Unable to refresh library {} version {}", name, version, ex);
+                }
+              });
+    }
+    return cachedLibrary;
+  }
+
+  private boolean isDueForRefresh(LibraryKey key) {
+    return libraries
+        .policy()
+        .expireAfterWrite()
+        .flatMap(expiration -> expiration.ageOf(key))
+        .map(age -> age.toMillis() >= refreshAfterMillis)
+        .orElse(false);
+  }
+
+  /** Loads the library on the executor, unless it is already being loaded. */
+  private CompletableFuture<CqlLibrary> loadLibrary(
+      LibraryKey key, String accessToken, Executor executor) {
+    CompletableFuture<CqlLibrary> load = new CompletableFuture<>();
+    CompletableFuture<CqlLibrary> runningLoad = loads.putIfAbsent(key, load);
+    if (runningLoad != null) {
+      return runningLoad;
+    }
+    try {
+      executor.execute(() -> completeLoad(key, accessToken, load));
+    } catch (RejectedExecutionException ex) {
+      loads.remove(key, load);
+      load.completeExceptionally(ex);
+    }
+    return load;
+  }
+
+  private void completeLoad(
+      LibraryKey key, String accessToken, CompletableFuture<CqlLibrary> load) {
+    try {
+      load.complete(fetchAndCacheLibrary(key, accessToken));
+    } catch (RuntimeException | Error ex) {
+      load.completeExceptionally(ex);
+    } finally {
+      loads.remove(key, load);
+    }
+  }
+
+  private CqlLibrary fetchAndCacheLibrary(LibraryKey key, String accessToken) {
+    try {
+      CqlLibrary library = fetchLibrary(key.name(), key.version(), accessToken);
+      // missing or conflicting libraries are not cached, so they are looked up again next time
+      if (library != null) {
+        libraries.put(key, library);
+      }
+      return library;
+    } catch (CqlLibraryNotFoundException | HttpClientErrorException.NotFound ex) {
+      // a library that no longer exists must not be served stale
+      libraries.invalidate(key);
+      throw ex;
+    }
+  }
+
+  /**
+   * Waits for the load, which may be a refresh still queued on the refresh pool. Past the load
+   * timeout the library is fetched on the caller's thread instead of waiting any longer.
+   */
+  private CqlLibrary awaitLoad(
+      LibraryKey key, String accessToken, CompletableFuture<CqlLibrary> load) {
+    try {
+      return load.get(loadTimeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException ex) {
+      log.warn(
+          "Timed out waiting for library {} version {} to load, fetching it directly",
+          key.name(),
+          key.version());
+      return fetchAndCacheLibrary(key, accessToken);
+    } catch (ExecutionException ex) {
+      if (ex.getCause() instanceof RuntimeException cause) {
+        throw cause;
+      }
+      throw new CompletionException(ex.getCause());
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new CompletionException(ex);
+    }
+  }
+
+  private CqlLibrary fetchLibrary(String name, String version, String accessToken) {
     URI uri = buildMadieLibraryServiceUri(name, version);
     HttpHeaders headers = new HttpHeaders();
     headers.add("Authorization", accessToken);
@@ -66,4 +198,6 @@ public class CqlLibraryService {
         .encode()
         .toUri();
   }
+
+  private record LibraryKey(String name, String version) {}
 }
@@ -0,0 +1,290 @@
+package gov.cms.madie.madiefhirservice.services;
+
+import gov.cms.madie.madiefhirservice.dto.ExportJob;
+import gov.cms.madie.madiefhirservice.dto.TestCaseExportOptions;
+import gov.cms.madie.madiefhirservice.exceptions.ExportJobNotReadyException;
+import gov.cms.madie.madiefhirservice.exceptions.ResourceNotFoundException;
+import gov.cms.madie.madiefhirservice.utils.ExportFileNamesUtil;
+import gov.cms.madie.models.dto.ExportDTO;
+import gov.cms.madie.models.measure.Measure;
+import gov.cms.madie.models.measure.TestCase;
+import lombok.extern.slf4j.Slf4j;
+import org.hl7.fhir.r4.model.Bundle;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.Principal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Runs test case and measure exports in the background. The finished zip is written to a spool
+ * directory and can be downloaded by the user who submitted the job until it expires; jobs and
+ * their files are removed once they are older than the configured TTL.
+ */
+@Slf4j
+@Service
+public class ExportJobService {
+
+  private static final String SPOOL_FILE_SUFFIX = ".zip";
+
+  private final TestCaseBundleService testCaseBundleService;
+  private final ExportService exportService;
+  private final Executor exportJobTaskExecutor;
+  private final Path spoolDirectory;
+  private final Duration ttl;
+  private final Map<String, JobState> jobs = new ConcurrentHashMap<>();
+
+  public ExportJobService(
+      TestCaseBundleService testCaseBundleService,
+      ExportService exportService,
+      Executor exportJobTaskExecutor,
+      @Value("${madie.export.jobs.spool-directory}") String spoolDirectory,
+      @Value("${madie.export.jobs.ttlMillis}") long ttlMillis) {
+    this.testCaseBundleService = testCaseBundleService;
+    this.exportService = exportService;
+    this.exportJobTaskExecutor = exportJobTaskExecutor;
+    this.spoolDirectory = Path.of(spoolDirectory);
+    this.ttl = Duration.ofMillis(ttlMillis);
+  }
+
+  public ExportJob submitTestCaseExport(
+      String username,
+      ExportDTO exportDTO,
+      List<TestCase> testCases,
+      TestCaseExportOptions options) {
+    Measure measure = exportDTO.getMeasure();
+    JobState job =
+        new JobState(
+            username,
+            ExportJob.Type.TEST_CASES,
+            measure.getId(),
+            testCases.size(),
+            ExportFileNamesUtil.getTestCaseExportZipName(measure) + ".zip");
+    return submit(
+        job,
+        () -> {
+          Map<String, Bundle> exportableTestCaseBundle =
+              testCaseBundleService.getTestCaseExportBundle(
+                  measure,
+                  testCases,
+                  exportDTO,
+                  options.toBuilder().onTestCaseProcessed(job.processed::incrementAndGet).build());
+          List<TestCase> exportedTestCases =
+              testCaseBundleService.getExportedTestCases(testCases, exportableTestCaseBundle);
+          writeSpoolFile(
+              job,
+              out ->
+                  testCaseBundleService.writeTestCaseZip(
+                      measure, exportableTestCaseBundle, exportedTestCases, out));
+          if (exportedTestCases.size() != testCases.size()) {
+            job.message =
+                (testCases.size() - exportedTestCases.size())
+                    + " test cases could not be parsed and were left out";
+          }
+        });
+  }
+
+  public ExportJob submitMeasureExport(
+      String username, Measure measure, Principal principal, String accessToken) {
+    JobState job =
+        new JobState(
+            username,
+            ExportJob.Type.MEASURE,
+            measure.getId(),
+            1,
+            ExportFileNamesUtil.getExportFileName(measure) + ".zip");
+    return submit(
+        job,
+        () -> {
+          byte[] export = exportService.createExport(measure, principal, accessToken);
+          writeSpoolFile(job, out -> out.write(export));
+          job.processed.incrementAndGet();
+        });
+  }
+
+  /** Looks up a job of the given user; jobs of other users are reported as not found. */
+  public ExportJob getJob(String username, String jobId) {
+    return findJob(username, jobId).toExportJob();
+  }
+
+  /**
+   * @return the spooled zip of a completed job of the given user
+   * @throws ExportJobNotReadyException if the job has not completed successfully
+   */
+  public Path getJobFile(String username, String jobId) {
+    JobState job = findJob(username, jobId);
+    if (job.status != ExportJob.Status.COMPLETED) {
+      throw new ExportJobNotReadyException(jobId, job.status.name());
+    }
+    return job.file;
+  }
+
+  /** Removes finished jobs older than the TTL along with their files, and stray spool files. */
+  @Scheduled(fixedRateString = "${madie.export.jobs.cleanup-interval-millis}")
+  public void removeExpiredJobs() {
+    Instant expiry = Instant.now().minus(ttl);
+    jobs.values()
+        .removeIf(
+            job -> {
+              boolean expired = job.completedAt != null && job.completedAt.isBefore(expiry);
+              if (expired && job.file != null) {
+                deleteQuietly(job.file);
+              }
+              return expired;
+            });
+    // files left behind by earlier instances of the service
+    if (Files.isDirectory(spoolDirectory)) {
+      try (Stream<Path> files = Files.list(spoolDirectory)) {
+        files
+            .filter(file -> isOlderThan(file, expiry))
+            .filter(file -> jobs.values().stream().noneMatch(job -> file.equals(job.file)))
+            .forEach(this::deleteQuietly);
+      } catch (IOException ex) {
+        log.warn("Unable to clean up export spool directory [{}]", spoolDirectory, ex);
+      }
+    }
+  }
+
+  private ExportJob submit(JobState job, ExportTask task) {
+    log.info(
+        "User [{}] submitted {} export job [{}] for measure [{}]",
+        job.username,
+        job.type,
+        job.id,
+        job.measureId);
+    jobs.put(job.id, job);
+    try {
+      exportJobTaskExecutor.execute(() -> run(job, task));
+    } catch (RejectedExecutionException ex) {
+      log.warn("Rejected export job [{}] for measure [{}]", job.id, job.measureId);
+      job.fail("Too many export jobs are queued, please try again later");
+    }
+    return job.toExportJob();
+  }
+
+  private void run(JobState job, ExportTask task) {
+    job.status = ExportJob.Status.RUNNING;
+    long start = System.currentTimeMillis();
+    try {
+      task.run();
+      job.completedAt = Instant.now();
+      job.status = ExportJob.Status.COMPLETED;
+      log.info(
+          "Export job [{}] for measure [{}] completed in [{}] ms",
+          job.id,
+          job.measureId,
+          System.currentTimeMillis() - start);
+    } catch (Exception ex) {
+      log.error("Export job [{}] for measure [{}] failed", job.id, job.measureId, ex);
+      job.fail(ex.getMessage());
+    }
+  }
+
+  private void writeSpoolFile(JobState job, SpoolWriter writer) throws IOException {
+    Files.createDirectories(spoolDirectory);
+    Path file = spoolDirectory.resolve(job.id + SPOOL_FILE_SUFFIX);
+    Path tempFile = Files.createTempFile(spoolDirectory, job.id, ".tmp");
+    try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tempFile))) {
+      writer.write(out);
+    } catch (IOException | RuntimeException ex) {
+      deleteQuietly(tempFile);
+      throw ex;
+    }
+    job.file = Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private JobState findJob(String username, String jobId) {
+    JobState job = jobs.get(jobId);
+    if (job == null || !job.username.equals(username)) {
+      throw new ResourceNotFoundException("Export job", "user " + username, jobId);
+    }
+    return job;
+  }
+
+  private boolean isOlderThan(Path file, Instant expiry) {
+    try {
+      return Files.getLastModifiedTime(file).toInstant().isBefore(expiry);
+    } catch (IOException ex) {
+      return false;
+    }
+  }
+
+  private void deleteQuietly(Path file) {
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException ex) {
+      log.warn("Unable to delete export spool file [{}]", file, ex);
+    }
+  }
+
+  @FunctionalInterface
+  private interface ExportTask {
+    void run() throws IOException;
+  }
+
+  @FunctionalInterface
+  private interface SpoolWriter {
+    void write(OutputStream out) throws IOException;
+  }
+
+  private static class JobState {
+    private final String id = UUID.randomUUID().toString();
+    private final String username;
+    private final ExportJob.Type type;
+    private final String measureId;
+    private final int total;
+    private final String fileName;
+    private final Instant submittedAt = Instant.now();
+    private final AtomicInteger processed = new AtomicInteger();
+    private volatile ExportJob.Status status = ExportJob.Status.QUEUED;
+    private volatile String message;
+    private volatile Instant completedAt;
+    private volatile Path file;
+
+    private JobState(
+        String username, ExportJob.Type type, String measureId, int total, String fileName) {
+      this.username = username;
+      this.type = type;
+      this.measureId = measureId;
+      this.total = total;
+      this.fileName = fileName;
+    }
+
+    private void fail(String failureMessage) {
+      message = failureMessage;
+      completedAt = Instant.now();
+      status = ExportJob.Status.FAILED;
+    }
+
+    private ExportJob toExportJob() {
+      return ExportJob.builder()
+          .id(id)
+          .type(type)
+          .status(status)
+          .measureId(measureId)
+          .processed(processed.get())
+          .total(total)
+          .fileName(fileName)
+          .message(message)
+          .submittedAt(submittedAt)
+          .completedAt(completedAt)
+          .build();
+    }
+  }
+}
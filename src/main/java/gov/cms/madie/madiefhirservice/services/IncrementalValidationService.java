@@ -0,0 +1,160 @@
+package gov.cms.madie.madiefhirservice.services;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.util.BundleUtil;
+import ca.uhn.fhir.util.bundle.BundleEntryParts;
+import ca.uhn.fhir.validation.FhirValidator;
+import ca.uhn.fhir.validation.SingleValidationMessage;
+import ca.uhn.fhir.validation.ValidationResult;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import gov.cms.madie.madiefhirservice.utils.NpmPackageUtil;
+import gov.cms.madie.models.common.ModelType;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseOperationOutcome;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Re-validates only the entries of a bundle that changed since a previous validation. Each
+ * validation is stored under a token holding the issues found on each entry resource, keyed by a
+ * hash of its content; a later request presenting that token reuses the issues of every entry whose
+ * content was validated before, wherever it now sits in the bundle. The bundle shell is always
+ * validated again.
+ */
+@Slf4j
+@Service
+public class IncrementalValidationService {
+
+  private static final String CACHE_NAME = "validationTokens";
+
+  private final Cache<String, ValidationSnapshot> snapshots;
+  private final BundleEntryValidationService entryValidationService;
+  private final Executor entryValidationTaskExecutor;
+
+  public IncrementalValidationService(
+      BundleEntryValidationService entryValidationService,
+      Executor entryValidationTaskExecutor,
+      MeterRegistry meterRegistry,
+      @Value("${madie.validation.incremental.max-tokens}") long maxTokens,
+      @Value("${madie.validation.incremental.ttlMillis}") long ttlMillis) {
+    this.entryValidationService = entryValidationService;
+    this.entryValidationTaskExecutor = entryValidationTaskExecutor;
+    this.snapshots =
+        Caffeine.newBuilder()
+            .maximumSize(maxTokens)
+            .expireAfterAccess(Duration.ofMillis(ttlMillis))
+            .recordStats()
+            .build();
+    CaffeineCacheMetrics.monitor(meterRegistry, snapshots, CACHE_NAME);
+  }
+
+  /**
+   * Validates the bundle shell and every entry resource of the bundle on its own, as {@link
+   * BundleEntryValidationService#validateEntries} does, reusing the issues recorded under
+   * previousToken for entries whose content has been validated before, and records the entry
+   * issues under nextToken. Rules that need the whole bundle must be run separately.
+   *
+   * @param previousToken token returned by an earlier validation, or null
+   * @param nextToken token to record this validation under
+   * @return outcome containing the issues of the bundle shell, then of all entries in entry order
+   */
+  public IBaseOperationOutcome validateEntries(
+      ModelType modelType,
+      FhirContext fhirContext,
+      FhirValidator fhirValidator,
+      IBaseBundle bundle,
+      String previousToken,
+      String nextToken) {
+    ValidationSnapshot previous =
+        previousToken == null ? null : snapshots.getIfPresent(previousToken);
+    Map<String, List<SingleValidationMessage>> previousEntries =
+        previous != null && previous.modelType() == modelType ? previous.entries() : Map.of();
+
+    List<BundleEntryParts> entries = BundleUtil.toListOfEntries(fhirContext, bundle);
+    // built here, before any entry is being validated, as reading the bundle can fill in elements
+    IBaseBundle shell = BundleEntryValidationService.toBundleShell(fhirContext, bundle);
+    CompletableFuture<List<SingleValidationMessage>> shellMessages =
+        CompletableFuture.supplyAsync(
+            () -> entryValidationService.validateBundleShell(fhirValidator, shell),
+            entryValidationTaskExecutor);
+
+    IParser parser = fhirContext.newJsonParser().setPrettyPrint(false);
+    Map<Integer, String> contentHashes = new HashMap<>();
+    Map<String, CompletableFuture<List<SingleValidationMessage>>> entryMessages = new HashMap<>();
+    int reused = 0;
+    for (int index = 0; index < entries.size(); index++) {
+      final IBaseResource resource = entries.get(index).getResource();
+      if (resource == null) {
+        continue;
+      }
+      String contentHash = contentHash(parser.encodeResourceToString(resource));
+      contentHashes.put(index, contentHash);
+      List<SingleValidationMessage> previousMessages = previousEntries.get(contentHash);
+      if (previousMessages != null) {
+        entryMessages.putIfAbsent(contentHash, CompletableFuture.completedFuture(previousMessages));
+        reused++;
+      } else {
+        entryMessages.computeIfAbsent(
+            contentHash,
+            hash ->
+                CompletableFuture.supplyAsync(
+                    () -> List.copyOf(fhirValidator.validateWithResult(resource).getMessages()),
+                    entryValidationTaskExecutor));
+      }
+    }
+
+    List<SingleValidationMessage> messages = new ArrayList<>(awaitMessages(shellMessages));
+    Map<String, List<SingleValidationMessage>> nextEntries = new HashMap<>();
+    for (int index = 0; index < entries.size(); index++) {
+      String contentHash = contentHashes.get(index);
+      if (contentHash != null) {
+        List<SingleValidationMessage> resourceMessages =
+            awaitMessages(entryMessages.get(contentHash));
+        nextEntries.put(contentHash, resourceMessages);
+        messages.addAll(BundleEntryValidationService.toEntryMessages(resourceMessages, index));
+      }
+    }
+    snapshots.put(nextToken, new ValidationSnapshot(modelType, nextEntries));
+    log.debug("Incremental validation reused [{}] of [{}] entries", reused, contentHashes.size());
+    return new ValidationResult(fhirContext, messages).toOperationOutcome();
+  }
+
+  private String contentHash(String resourceJson) {
+    return HexFormat.of()
+        .formatHex(
+            NpmPackageUtil.newSha256().digest(resourceJson.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  private List<SingleValidationMessage> awaitMessages(
+      CompletableFuture<List<SingleValidationMessage>> messages) {
+    try {
+      return messages.join();
+    } catch (CompletionException ex) {
+      if (ex.getCause() instanceof RuntimeException cause) {
+        throw cause;
+      }
+      throw ex;
+    }
+  }
+
+  /** Issues found on each validated entry resource, keyed by the hash of its content. */
+  private record ValidationSnapshot(
+      ModelType modelType, Map<String, List<SingleValidationMessage>> entries) {}
+}
@@ -0,0 +1,206 @@
+package gov.cms.madie.madiefhirservice.services;
+
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementCompositeDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementDefinition;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.parser.DataFormatException;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.hl7.fhir.r4.model.BaseDateTimeType;
+
+import java.io.IOException;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Shifts the dates of the entry resources of a FHIR Bundle without building the resource model.
+ * The JSON is streamed token by token, element types are looked up in the HAPI definitions as the
+ * walk goes, and only the date, dateTime and instant values are rewritten; every other character
+ * is copied through unchanged. Like the model based shift, dates of the Bundle itself and of the
+ * extensions of primitive values ("_birthDate" objects) are kept.
+ *
+ * <p>JSON the walk cannot follow, such as unknown elements or a resourceType that is not the first
+ * property of its resource, is left to the caller to shift through the resource model, which also
+ * decides whether it is valid.
+ */
+class JsonDateShifter {
+
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+  private static final String RESOURCE_TYPE = "resourceType";
+
+  /** Where a value sits in the Bundle, which decides whether its dates are shifted. */
+  private enum Position {
+    BUNDLE,
+    BUNDLE_ENTRY,
+    ENTRY_RESOURCE,
+    OTHER;
+
+    private Position child(String name) {
+      return switch (this) {
+        case BUNDLE -> "entry".equals(name) ? BUNDLE_ENTRY : OTHER;
+        case BUNDLE_ENTRY -> "resource".equals(name) ? ENTRY_RESOURCE : OTHER;
+        case ENTRY_RESOURCE -> ENTRY_RESOURCE;
+        case OTHER -> OTHER;
+      };
+    }
+  }
+
+  private final FhirContext fhirContext;
+  private final ObjIntConsumer<BaseDateTimeType> dateShift;
+  // "_birthDate" style objects only carry an id and extensions, which Extension also declares
+  private final BaseRuntimeElementCompositeDefinition<?> primitiveElementDefinition;
+
+  JsonDateShifter(FhirContext fhirContext, ObjIntConsumer<BaseDateTimeType> dateShift) {
+    this.fhirContext = fhirContext;
+    this.dateShift = dateShift;
+    this.primitiveElementDefinition =
+        (BaseRuntimeElementCompositeDefinition<?>) fhirContext.getElementDefinition("Extension");
+  }
+
+  /**
+   * @param json a FHIR Bundle as JSON
+   * @param shiftBy number of years to shift the dates by
+   * @return the JSON with the dates of its entry resources shifted, or null if it could not be
+   *     followed
+   */
+  String shiftDates(String json, int shiftBy) {
+    StringBuilder shifted = new StringBuilder(json.length());
+    try (JsonParser parser = JSON_FACTORY.createParser(json)) {
+      Walk walk = new Walk(parser, json, shifted, shiftBy);
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        return null;
+      }
+      walk.object(null, Position.BUNDLE);
+      if (parser.nextToken() != null) {
+        return null;
+      }
+      walk.copyRemainder();
+      return shifted.toString();
+    } catch (IOException | DataFormatException | UnfollowableJsonException ex) {
+      return null;
+    }
+  }
+
+  /** One pass over a JSON document, copying it into the output as it goes. */
+  private class Walk {
+    private final JsonParser parser;
+    private final String json;
+    private final StringBuilder shifted;
+    private final int shiftBy;
+    private int copied;
+
+    private Walk(JsonParser parser, String json, StringBuilder shifted, int shiftBy) {
+      this.parser = parser;
+      this.json = json;
+      this.shifted = shifted;
+      this.shiftBy = shiftBy;
+    }
+
+    /**
+     * Walks the object the parser is on. Objects starting with a resourceType are resources of
+     * that type, anything else has to be an element of the given type.
+     */
+    private void object(BaseRuntimeElementDefinition<?> definition, Position position)
+        throws IOException {
+      JsonToken token = parser.nextToken();
+      BaseRuntimeElementCompositeDefinition<?> composite;
+      if (token == JsonToken.FIELD_NAME && RESOURCE_TYPE.equals(parser.currentName())) {
+        if (parser.nextToken() != JsonToken.VALUE_STRING
+            || (position == Position.BUNDLE && !"Bundle".equals(parser.getText()))) {
+          throw new UnfollowableJsonException();
+        }
+        composite = fhirContext.getResourceDefinition(parser.getText());
+        token = parser.nextToken();
+      } else if (position != Position.BUNDLE
+          && definition instanceof BaseRuntimeElementCompositeDefinition<?> element
+          && !(element instanceof RuntimeResourceDefinition)) {
+        composite = element;
+      } else {
+        throw new UnfollowableJsonException();
+      }
+
+      for (; token == JsonToken.FIELD_NAME; token = parser.nextToken()) {
+        String name = parser.currentName();
+        parser.nextToken();
+        boolean primitiveElement = name.startsWith("_");
+        BaseRuntimeChildDefinition child =
+            composite.getChildByName(primitiveElement ? name.substring(1) : name);
+        if (child == null) {
+          throw new UnfollowableJsonException();
+        }
+        // like the model based shift, the extensions of primitives keep their dates
+        values(
+            primitiveElement ? null : child,
+            name,
+            primitiveElement ? Position.OTHER : position.child(name));
+      }
+      if (token != JsonToken.END_OBJECT) {
+        throw new UnfollowableJsonException();
+      }
+    }
+
+    /**
+     * Walks the value, or array of values, the parser is on.
+     *
+     * @param child the child the values belong to, or null for the id and extensions of a
+     *     primitive
+     */
+    private void values(BaseRuntimeChildDefinition child, String name, Position position)
+        throws IOException {
+      if (parser.currentToken() != JsonToken.START_ARRAY) {
+        value(child, name, position);
+        return;
+      }
+      while (parser.nextToken() != JsonToken.END_ARRAY) {
+        value(child, name, position);
+      }
+    }
+
+    private void value(BaseRuntimeChildDefinition child, String name, Position position)
+        throws IOException {
+      JsonToken token = parser.currentToken();
+      if (token == JsonToken.START_OBJECT) {
+        object(child == null ? primitiveElementDefinition : child.getChildByName(name), position);
+      } else if (token == JsonToken.VALUE_STRING && child != null) {
+        BaseRuntimeElementDefinition<?> definition = child.getChildByName(name);
+        if (position == Position.ENTRY_RESOURCE
+            && definition != null
+            && BaseDateTimeType.class.isAssignableFrom(definition.getImplementingClass())) {
+          date(definition);
+        }
+      } else if (token == JsonToken.START_ARRAY
+          || token == null
+          || (token == JsonToken.VALUE_STRING && child == null)) {
+        throw new UnfollowableJsonException();
+      }
+    }
+
+    /** Replaces the string the parser is on with the shifted date, when it changed. */
+    private void date(BaseRuntimeElementDefinition<?> definition) throws IOException {
+      String text = parser.getText();
+      // the token is complete once its text has been read, so the location is past the quote
+      int start = (int) parser.currentTokenLocation().getCharOffset();
+      int end = (int) parser.currentLocation().getCharOffset();
+      BaseDateTimeType date = (BaseDateTimeType) definition.newInstance();
+      date.setValueAsString(text);
+      dateShift.accept(date, shiftBy);
+      String shiftedText = date.getValueAsString();
+      if (!text.equals(shiftedText)) {
+        shifted.append(json, copied, start).append('"').append(shiftedText).append('"');
+        copied = end;
+      }
+    }
+
+    private void copyRemainder() {
+      shifted.append(json, copied, json.length());
+    }
+  }
+
+  private static class UnfollowableJsonException extends RuntimeException {
+    private UnfollowableJsonException() {
+      super(null, null, false, false);
+    }
+  }
+}
@@ -0,0 +1,96 @@
+package gov.cms.madie.madiefhirservice.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import gov.cms.madie.madiefhirservice.utils.BundleUtil;
+import gov.cms.madie.madiefhirservice.utils.NpmPackageUtil;
+import gov.cms.madie.models.library.CqlLibrary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.hl7.fhir.r4.model.Library;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.Date;
+import java.util.HexFormat;
+import java.util.Optional;
+
+/**
+ * Caches the FHIR Libraries converted from CQL libraries, which are mostly the same shared
+ * libraries (FHIRHelpers and the like) for every measure bundle. Entries are keyed on the library
+ * name, version, bundle variant and a hash of everything the conversion reads, and are copied in
+ * and out since callers go on to modify the libraries they get.
+ */
+@Service
+public class LibraryConversionCacheService {
+
+  private static final String CACHE_NAME = "libraryConversions";
+
+  private final Cache<String, Library> libraries;
+
+  public LibraryConversionCacheService(
+      MeterRegistry meterRegistry,
+      @Value("${madie.library.conversion-cache.max-size}") long maxSize,
+      @Value("${madie.library.conversion-cache.ttlMillis}") long ttlMillis) {
+    this.libraries =
+        Caffeine.newBuilder()
+            .maximumSize(maxSize)
+            .expireAfterWrite(Duration.ofMillis(ttlMillis))
+            .recordStats()
+            .build();
+    CaffeineCacheMetrics.monitor(meterRegistry, libraries, CACHE_NAME);
+  }
+
+  /** Builds the cache key for converting the CQL library into a bundle of the given type. */
+  public String cacheKey(CqlLibrary cqlLibrary, String bundleType) {
+    MessageDigest digest = NpmPackageUtil.newSha256();
+    update(digest, cqlLibrary.getId());
+    update(digest, cqlLibrary.getCql());
+    update(digest, cqlLibrary.getElmJson());
+    update(digest, cqlLibrary.getElmXml());
+    update(digest, cqlLibrary.getPublisher());
+    update(digest, cqlLibrary.getDescription());
+    update(digest, String.valueOf(cqlLibrary.isExperimental()));
+    // only export bundles carry a narrative
+    String variant =
+        BundleUtil.MEASURE_BUNDLE_TYPE_EXPORT.equals(bundleType)
+            ? BundleUtil.MEASURE_BUNDLE_TYPE_EXPORT
+            : BundleUtil.MEASURE_BUNDLE_TYPE_CALCULATION;
+    return String.join(
+        ":",
+        cqlLibrary.getCqlLibraryName(),
+        String.valueOf(cqlLibrary.getVersion()),
+        variant,
+        HexFormat.of().formatHex(digest.digest()));
+  }
+
+  public Optional<Library> get(String cacheKey) {
+    Library library = libraries.getIfPresent(cacheKey);
+    if (library == null) {
+      return Optional.empty();
+    }
+    Library copy = library.copy();
+    // dated like a fresh conversion, not when the library was first converted
+    copy.setDate(new Date());
+    return Optional.of(copy);
+  }
+
+  public void put(String cacheKey, Library library) {
+    libraries.put(cacheKey, library.copy());
+  }
+
+  private static void update(MessageDigest digest, String value) {
+    if (value == null) {
+      digest.update((byte) 0);
+      return;
+    }
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    digest.update((byte) 1);
+    digest.update(ByteBuffer.allocate(Integer.BYTES).putInt(bytes.length).array());
+    digest.update(bytes);
+  }
+}
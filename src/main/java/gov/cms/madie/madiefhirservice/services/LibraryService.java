@@ -16,7 +16,17 @@ import org.hl7.fhir.r4.model.Narrative;
 import org.hl7.fhir.r4.model.Narrative.NarrativeStatus;
 import org.springframework.stereotype.Service;
 
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 
 @Service
 @Slf4j
@@ -27,6 +37,8 @@ public class LibraryService {
   private final LibraryTranslatorService libraryTranslatorService;
   private final LibraryCqlVisitorFactory libCqlVisitorFactory;
   private final HumanReadableService humanReadableService;
+  private final Executor libraryTaskExecutor;
+  private final LibraryConversionCacheService libraryConversionCache;
 
   public String getLibraryCql(String name, String version, final String accessToken) {
     CqlLibrary library = cqlLibraryService.getLibrary(name, version, accessToken);
@@ -44,38 +56,107 @@ public class LibraryService {
   }
 
   public Library cqlLibraryToFhirLibrary(CqlLibrary cqlLibrary, final String bundleType) {
+    String cacheKey = libraryConversionCache.cacheKey(cqlLibrary, bundleType);
+    Optional<Library> cachedLibrary = libraryConversionCache.get(cacheKey);
+    if (cachedLibrary.isPresent()) {
+      return cachedLibrary.get();
+    }
     Library library = libraryTranslatorService.convertToFhirLibrary(cqlLibrary);
     if (BundleUtil.MEASURE_BUNDLE_TYPE_EXPORT.equals(bundleType)) {
       library.setText(createLibraryNarrativeText(library));
     }
+    libraryConversionCache.put(cacheKey, library);
     return library;
   }
 
+  /**
+   * Adds the libraries the CQL includes, directly or through other libraries, to the map. Each
+   * level of the include graph is fetched concurrently and every name and version only once; the
+   * map is still filled in depth-first include order, whatever order the fetches complete in.
+   */
   public void getIncludedLibraries(
       String cql,
       Map<String, Library> libraryMap,
       final String bundleType,
       final String accessToken) {
-    if (StringUtils.isBlank(cql) || libraryMap == null) {
+    if (libraryMap == null) {
       log.error("Invalid method arguments provided to getIncludedLibraries");
       throw new IllegalArgumentException("Please provide valid arguments.");
     }
+    List<Pair<String, String>> includes = getIncludes(cql);
+
+    Map<Pair<String, String>, IncludedLibrary> fetched = new HashMap<>();
+    Set<Pair<String, String>> level = new LinkedHashSet<>(includes);
+    while (!level.isEmpty()) {
+      Map<Pair<String, String>, CompletableFuture<IncludedLibrary>> fetches =
+          new LinkedHashMap<>();
+      for (Pair<String, String> include : level) {
+        fetches.put(
+            include,
+            CompletableFuture.supplyAsync(
+                () -> fetchIncludedLibrary(include, bundleType, accessToken),
+                libraryTaskExecutor));
+      }
+      Set<Pair<String, String>> nextLevel = new LinkedHashSet<>();
+      for (Map.Entry<Pair<String, String>, CompletableFuture<IncludedLibrary>> fetch :
+          fetches.entrySet()) {
+        IncludedLibrary includedLibrary = awaitFetch(fetch.getValue());
+        fetched.put(fetch.getKey(), includedLibrary);
+        includedLibrary.includes().stream()
+            .filter(include -> !fetched.containsKey(include) && !fetches.containsKey(include))
+            .forEach(nextLevel::add);
+      }
+      level = nextLevel;
+    }
+    addIncludedLibraries(includes, fetched, libraryMap, new HashSet<>());
+  }
 
+  private List<Pair<String, String>> getIncludes(String cql) {
+    if (StringUtils.isBlank(cql)) {
+      log.error("Invalid method arguments provided to getIncludedLibraries");
+      throw new IllegalArgumentException("Please provide valid arguments.");
+    }
     LibraryCqlVisitor visitor = libCqlVisitorFactory.visit(cql);
-    for (Pair<String, String> libraryNameValuePair : visitor.getIncludedLibraries()) {
-      CqlLibrary cqlLibrary =
-          cqlLibraryService.getLibrary(
-              libraryNameValuePair.getLeft(), libraryNameValuePair.getRight(), accessToken);
-      Library library = cqlLibraryToFhirLibrary(cqlLibrary, bundleType);
-      String key = library.getName() + library.getVersion();
-      if (!libraryMap.containsKey(key)) {
-        libraryMap.put(key, library);
+    return visitor.getIncludedLibraries();
+  }
+
+  private IncludedLibrary fetchIncludedLibrary(
+      Pair<String, String> include, String bundleType, String accessToken) {
+    CqlLibrary cqlLibrary =
+        cqlLibraryService.getLibrary(include.getLeft(), include.getRight(), accessToken);
+    Library library = cqlLibraryToFhirLibrary(cqlLibrary, bundleType);
+    Attachment attachment = findCqlAttachment(library);
+    return new IncludedLibrary(library, getIncludes(new String(attachment.getData())));
+  }
+
+  private IncludedLibrary awaitFetch(CompletableFuture<IncludedLibrary> fetch) {
+    try {
+      return fetch.join();
+    } catch (CompletionException ex) {
+      if (ex.getCause() instanceof RuntimeException cause) {
+        throw cause;
       }
-      Attachment attachment = findCqlAttachment(library);
-      getIncludedLibraries(new String(attachment.getData()), libraryMap, bundleType, accessToken);
+      throw ex;
     }
   }
 
+  private void addIncludedLibraries(
+      List<Pair<String, String>> includes,
+      Map<Pair<String, String>, IncludedLibrary> fetched,
+      Map<String, Library> libraryMap,
+      Set<Pair<String, String>> added) {
+    for (Pair<String, String> include : includes) {
+      if (added.add(include)) {
+        IncludedLibrary includedLibrary = fetched.get(include);
+        Library library = includedLibrary.library();
+        libraryMap.putIfAbsent(library.getName() + library.getVersion(), library);
+        addIncludedLibraries(includedLibrary.includes(), fetched, libraryMap, added);
+      }
+    }
+  }
+
+  private record IncludedLibrary(Library library, List<Pair<String, String>> includes) {}
+
   private Narrative createLibraryNarrativeText(Library library) {
     Narrative narrative = new Narrative();
     narrative.setStatus(NarrativeStatus.EXTENSIONS);
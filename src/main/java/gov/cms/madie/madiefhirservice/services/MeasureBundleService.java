@@ -22,11 +22,14 @@ import org.hl7.fhir.r4.model.Narrative;
 import org.hl7.fhir.r4.model.Reference;
 import org.springframework.stereotype.Service;
 
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 import java.util.stream.Collectors;
 
 @Slf4j
@@ -38,23 +41,44 @@ public class MeasureBundleService {
   private final LibraryService libraryService;
   private final ElmTranslatorClient elmTranslatorClient;
   private final HumanReadableService humanReadableService;
+  private final Executor measureBundleTaskExecutor;
 
   /**
-   * Creates measure bundle that contains measure, main library, and included libraries resources
+   * Creates measure bundle that contains measure, main library, and included libraries resources.
+   * The included libraries are fetched, and the translator is called, on the bundle executor while
+   * the measure is translated on the calling thread.
    */
   public Bundle createMeasureBundle(
       Measure madieMeasure, Principal principal, String bundleType, String accessToken) {
     log.info(
         "Generating measure bundle of type [{}] for measure {}", bundleType, madieMeasure.getId());
     madieMeasure.setCql(CqlFormatter.formatCql(madieMeasure.getCql(), principal));
-
     log.info("CQL formatting completed successfully for measure {}", madieMeasure.getId());
+
+    // the included libraries only depend on the formatted CQL
+    String cql = madieMeasure.getCql();
+    CompletableFuture<Map<String, Library>> includedLibraries =
+        CompletableFuture.supplyAsync(
+            () -> getIncludedLibraries(cql, bundleType, accessToken), measureBundleTaskExecutor);
+
     org.hl7.fhir.r4.model.Measure measure =
         measureTranslatorService.createFhirMeasureForMadieMeasure(madieMeasure);
     Set<String> expressions = getExpressions(measure);
-
     log.info(
         "Mapping of MADiE measure to FHIR measure completed successfully {}", madieMeasure.getId());
+
+    // both translator calls only depend on the CQL and the expressions of the measure
+    CompletableFuture<Library> measureLibrary =
+        CompletableFuture.supplyAsync(
+            () -> getMeasureLibrary(expressions, madieMeasure, accessToken),
+            measureBundleTaskExecutor);
+    CompletableFuture<org.hl7.fhir.r5.model.Library> effectiveDataRequirementsLookup =
+        BundleUtil.MEASURE_BUNDLE_TYPE_EXPORT.equals(bundleType)
+            ? CompletableFuture.supplyAsync(
+                () -> getEffectiveDataRequirements(madieMeasure, expressions, accessToken),
+                measureBundleTaskExecutor)
+            : CompletableFuture.completedFuture(null);
+
     // Bundle entry for Measure resource
     Bundle.BundleEntryComponent measureEntryComponent =
         FhirResourceHelpers.getBundleEntryComponent(measure, "Transaction");
@@ -63,22 +87,14 @@ public class MeasureBundleService {
     log.info("Measure bundle entry created successfully {}", madieMeasure.getId());
     // Bundle entries for all the library resources of a MADiE Measure
     List<Bundle.BundleEntryComponent> libraryEntryComponents =
-        createBundleComponentsForLibrariesOfMadieMeasure(
-            expressions, madieMeasure, bundleType, accessToken);
+        createBundleComponentsForLibraries(
+            awaitStage(measureLibrary), awaitStage(includedLibraries));
     libraryEntryComponents.forEach(bundle::addEntry);
     log.info("Included library components created successfully {}", madieMeasure.getId());
 
     if (BundleUtil.MEASURE_BUNDLE_TYPE_EXPORT.equals(bundleType)) {
-      CqlLibraryDetails libraryDetails =
-          CqlLibraryDetails.builder()
-              .libraryName(madieMeasure.getCqlLibraryName())
-              .cql(madieMeasure.getCql())
-              .expressions(expressions)
-              .build();
-      // get effective DataRequirements
-      log.info("Getting effective data requirements for measure: {}", measure.getId());
       org.hl7.fhir.r5.model.Library effectiveDataRequirements =
-          elmTranslatorClient.getEffectiveDataRequirements(libraryDetails, true, accessToken);
+          awaitStage(effectiveDataRequirementsLookup);
       // get human-readable for measure
       String humanReadable =
           humanReadableService.generateMeasureHumanReadable(
@@ -88,10 +104,10 @@ public class MeasureBundleService {
       addEffectiveDataRequirementsToMeasure(measure, effectiveDataRequirements);
 
       // set narrative to measure library
-      var measureLibrary =
+      var mainLibrary =
           (org.hl7.fhir.r4.model.Library) ResourceUtils.getResource(bundle, "Library");
-      String libraryHr = humanReadableService.generateLibraryHumanReadable(measureLibrary);
-      setNarrativeText(measureLibrary, libraryHr);
+      String libraryHr = humanReadableService.generateLibraryHumanReadable(mainLibrary);
+      setNarrativeText(mainLibrary, libraryHr);
     }
     return bundle;
   }
@@ -107,16 +123,15 @@ public class MeasureBundleService {
       Measure madieMeasure,
       final String bundleType,
       final String accessToken) {
-    Library library =
-        getMeasureLibraryResourceForMadieMeasure(expressions, madieMeasure, accessToken);
-    if (madieMeasure.getMeasureMetaData().getSteward() != null) {
-      library.setPublisher(madieMeasure.getMeasureMetaData().getSteward().getName());
-    }
+    return createBundleComponentsForLibraries(
+        getMeasureLibrary(expressions, madieMeasure, accessToken),
+        getIncludedLibraries(madieMeasure.getCql(), bundleType, accessToken));
+  }
+
+  private List<Bundle.BundleEntryComponent> createBundleComponentsForLibraries(
+      Library library, Map<String, Library> includedLibraryMap) {
     Bundle.BundleEntryComponent mainLibraryBundleComponent =
         FhirResourceHelpers.getBundleEntryComponent(library, "Transaction");
-    Map<String, Library> includedLibraryMap = new HashMap<>();
-    libraryService.getIncludedLibraries(
-        madieMeasure.getCql(), includedLibraryMap, bundleType, accessToken);
     List<Bundle.BundleEntryComponent> libraryBundleComponents =
         includedLibraryMap.values().stream()
             .map((lib) -> FhirResourceHelpers.getBundleEntryComponent(lib, "Transaction"))
@@ -126,6 +141,47 @@ public class MeasureBundleService {
     return libraryBundleComponents;
   }
 
+  private Library getMeasureLibrary(
+      Set<String> expressions, Measure madieMeasure, String accessToken) {
+    Library library =
+        getMeasureLibraryResourceForMadieMeasure(expressions, madieMeasure, accessToken);
+    if (madieMeasure.getMeasureMetaData().getSteward() != null) {
+      library.setPublisher(madieMeasure.getMeasureMetaData().getSteward().getName());
+    }
+    return library;
+  }
+
+  private Map<String, Library> getIncludedLibraries(
+      String cql, String bundleType, String accessToken) {
+    // insertion ordered, so the included libraries keep their include order in the bundle
+    Map<String, Library> includedLibraryMap = new LinkedHashMap<>();
+    libraryService.getIncludedLibraries(cql, includedLibraryMap, bundleType, accessToken);
+    return includedLibraryMap;
+  }
+
+  private org.hl7.fhir.r5.model.Library getEffectiveDataRequirements(
+      Measure madieMeasure, Set<String> expressions, String accessToken) {
+    CqlLibraryDetails libraryDetails =
+        CqlLibraryDetails.builder()
+            .libraryName(madieMeasure.getCqlLibraryName())
+            .cql(madieMeasure.getCql())
+            .expressions(expressions)
+            .build();
+    log.info("Getting effective data requirements for measure: {}", madieMeasure.getId());
+    return elmTranslatorClient.getEffectiveDataRequirements(libraryDetails, true, accessToken);
+  }
+
+  private <T> T awaitStage(CompletableFuture<T> stage) {
+    try {
+      return stage.join();
+    } catch (CompletionException ex) {
+      if (ex.getCause() instanceof RuntimeException cause) {
+        throw cause;
+      }
+      throw ex;
+    }
+  }
+
   /**
    * Creates a Library resource for main library of MADiE Measure
    *
@@ -5,7 +5,9 @@ import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.context.RuntimeResourceDefinition;
 import ca.uhn.fhir.parser.IParser;
 import ca.uhn.fhir.util.BundleUtil;
+import ca.uhn.fhir.util.FhirTerser;
 import ca.uhn.fhir.util.OperationOutcomeUtil;
+import ca.uhn.fhir.util.bundle.BundleEntryParts;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import gov.cms.madie.madiefhirservice.exceptions.HapiJsonException;
 import gov.cms.madie.models.measure.HapiOperationOutcome;
@@ -13,9 +15,13 @@ import lombok.AllArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 
 import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.instance.model.api.IBase;
 import org.hl7.fhir.instance.model.api.IBaseBundle;
 import org.hl7.fhir.instance.model.api.IBaseOperationOutcome;
+import org.hl7.fhir.instance.model.api.IBaseReference;
 import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
 
@@ -33,8 +39,14 @@ import java.util.Set;
 @AllArgsConstructor
 public class ResourceValidationService {
 
+  private static final String BUDGET_EXHAUSTED =
+      "Validation stopped after reaching the error limit; remaining entries were not validated.";
+
   private ObjectMapper mapper;
 
+  /** Outcome of a validation run under an error budget, and whether the budget cut it short. */
+  public record BudgetedOutcome(IBaseOperationOutcome outcome, boolean stoppedEarly) {}
+
   public IBaseOperationOutcome validateBundleResourcesProfiles(
       FhirContext fhirContext, IBaseBundle bundleResource) {
     List<IBaseResource> resources = BundleUtil.toListOfResources(fhirContext, bundleResource);
@@ -103,12 +115,114 @@ public class ResourceValidationService {
     return operationOutcome;
   }
 
+  /**
+   * Checks that every relative (Type/id) and urn: reference made by a bundle entry resolves to
+   * another entry of the same bundle. Absolute references to other servers are not checked.
+   */
+  public IBaseOperationOutcome validateBundleReferences(
+      FhirContext fhirContext, IBaseBundle bundleResource) {
+    List<BundleEntryParts> entries = BundleUtil.toListOfEntries(fhirContext, bundleResource);
+    Set<String> targets = new HashSet<>();
+    for (BundleEntryParts entry : entries) {
+      if (StringUtils.isNotBlank(entry.getFullUrl())) {
+        targets.add(entry.getFullUrl());
+      }
+      IBaseResource resource = entry.getResource();
+      if (resource != null && resource.getIdElement().hasIdPart()) {
+        targets.add(resource.fhirType() + "/" + resource.getIdElement().getIdPart());
+      }
+    }
+
+    FhirTerser terser = fhirContext.newTerser();
+    IBaseOperationOutcome operationOutcome = OperationOutcomeUtil.newInstance(fhirContext);
+    for (int index = 0; index < entries.size(); index++) {
+      IBaseResource resource = entries.get(index).getResource();
+      if (resource == null) {
+        continue;
+      }
+      for (IBaseReference reference :
+          terser.getAllPopulatedChildElementsOfType(resource, IBaseReference.class)) {
+        IIdType referenceElement = reference.getReferenceElement();
+        if (!isResolvable(referenceElement, targets)) {
+          OperationOutcomeUtil.addIssue(
+              fhirContext,
+              operationOutcome,
+              "warning",
+              formatUnresolvedReferenceMessage(resource, referenceElement.getValue()),
+              "Bundle.entry[" + index + "].resource",
+              "not-found");
+        }
+      }
+    }
+    return operationOutcome;
+  }
+
+  boolean isResolvable(IIdType referenceElement, Set<String> targets) {
+    String reference = referenceElement == null ? null : referenceElement.getValue();
+    if (StringUtils.isBlank(reference) || reference.startsWith("#")) {
+      // contained and identifier-only references
+      return true;
+    }
+    if (reference.startsWith("urn:")) {
+      return targets.contains(reference);
+    }
+    if (referenceElement.isAbsolute()) {
+      return true;
+    }
+    return targets.contains(
+        referenceElement.getResourceType() + "/" + referenceElement.getIdPart());
+  }
+
   public boolean isSuccessful(FhirContext fhirContext, IBaseOperationOutcome outcome) {
     return outcome == null
         || (!OperationOutcomeUtil.hasIssuesOfSeverity(fhirContext, outcome, "error")
             && !OperationOutcomeUtil.hasIssuesOfSeverity(fhirContext, outcome, "fatal"));
   }
 
+  /** Counts the issues of severity error or fatal in the given outcome. */
+  public int countErrors(FhirContext fhirContext, IBaseOperationOutcome outcome) {
+    if (outcome == null) {
+      return 0;
+    }
+    return (int)
+        fhirContext.newTerser().getValues(outcome, "issue.severity", IPrimitiveType.class).stream()
+            .map(IPrimitiveType::getValueAsString)
+            .filter(severity -> "error".equals(severity) || "fatal".equals(severity))
+            .count();
+  }
+
+  /**
+   * Keeps the issues of the outcome up to and including the errorBudget-th error or fatal issue.
+   * When issues are dropped, or validation had already stopped early, an information issue noting
+   * that validation stopped early is appended.
+   */
+  public BudgetedOutcome applyErrorBudget(
+      FhirContext fhirContext,
+      IBaseOperationOutcome outcome,
+      int errorBudget,
+      boolean stoppedEarly) {
+    IBaseOperationOutcome budgetedOutcome = OperationOutcomeUtil.newInstance(fhirContext);
+    BaseRuntimeChildDefinition issueChild =
+        fhirContext.getResourceDefinition(outcome).getChildByName("issue");
+    FhirTerser terser = fhirContext.newTerser();
+    boolean stopped = stoppedEarly;
+    int errors = 0;
+    for (IBase issue : issueChild.getAccessor().getValues(outcome)) {
+      if (errors >= errorBudget) {
+        stopped = true;
+        break;
+      }
+      issueChild.getMutator().addValue(budgetedOutcome, issue);
+      String severity = terser.getSinglePrimitiveValueOrNull(issue, "severity");
+      errors += "error".equals(severity) || "fatal".equals(severity) ? 1 : 0;
+    }
+    if (stopped) {
+      OperationOutcomeUtil.addIssue(
+          fhirContext, budgetedOutcome, "information", BUDGET_EXHAUSTED, "Bundle", "informational");
+    }
+    return new BudgetedOutcome(budgetedOutcome, stopped);
+  }
+
   public IBaseOperationOutcome combineOutcomes(
       FhirContext fhirContext, IBaseOperationOutcome... outcomes) {
 
@@ -138,12 +252,18 @@ public class ResourceValidationService {
         resource.fhirType(), profile);
   }
 
-  private String formatUniqueIdViolationMessage(final String resourceId) {
+  String formatUniqueIdViolationMessage(final String resourceId) {
     return String.format(
         "All resources in bundle must have unique ID regardless of type. Multiple resources detected with ID [%s]",
         resourceId);
   }
 
+  String formatUnresolvedReferenceMessage(IBaseResource resource, String reference) {
+    return String.format(
+        "Resource of type [%s] with Id [%s] has an unresolved reference [%s].",
+        resource.fhirType(), resource.getIdElement().getIdPart(), reference);
+  }
+
   private String formatMissingMetaProfileMessage(IBaseResource resource) {
     return String.format(
         "Resource of type [%s] is missing the Meta.profile. Resource Id: [%s]. "
@@ -0,0 +1,344 @@
+package gov.cms.madie.madiefhirservice.services;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.parser.StrictErrorHandler;
+import ca.uhn.fhir.util.BundleBuilder;
+import ca.uhn.fhir.util.FhirTerser;
+import ca.uhn.fhir.util.OperationOutcomeUtil;
+import ca.uhn.fhir.validation.FhirValidator;
+import ca.uhn.fhir.validation.ValidationResult;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import gov.cms.madie.models.measure.HapiOperationOutcome;
+import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseOperationOutcome;
+import org.hl7.fhir.instance.model.api.IBaseReference;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Validates a bundle read from a stream one entry at a time, so memory is bounded by the largest
+ * entry rather than the whole bundle. Only the ids and references of entries, and a shell of the
+ * bundle whose entry resources are empty stand-ins, are kept for the bundle-wide checks.
+ */
+@Slf4j
+@Service
+@AllArgsConstructor
+public class StreamingBundleValidationService {
+
+  private ResourceValidationService validationService;
+  private BundleEntryValidationService entryValidationService;
+  private ObjectMapper mapper;
+
+  /**
+   * Writes one line of NDJSON per entry that has issues, each an OperationOutcome whose issue
+   * locations point at Bundle.entry[n], as soon as the entry has been validated. The last line is a
+   * HapiOperationOutcome summarizing the bundle, carrying the issues of the bundle itself and the
+   * bundle-wide reference issues. Entries are only validated once the document is known to be a
+   * Bundle; entries that come before the resourceType are held until it has been read.
+   *
+   * @param fhirContext context of the model the bundle belongs to
+   * @param fhirValidator validator for the model the bundle belongs to
+   * @param bundleJson stream of the bundle JSON
+   * @param out stream the NDJSON lines are written to
+   */
+  public void validateBundleStream(
+      FhirContext fhirContext,
+      FhirValidator fhirValidator,
+      InputStream bundleJson,
+      OutputStream out)
+      throws IOException {
+    // strict like the parser of the non-streaming endpoints, so both reject the same bundles
+    IParser parser =
+        fhirContext
+            .newJsonParser()
+            .setParserErrorHandler(new StrictErrorHandler())
+            .setPrettyPrint(false);
+    Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    StreamState state = new StreamState(fhirContext, fhirValidator, parser, writer);
+    HapiOperationOutcome summary;
+    try (JsonParser jsonParser = mapper.getFactory().createParser(bundleJson)) {
+      summary = readBundle(jsonParser, state);
+    } catch (JsonProcessingException ex) {
+      summary =
+          validationService.invalidErrorOutcome(
+              fhirContext,
+              parser,
+              "An error occurred while parsing the resource",
+              ex.getOriginalMessage());
+    }
+    writeLine(writer, mapper.writeValueAsString(summary));
+  }
+
+  private HapiOperationOutcome readBundle(JsonParser jsonParser, StreamState state)
+      throws IOException {
+    if (jsonParser.nextToken() != JsonToken.START_OBJECT) {
+      return notABundleOutcome(state);
+    }
+    List<JsonNode> heldEntries = new ArrayList<>();
+    boolean isBundle = false;
+    while (jsonParser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = jsonParser.currentName();
+      JsonToken value = jsonParser.nextToken();
+      if ("resourceType".equals(field)) {
+        isBundle = "Bundle".equals(jsonParser.getText());
+        if (!isBundle) {
+          return notABundleOutcome(state);
+        }
+        for (JsonNode entry : heldEntries) {
+          acceptEntry(state, entry);
+        }
+        heldEntries.clear();
+      } else if ("entry".equals(field) && value == JsonToken.START_ARRAY) {
+        while (jsonParser.nextToken() != JsonToken.END_ARRAY) {
+          JsonNode entry = mapper.readTree(jsonParser);
+          if (isBundle) {
+            acceptEntry(state, entry);
+          } else {
+            heldEntries.add(entry);
+          }
+        }
+      } else {
+        state.shell.set(field, mapper.readTree(jsonParser));
+      }
+    }
+    return isBundle ? summarize(state) : notABundleOutcome(state);
+  }
+
+  private void acceptEntry(StreamState state, JsonNode entry) throws IOException {
+    if (entry != null && entry.isObject()) {
+      validateEntry(state, entry);
+      state.shellEntries.add(toShellEntry(entry));
+    }
+    state.entryIndex++;
+  }
+
+  /** Copies the entry with its resource replaced by an empty one of the same type, id and meta. */
+  private JsonNode toShellEntry(JsonNode entry) {
+    ObjectNode shellEntry = mapper.createObjectNode();
+    entry
+        .fields()
+        .forEachRemaining(
+            field -> {
+              if (!"resource".equals(field.getKey())) {
+                shellEntry.set(field.getKey(), field.getValue());
+              }
+            });
+    JsonNode resource = entry.get("resource");
+    if (resource != null && resource.isObject()) {
+      ObjectNode standIn = shellEntry.putObject("resource");
+      for (String field : List.of("resourceType", "id", "meta")) {
+        if (resource.has(field)) {
+          standIn.set(field, resource.get(field));
+        }
+      }
+    }
+    return shellEntry;
+  }
+
+  private void validateEntry(StreamState state, JsonNode entry) throws IOException {
+    String location = "Bundle.entry[" + state.entryIndex + "].resource";
+    if (entry.hasNonNull("fullUrl")) {
+      state.targets.add(entry.get("fullUrl").asText());
+    }
+    JsonNode resourceNode = entry.get("resource");
+    if (resourceNode == null || !resourceNode.isObject()) {
+      return;
+    }
+
+    FhirContext fhirContext = state.fhirContext;
+    IBaseResource resource;
+    try {
+      resource = state.parser.parseResource(resourceNode.toString());
+    } catch (DataFormatException ex) {
+      IBaseOperationOutcome outcome = OperationOutcomeUtil.newInstance(fhirContext);
+      OperationOutcomeUtil.addIssue(
+          fhirContext, outcome, "error", ex.getMessage(), location, "structure");
+      writeEntryOutcome(state, outcome);
+      return;
+    }
+
+    IBaseOperationOutcome idOutcome = validateEntryId(state, resource, location);
+    collectReferences(state, resource);
+    IBaseOperationOutcome profileOutcome =
+        validationService.validateBundleResourcesProfiles(
+            fhirContext, new BundleBuilder(fhirContext).addCollectionEntry(resource).getBundle());
+    state.badRequest |=
+        OperationOutcomeUtil.hasIssues(fhirContext, idOutcome)
+            || OperationOutcomeUtil.hasIssues(fhirContext, profileOutcome);
+    IBaseOperationOutcome instanceOutcome =
+        new ValidationResult(
+                fhirContext,
+                entryValidationService.validateEntry(
+                    state.fhirValidator, resource, state.entryIndex))
+            .toOperationOutcome();
+    writeEntryOutcome(
+        state,
+        validationService.combineOutcomes(fhirContext, profileOutcome, idOutcome, instanceOutcome));
+  }
+
+  private IBaseOperationOutcome validateEntryId(
+      StreamState state, IBaseResource resource, String location) {
+    IBaseOperationOutcome outcome = OperationOutcomeUtil.newInstance(state.fhirContext);
+    String resourceId = resource.getIdElement().getIdPart();
+    if (StringUtils.isBlank(resourceId)) {
+      OperationOutcomeUtil.addIssue(
+          state.fhirContext,
+          outcome,
+          "error",
+          "All resources must have an Id",
+          location,
+          "invalid");
+    } else if (!state.ids.add(resourceId) && state.duplicateIds.add(resourceId)) {
+      OperationOutcomeUtil.addIssue(
+          state.fhirContext,
+          outcome,
+          "error",
+          validationService.formatUniqueIdViolationMessage(resourceId),
+          location,
+          "invalid");
+    }
+    if (StringUtils.isNotBlank(resourceId)) {
+      state.targets.add(resource.fhirType() + "/" + resourceId);
+    }
+    return outcome;
+  }
+
+  private void collectReferences(StreamState state, IBaseResource resource) {
+    for (IBaseReference reference :
+        state.terser.getAllPopulatedChildElementsOfType(resource, IBaseReference.class)) {
+      IIdType referenceElement = reference.getReferenceElement();
+      if (referenceElement != null && StringUtils.isNotBlank(referenceElement.getValue())) {
+        state.references.add(
+            new PendingReference(
+                state.entryIndex,
+                referenceElement,
+                validationService.formatUnresolvedReferenceMessage(
+                    resource, referenceElement.getValue())));
+      }
+    }
+  }
+
+  private void writeEntryOutcome(StreamState state, IBaseOperationOutcome outcome)
+      throws IOException {
+    if (OperationOutcomeUtil.hasIssues(state.fhirContext, outcome)) {
+      state.successful &= validationService.isSuccessful(state.fhirContext, outcome);
+      writeLine(state.writer, state.parser.encodeResourceToString(outcome));
+    }
+  }
+
+  private HapiOperationOutcome summarize(StreamState state) {
+    FhirContext fhirContext = state.fhirContext;
+    IBaseOperationOutcome bundleOutcome = validateBundleShell(state);
+    IBaseOperationOutcome referenceOutcome = OperationOutcomeUtil.newInstance(fhirContext);
+    for (PendingReference reference : state.references) {
+      if (!validationService.isResolvable(reference.reference(), state.targets)) {
+        OperationOutcomeUtil.addIssue(
+            fhirContext,
+            referenceOutcome,
+            "warning",
+            reference.message(),
+            "Bundle.entry[" + reference.entryIndex() + "].resource",
+            "not-found");
+      }
+    }
+    IBaseOperationOutcome summaryOutcome =
+        validationService.combineOutcomes(fhirContext, bundleOutcome, referenceOutcome);
+    return validationService.encodeOutcome(
+        state.parser,
+        state.badRequest ? HttpStatus.BAD_REQUEST.value() : HttpStatus.OK.value(),
+        state.successful && validationService.isSuccessful(fhirContext, summaryOutcome),
+        "Validated " + state.entryIndex + " entries",
+        summaryOutcome);
+  }
+
+  /** Validates the bundle itself, from its shell, without validating the entry resources again. */
+  private IBaseOperationOutcome validateBundleShell(StreamState state) {
+    FhirContext fhirContext = state.fhirContext;
+    state.shell.put("resourceType", "Bundle");
+    state.shell.set("entry", state.shellEntries);
+    IBaseBundle shell;
+    try {
+      shell = (IBaseBundle) state.parser.parseResource(state.shell.toString());
+    } catch (DataFormatException ex) {
+      IBaseOperationOutcome outcome = OperationOutcomeUtil.newInstance(fhirContext);
+      OperationOutcomeUtil.addIssue(
+          fhirContext, outcome, "error", ex.getMessage(), "Bundle", "structure");
+      return outcome;
+    }
+    return new ValidationResult(
+            fhirContext, entryValidationService.validateBundleShell(state.fhirValidator, shell))
+        .toOperationOutcome();
+  }
+
+  private HapiOperationOutcome notABundleOutcome(StreamState state) {
+    return validationService.invalidErrorOutcome(
+        state.fhirContext,
+        state.parser,
+        "Resource must have resourceType of 'Bundle'",
+        "Resource must have resourceType of 'Bundle'");
+  }
+
+  private void writeLine(Writer writer, String line) throws IOException {
+    writer.write(line);
+    writer.write('\n');
+    // flush every line so clients see issues while the rest of the bundle is still being read
+    writer.flush();
+  }
+
+  private record PendingReference(int entryIndex, IIdType reference, String message) {}
+
+  private static class StreamState {
+    private final FhirContext fhirContext;
+    private final FhirValidator fhirValidator;
+    private final IParser parser;
+    private final Writer writer;
+    private final FhirTerser terser;
+    private final Set<String> ids = new HashSet<>();
+    private final Set<String> duplicateIds = new HashSet<>();
+    private final Set<String> targets = new HashSet<>();
+    private final List<PendingReference> references = new ArrayList<>();
+    // the bundle without its entries' resources, validated once the whole bundle has been read
+    private final ObjectNode shell;
+    private final ArrayNode shellEntries;
+    private int entryIndex;
+    private boolean badRequest;
+    private boolean successful = true;
+
+    private StreamState(
+        FhirContext fhirContext, FhirValidator fhirValidator, IParser parser, Writer writer) {
+      this.fhirContext = fhirContext;
+      this.fhirValidator = fhirValidator;
+      this.parser = parser;
+      this.writer = writer;
+      this.terser = fhirContext.newTerser();
+      this.shell = JsonNodeFactory.instance.objectNode();
+      this.shellEntries = JsonNodeFactory.instance.arrayNode();
+    }
+  }
+}
@@ -12,6 +12,7 @@ import lombok.extern.slf4j.Slf4j;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.Extension;
 import org.hl7.fhir.r4.model.StructureDefinition;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.stereotype.Service;
 
 import java.util.List;
@@ -22,7 +23,8 @@ import java.util.Objects;
 @AllArgsConstructor
 public class StructureDefinitionService {
 
-  private IValidationSupport validationSupportChainQiCore600;
+  // lazy so the 6.0.0 packages are only loaded once a structure definition is requested
+  @Lazy private IValidationSupport validationSupportChainQiCore600;
 
   /**
    * Fetches the structure definition for the given resource
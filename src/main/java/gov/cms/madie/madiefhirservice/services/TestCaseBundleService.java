@@ -1,24 +1,25 @@
 package gov.cms.madie.madiefhirservice.services;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.TimeZone;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 import java.util.stream.Collectors;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
-import java.util.zip.ZipOutputStream;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -29,6 +30,7 @@ import org.hl7.fhir.r4.model.BooleanType;
 import org.hl7.fhir.r4.model.Bundle;
 
 import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.IdType;
 import org.hl7.fhir.r4.model.MarkdownType;
 import org.hl7.fhir.r4.model.MeasureReport;
 import org.hl7.fhir.r4.model.Meta;
@@ -38,23 +40,24 @@ import org.hl7.fhir.r4.model.Resource;
 import org.hl7.fhir.r4.model.StringType;
 import org.springframework.stereotype.Service;
 import org.springframework.util.CollectionUtils;
-import org.springframework.web.client.RestClientException;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.parser.DataFormatException;
 import ca.uhn.fhir.parser.IParser;
 import ca.uhn.fhir.parser.StrictErrorHandler;
+import ca.uhn.fhir.util.FhirTerser;
 import gov.cms.madie.madiefhirservice.constants.UriConstants;
+import gov.cms.madie.madiefhirservice.dto.EncodingFormat;
+import gov.cms.madie.madiefhirservice.dto.TestCaseExportOptions;
 import gov.cms.madie.madiefhirservice.exceptions.BundleOperationException;
 import gov.cms.madie.madiefhirservice.exceptions.InternalServerException;
 import gov.cms.madie.madiefhirservice.exceptions.ResourceNotFoundException;
 import gov.cms.madie.madiefhirservice.utils.ExportFileNamesUtil;
+import gov.cms.madie.madiefhirservice.utils.ExportZipWriter;
 import gov.cms.madie.madiefhirservice.utils.FhirResourceHelpers;
 import gov.cms.madie.models.common.BundleType;
 import gov.cms.madie.models.dto.ExportDTO;
 import gov.cms.madie.models.measure.Measure;
 import gov.cms.madie.models.measure.TestCase;
-import gov.cms.madie.packaging.utils.PackagingUtility;
-import gov.cms.madie.packaging.utils.PackagingUtilityFactory;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 
@@ -63,53 +66,62 @@ import lombok.extern.slf4j.Slf4j;
 @RequiredArgsConstructor
 public class TestCaseBundleService {
 
+  // user data key under which an exported bundle keeps its already encoded JSON, as UTF-8 bytes
+  static final String EXPORT_JSON_USER_DATA = "madie.export.json";
+
   private final FhirContext qicoreFhirContext;
+  private final Executor exportTaskExecutor;
+  private final ExportZipWriter exportZipWriter;
+
+  // HAPI parsers are not thread-safe, so every thread exporting test cases gets its own
+  private final ThreadLocal<IParser> exportParser =
+      ThreadLocal.withInitial(
+          () ->
+              this.qicoreFhirContext
+                  .newJsonParser()
+                  .setParserErrorHandler(new StrictErrorHandler())
+                  .setPrettyPrint(true));
 
+  /**
+   * @param options layout of the encoded bundles, whether to export the test cases concurrently on
+   *     the export executor, and a callback run once per test case after it has been exported or
+   *     skipped
+   * @return test case bundles keyed by export file name, in test case order
+   */
   public Map<String, Bundle> getTestCaseExportBundle(
-      Measure measure, List<TestCase> testCases, ExportDTO exportDTO) {
+      Measure measure,
+      List<TestCase> testCases,
+      ExportDTO exportDTO,
+      TestCaseExportOptions options) {
     if (measure == null || testCases == null || testCases.isEmpty()) {
       throw new InternalServerException("Unable to find Measure and/or test case");
     }
 
-    IParser parser =
-        qicoreFhirContext
-            .newJsonParser()
-            .setParserErrorHandler(new StrictErrorHandler())
-            .setPrettyPrint(true);
-
-    Map<String, Bundle> testCaseBundle = new HashMap<>();
-    for (TestCase testCase : testCases) {
-      Bundle bundle;
-      try {
-        // If the test case is empty or malformed skip adding it to the map
-        if (testCase.getJson() == null || testCase.getJson().isEmpty()) {
-          throw new DataFormatException("TestCase Json is empty");
-        }
-        bundle = parser.parseResource(Bundle.class, testCase.getJson());
-      } catch (DataFormatException | ClassCastException ex) {
-        log.error(
-            "Unable to parse test case bundle resource for test case [{}] from Measure [{}]",
-            testCase.getId(),
-            measure.getId());
-        continue;
+    EncodingFormat format = options.getFormat();
+    Runnable onTestCaseProcessed = options.getOnTestCaseProcessed();
+    Map<String, Bundle> testCaseBundle = new LinkedHashMap<>();
+    if (options.isParallel()) {
+      List<CompletableFuture<Bundle>> exports =
+          testCases.stream()
+              .map(
+                  testCase ->
+                      CompletableFuture.supplyAsync(
+                              () -> exportTestCase(measure, testCase, exportDTO, format),
+                              exportTaskExecutor)
+                          .whenComplete((bundle, ex) -> onTestCaseProcessed.run()))
+              .toList();
+      for (int i = 0; i < testCases.size(); i++) {
+        addExport(testCaseBundle, measure, testCases.get(i), awaitExport(exports.get(i)));
       }
-
-      // MAT-6204 Here we're modifying the bundle based on export choice,
-      // but we don't want to modify it permanently
-      if (exportDTO.getBundleType() != null) {
-        BundleType bundleType = BundleType.valueOf(exportDTO.getBundleType().name());
-        bundle = updateEntry(bundle, bundleType, parser, testCase.getPatientId().toString());
-        String json = parser.encodeResourceToString(bundle);
-        testCase.setJson(json);
+    } else {
+      for (TestCase testCase : testCases) {
+        addExport(
+            testCaseBundle,
+            measure,
+            testCase,
+            exportTestCase(measure, testCase, exportDTO, format));
+        onTestCaseProcessed.run();
       }
-
-      String fileName = ExportFileNamesUtil.getTestCaseExportFileName(measure, testCase);
-      var measureReport = buildMeasureReport(testCase, measure, bundle);
-      var bundleEntryComponent =
-          FhirResourceHelpers.getBundleEntryComponent(
-              measureReport, String.valueOf(bundle.getType()));
-      bundle.getEntry().add(bundleEntryComponent);
-      testCaseBundle.put(fileName, bundle);
     }
 
     // Don't return an empty zip file
@@ -120,48 +132,158 @@ public class TestCaseBundleService {
     return testCaseBundle;
   }
 
-  public Bundle updateEntry(
-      Bundle bundle, BundleType bundleType, IParser parser, String patientId) {
+  /**
+   * @param testCases test cases that were exported
+   * @param exportableTestCaseBundle bundles returned by getTestCaseExportBundle
+   * @return the test cases that made it into the export, without those that couldn't be parsed
+   */
+  public List<TestCase> getExportedTestCases(
+      List<TestCase> testCases, Map<String, Bundle> exportableTestCaseBundle) {
+    if (testCases.size() == exportableTestCaseBundle.size()) {
+      return testCases;
+    }
+    return testCases.stream()
+        .filter(
+            testCase ->
+                exportableTestCaseBundle.keySet().stream()
+                    .anyMatch(s -> s.contains(testCase.getPatientId().toString())))
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * Parses the test case once and encodes the finished bundle once, keeping the encoded bytes on
+   * the bundle for the zip entry. When a bundle type was chosen the updated bundle, without the
+   * measure report, is also handed back on the test case.
+   *
+   * @return the test case bundle with its measure report, or null if the test case JSON could not
+   *     be parsed
+   */
+  private Bundle exportTestCase(
+      Measure measure, TestCase testCase, ExportDTO exportDTO, EncodingFormat format) {
+    IParser parser = exportParser.get().setPrettyPrint(format.isPrettyPrint());
+    Bundle bundle;
+    try {
+      // If the test case is empty or malformed skip adding it to the map
+      if (testCase.getJson() == null || testCase.getJson().isEmpty()) {
+        throw new DataFormatException("TestCase Json is empty");
+      }
+      bundle = parser.parseResource(Bundle.class, testCase.getJson());
+    } catch (DataFormatException | ClassCastException ex) {
+      log.error(
+          "Unable to parse test case bundle resource for test case [{}] from Measure [{}]",
+          testCase.getId(),
+          measure.getId());
+      return null;
+    }
+
+    // MAT-6204 Here we're modifying the bundle based on export choice,
+    // but we don't want to modify it permanently
+    if (exportDTO.getBundleType() != null) {
+      BundleType bundleType = BundleType.valueOf(exportDTO.getBundleType().name());
+      bundle = updateEntry(bundle, bundleType, testCase.getPatientId().toString());
+      testCase.setJson(parser.encodeResourceToString(bundle));
+    }
+
+    var measureReport = buildMeasureReport(testCase, measure, bundle);
+    var bundleEntryComponent =
+        FhirResourceHelpers.getBundleEntryComponent(
+            measureReport, String.valueOf(bundle.getType()));
+    bundle.getEntry().add(bundleEntryComponent);
+
+    bundle.setUserData(
+        EXPORT_JSON_USER_DATA,
+        parser.encodeResourceToString(bundle).getBytes(StandardCharsets.UTF_8));
+    return bundle;
+  }
+
+  private void addExport(
+      Map<String, Bundle> testCaseBundle, Measure measure, TestCase testCase, Bundle bundle) {
+    if (bundle != null) {
+      testCaseBundle.put(ExportFileNamesUtil.getTestCaseExportFileName(measure, testCase), bundle);
+    }
+  }
+
+  private Bundle awaitExport(CompletableFuture<Bundle> export) {
+    try {
+      return export.join();
+    } catch (CompletionException ex) {
+      if (ex.getCause() instanceof RuntimeException cause) {
+        throw cause;
+      }
+      throw ex;
+    }
+  }
+
+  public Bundle updateEntry(Bundle bundle, BundleType bundleType, String patientId) {
     Bundle bundleCopy = bundle.copy();
     org.hl7.fhir.r4.model.Bundle.BundleType fhirBundleType =
         org.hl7.fhir.r4.model.Bundle.BundleType.valueOf(bundleType.toString().toUpperCase());
     bundleCopy.setType(fhirBundleType);
 
-    // Generating a new UUID for each resource and updating all its references across the bundle.
-    // for example replaces string that matches "Patient/patient-id" with
+    // Generating a new UUID for each resource, for example "Patient/patient-id" becomes
     // "Patient/madie-generated-uuid"
-    String bundleString = parser.encodeResourceToString(bundleCopy);
+    Map<String, String> newIds = new HashMap<>();
     for (Bundle.BundleEntryComponent entry : bundleCopy.getEntry()) {
-      var resourceType = entry.getResource().getResourceType() + "/";
-      var resourceID = resourceType.equals("Patient/") ? patientId : UUID.randomUUID().toString();
-      bundleString =
-          bundleString.replaceAll(
-              resourceType + entry.getResource().getIdPart(), resourceType + resourceID);
+      Resource resource = entry.getResource();
+      if (resource != null && resource.getIdElement().hasIdPart()) {
+        newIds.putIfAbsent(
+            resource.fhirType() + "/" + resource.getIdPart(),
+            "Patient".equals(resource.fhirType()) ? patientId : UUID.randomUUID().toString());
+      }
     }
-    bundleCopy = parser.parseResource(Bundle.class, bundleString);
 
-    // Modifying Request attribute for each Resource
-    // Also updating the resource Id with the MADiE generated UUID
-    bundleCopy.setEntry(
-        bundleCopy.getEntry().stream()
-            .map(
-                entry -> {
-                  entry
-                      .getResource()
-                      .setId(StringUtils.substringAfterLast(entry.getFullUrl(), "/"));
-                  if (bundleType == BundleType.TRANSACTION) {
-                    FhirResourceHelpers.setRequestForResourceEntry(
-                        entry.getResource(), entry, Bundle.HTTPVerb.PUT);
-                    return entry;
-                  } else if (bundleType == BundleType.COLLECTION) {
-                    entry.setRequest(null);
-                  }
-                  return entry;
-                })
-            .collect(Collectors.toList()));
+    // Updating the resource Id, fullUrl and every reference across the bundle in one walk
+    // Also modifying Request attribute for each Resource
+    FhirTerser terser = qicoreFhirContext.newTerser();
+    for (Bundle.BundleEntryComponent entry : bundleCopy.getEntry()) {
+      Resource resource = entry.getResource();
+      if (resource == null) {
+        continue;
+      }
+      String newId = newIds.get(resource.fhirType() + "/" + resource.getIdPart());
+      if (newId != null) {
+        resource.setId(newId);
+      }
+      if (entry.hasFullUrl()) {
+        entry.setFullUrl(rewriteReference(entry.getFullUrl(), newIds));
+      }
+      for (Reference reference :
+          terser.getAllPopulatedChildElementsOfType(resource, Reference.class)) {
+        if (reference.hasReference()) {
+          reference.setReference(rewriteReference(reference.getReference(), newIds));
+        }
+      }
+      if (bundleType == BundleType.TRANSACTION) {
+        FhirResourceHelpers.setRequestForResourceEntry(resource, entry, Bundle.HTTPVerb.PUT);
+      } else if (bundleType == BundleType.COLLECTION) {
+        entry.setRequest(null);
+      }
+    }
     return bundleCopy;
   }
 
+  /**
+   * @param reference relative or absolute reference, e.g. https://madie.cms.gov/Patient/Patient-1
+   * @param newIds new resource ids keyed by the old "type/id"
+   * @return the reference pointing at the new id, keeping its base url and version
+   */
+  private String rewriteReference(String reference, Map<String, String> newIds) {
+    IdType referenceId = new IdType(reference);
+    if (!referenceId.hasResourceType() || !referenceId.hasIdPart()) {
+      return reference;
+    }
+    String newId = newIds.get(referenceId.getResourceType() + "/" + referenceId.getIdPart());
+    if (newId == null) {
+      return reference;
+    }
+    return new IdType(
+            referenceId.getBaseUrl(),
+            referenceId.getResourceType(),
+            newId,
+            referenceId.getVersionIdPart())
+        .getValue();
+  }
+
   private MeasureReport buildMeasureReport(
       TestCase testCase, Measure measure, Bundle testCaseBundle) {
     MeasureReport measureReport = new MeasureReport();
@@ -368,7 +490,53 @@ public class TestCaseBundleService {
   }
 
   /**
-   * Combines the zip from Packaging Utility and a generated ReadMe file for the testcases
+   * Writes the README, the .madie metadata file and every test case bundle into one zip on the
+   * given stream, compressed as configured for exports. Bundles are written as JSON named after
+   * their export file name, reusing the JSON encoded during the export in the requested format;
+   * bundles that don't carry it are encoded pretty printed.
+   *
+   * @param measure MADiE Measure
+   * @param exportableTestCaseBundle Exportable TestCase bundles that includes measure report
+   * @param testCases List of test cases to be exported, used to generate ReadMe
+   * @param out stream the zip is written to, left open
+   */
+  public void writeTestCaseZip(
+      Measure measure,
+      Map<String, Bundle> exportableTestCaseBundle,
+      List<TestCase> testCases,
+      OutputStream out)
+      throws IOException {
+    String readMe = generateReadMe(testCases);
+    String madieMetadata = generateMadieMetadataFile(testCases);
+    List<ExportZipWriter.Entry> entries = new ArrayList<>(exportableTestCaseBundle.size() + 2);
+    entries.add(
+        new ExportZipWriter.Entry("README.txt", () -> readMe.getBytes(StandardCharsets.UTF_8)));
+    entries.add(
+        new ExportZipWriter.Entry(".madie", () -> madieMetadata.getBytes(StandardCharsets.UTF_8)));
+    for (Map.Entry<String, Bundle> testCaseBundle : exportableTestCaseBundle.entrySet()) {
+      Bundle bundle = testCaseBundle.getValue();
+      entries.add(
+          new ExportZipWriter.Entry(testCaseBundle.getKey() + ".json", () -> zipEntryJson(bundle)));
+    }
+    exportZipWriter.write(entries, out);
+    log.info(
+        "Zipped [{}] test case bundles for measure [{}]",
+        exportableTestCaseBundle.size(),
+        measure.getId());
+  }
+
+  private byte[] zipEntryJson(Bundle bundle) {
+    return bundle.getUserData(EXPORT_JSON_USER_DATA) instanceof byte[] encoded
+        ? encoded
+        : exportParser
+            .get()
+            .setPrettyPrint(true)
+            .encodeResourceToString(bundle)
+            .getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Builds the same zip as {@link #writeTestCaseZip} in memory.
    *
    * @param measure MADiE Measure
    * @param exportableTestCaseBundle Exportable TestCase bundles that includes measure report
@@ -378,46 +546,9 @@ public class TestCaseBundleService {
   public byte[] zipTestCaseContents(
       Measure measure, Map<String, Bundle> exportableTestCaseBundle, List<TestCase> testCases) {
     try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-
-      PackagingUtility utility = PackagingUtilityFactory.getInstance(measure.getModel());
-      byte[] bytes = utility.getZipBundle(exportableTestCaseBundle, null);
-
-      try (ZipOutputStream zos = new ZipOutputStream(baos);
-          ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(bytes))) {
-
-        // Add the README file to the zip
-        String readme = generateReadMe(testCases);
-        ZipEntry entry = new ZipEntry("README.txt");
-        entry.setSize(readme.length());
-        zos.putNextEntry(entry);
-        zos.write(readme.getBytes());
-        // Add the .madie metadata file
-        String metadata = generateMadieMetadataFile(testCases);
-        ZipEntry metaDataEntry = new ZipEntry(".madie");
-        entry.setSize(metadata.length());
-        zos.putNextEntry(metaDataEntry);
-        zos.write(metadata.getBytes());
-        // Add the TestCases back the zip
-        ZipEntry zipEntry = zis.getNextEntry();
-        while (zipEntry != null) {
-          zos.putNextEntry(zipEntry);
-          zos.write(zis.readAllBytes());
-          zipEntry = zis.getNextEntry();
-        }
-      }
-
-      // return after the zip streams are closed
+      writeTestCaseZip(measure, exportableTestCaseBundle, testCases, baos);
       return baos.toByteArray();
-    } catch (RestClientException
-        | IllegalArgumentException
-        | InstantiationException
-        | IllegalAccessException
-        | InvocationTargetException
-        | NoSuchMethodException
-        | SecurityException
-        | ClassNotFoundException
-        | IOException ex) {
-
+    } catch (IOException ex) {
       log.error("An error occurred while bundling testcases for measure {}", measure.getId(), ex);
       throw new BundleOperationException("Measure", measure.getId(), ex);
     }
@@ -1,109 +1,198 @@
 package gov.cms.madie.madiefhirservice.services;
 
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementCompositeDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementDefinition;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.parser.DataFormatException;
 import ca.uhn.fhir.parser.IParser;
 import ca.uhn.fhir.parser.StrictErrorHandler;
+import gov.cms.madie.madiefhirservice.dto.DateShiftOptions;
 import gov.cms.madie.models.measure.TestCase;
-import lombok.AllArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.time.DateUtils;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
 import org.hl7.fhir.r4.model.Base;
 import org.hl7.fhir.r4.model.BaseDateTimeType;
 import org.hl7.fhir.r4.model.Bundle;
-import org.hl7.fhir.r4.model.Property;
 import org.springframework.stereotype.Service;
 
-import java.lang.reflect.Field;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 
 @Slf4j
 @Service
-@AllArgsConstructor
 public class TestCaseDateShifterService {
 
-  private FhirContext qicoreFhirContext;
+  private final FhirContext qicoreFhirContext;
+  private final Executor dateShiftTaskExecutor;
+  private final JsonDateShifter jsonDateShifter;
+
+  // HAPI parsers are not thread-safe, so every thread shifting test cases gets its own
+  private final ThreadLocal<IParser> shiftParser = ThreadLocal.withInitial(this::getIParser);
+
+  public TestCaseDateShifterService(FhirContext qicoreFhirContext, Executor dateShiftTaskExecutor) {
+    this.qicoreFhirContext = qicoreFhirContext;
+    this.dateShiftTaskExecutor = dateShiftTaskExecutor;
+    this.jsonDateShifter = new JsonDateShifter(qicoreFhirContext, this::shiftDate);
+  }
 
   public TestCase shiftDates(TestCase testCase, int shiftBy) {
+    return shiftDates(testCase, shiftBy, DateShiftOptions.defaults());
+  }
+
+  public List<TestCase> shiftDates(List<TestCase> testCases, int shiftBy) {
+    return shiftDates(testCases, shiftBy, DateShiftOptions.defaults());
+  }
+
+  /**
+   * Same as {@link #shiftDates(List, int, DateShiftOptions)} for a single test case.
+   *
+   * @return the shifted test case, or null if it is empty or invalid
+   */
+  public TestCase shiftDates(TestCase testCase, int shiftBy, DateShiftOptions options) {
     if (testCase == null) {
       return null;
     }
-    List<TestCase> shiftedTestCases = shiftDates(List.of(testCase), shiftBy);
+    List<TestCase> shiftedTestCases =
+        shiftDates(List.of(testCase), shiftBy, options.toBuilder().parallel(false).build());
     if (CollectionUtils.isNotEmpty(shiftedTestCases) && shiftedTestCases.size() == 1) {
       return shiftedTestCases.get(0);
     }
     return null;
   }
 
-  public List<TestCase> shiftDates(List<TestCase> testCases, int shiftBy) {
+  /**
+   * @param options layout of the shifted JSON, and whether to shift concurrently or keep the
+   *     formatting of the test case JSON
+   * @return the shifted test cases in input order, without those that are empty or invalid
+   */
+  public List<TestCase> shiftDates(
+      List<TestCase> testCases, int shiftBy, DateShiftOptions options) {
     if (CollectionUtils.isEmpty(testCases)) {
       return Collections.emptyList();
     }
     List<TestCase> shiftedTestCases = new ArrayList<>();
 
-    IParser parser = getIParser();
-    for (TestCase testCase : new ArrayList<>(testCases)) {
-      try {
-        if (StringUtils.isBlank(testCase.getJson())) {
-          throw new DataFormatException("Empty test case");
-        }
-        // convert test case json to bundle
-        Bundle bundle = parser.parseResource(Bundle.class, testCase.getJson());
-        // update the test case dates
-        bundle.getEntry().forEach(entry -> shiftDates(entry.getResource(), shiftBy));
-        // convert the updated bundle to string and assign back to test case.
-        String json = parser.encodeResourceToString(bundle);
-        testCase.setJson(json);
-        shiftedTestCases.add(testCase);
-      } catch (DataFormatException dfe) {
-        log.info("skipping the test case with id [{}] as it is empty or invalid", testCase.getId());
+    if (options.isParallel()) {
+      List<CompletableFuture<TestCase>> shifts =
+          testCases.stream()
+              .map(
+                  testCase ->
+                      CompletableFuture.supplyAsync(
+                          () -> shiftTestCase(testCase, shiftBy, options), dateShiftTaskExecutor))
+              .toList();
+      for (CompletableFuture<TestCase> shift : shifts) {
+        addShifted(shiftedTestCases, awaitShift(shift));
+      }
+    } else {
+      for (TestCase testCase : new ArrayList<>(testCases)) {
+        addShifted(shiftedTestCases, shiftTestCase(testCase, shiftBy, options));
       }
     }
     return shiftedTestCases;
   }
 
+  /** @return the shifted test case, or null if it is empty or invalid */
+  private TestCase shiftTestCase(TestCase testCase, int shiftBy, DateShiftOptions options) {
+    if (options.isPreserveFormatting() && StringUtils.isNotBlank(testCase.getJson())) {
+      String json = jsonDateShifter.shiftDates(testCase.getJson(), shiftBy);
+      if (json != null) {
+        testCase.setJson(json);
+        return testCase;
+      }
+    }
+    IParser parser = shiftParser.get().setPrettyPrint(options.getFormat().isPrettyPrint());
+    try {
+      if (StringUtils.isBlank(testCase.getJson())) {
+        throw new DataFormatException("Empty test case");
+      }
+      // convert test case json to bundle
+      Bundle bundle = parser.parseResource(Bundle.class, testCase.getJson());
+      // update the test case dates
+      bundle.getEntry().forEach(entry -> shiftDates(entry.getResource(), shiftBy));
+      // convert the updated bundle to string and assign back to test case.
+      String json = parser.encodeResourceToString(bundle);
+      testCase.setJson(json);
+      return testCase;
+    } catch (DataFormatException dfe) {
+      log.info("skipping the test case with id [{}] as it is empty or invalid", testCase.getId());
+      return null;
+    }
+  }
+
+  private void addShifted(List<TestCase> shiftedTestCases, TestCase testCase) {
+    if (testCase != null) {
+      shiftedTestCases.add(testCase);
+    }
+  }
+
+  private TestCase awaitShift(CompletableFuture<TestCase> shift) {
+    try {
+      return shift.join();
+    } catch (CompletionException ex) {
+      if (ex.getCause() instanceof RuntimeException cause) {
+        throw cause;
+      }
+      throw ex;
+    }
+  }
+
   void shiftDates(Base baseResource, int shiftBy) {
-    List<Field> fields = new LinkedList<>();
-    getAllFields(fields, baseResource.getClass());
-    for (Field field : fields) {
-      Property property = baseResource.getNamedProperty(field.getName());
-      if (property != null) {
-        List<Base> values = property.getValues();
-        for (Base value : values) {
-          if (value.isPrimitive()) {
-            if (value.isDateTime()) {
-              BaseDateTimeType dateType = (BaseDateTimeType) value;
-              // HAPI will build partial objects when given partial data, like only an extension.
-              // Verify the target date value is non-null.
-              if (dateType.getValue() != null) {
-                Instant date = dateType.getValue().toInstant();
-                ZonedDateTime shifted = date.atZone(ZoneId.of("UTC")).plusYears(shiftBy);
-                if (shifted.getYear() > 9999) {
-                  dateType.setValue(DateUtils.setYears(dateType.getValue(), 9999));
-                } else if (shifted.getYear() < 1900) {
-                  dateType.setValue(DateUtils.setYears(dateType.getValue(), 1900));
-                } else {
-                  dateType.add(1, shiftBy);
-                }
-              }
-            }
-          } else {
-            shiftDates(value, shiftBy);
+    BaseRuntimeElementDefinition<?> definition =
+        baseResource instanceof IBaseResource resource
+            ? qicoreFhirContext.getResourceDefinition(resource)
+            : qicoreFhirContext.getElementDefinition(baseResource.getClass());
+    if (definition instanceof BaseRuntimeElementCompositeDefinition<?> composite) {
+      shiftDates(baseResource, composite, shiftBy);
+    }
+  }
+
+  /**
+   * Walks the element using HAPI's model definitions, whose child lists are built once per type by
+   * the FhirContext, rather than reflecting over the fields of every node.
+   */
+  private void shiftDates(
+      IBase element, BaseRuntimeElementCompositeDefinition<?> definition, int shiftBy) {
+    for (BaseRuntimeChildDefinition child : definition.getChildren()) {
+      for (IBase value : child.getAccessor().getValues(element)) {
+        if (value instanceof BaseDateTimeType dateType) {
+          shiftDate(dateType, shiftBy);
+        } else if (!(value instanceof IPrimitiveType<?>)) {
+          BaseRuntimeElementDefinition<?> childDefinition =
+              value instanceof IBaseResource resource
+                  ? qicoreFhirContext.getResourceDefinition(resource)
+                  : child.getChildElementDefinitionByDatatype(value.getClass());
+          if (childDefinition instanceof BaseRuntimeElementCompositeDefinition<?> composite) {
+            shiftDates(value, composite, shiftBy);
           }
         }
       }
     }
   }
 
-  private static void getAllFields(List<Field> fields, Class<?> type) {
-    fields.addAll(List.of(type.getDeclaredFields()));
-    if (type.getSuperclass() != null) {
-      getAllFields(fields, type.getSuperclass());
+  private void shiftDate(BaseDateTimeType dateType, int shiftBy) {
+    // HAPI will build partial objects when given partial data, like only an extension.
+    // Verify the target date value is non-null.
+    if (dateType.getValue() != null) {
+      Instant date = dateType.getValue().toInstant();
+      ZonedDateTime shifted = date.atZone(ZoneId.of("UTC")).plusYears(shiftBy);
+      if (shifted.getYear() > 9999) {
+        dateType.setValue(DateUtils.setYears(dateType.getValue(), 9999));
+      } else if (shifted.getYear() < 1900) {
+        dateType.setValue(DateUtils.setYears(dateType.getValue(), 1900));
+      } else {
+        dateType.add(1, shiftBy);
+      }
     }
   }
 
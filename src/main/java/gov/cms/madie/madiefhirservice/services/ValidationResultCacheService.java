@@ -0,0 +1,130 @@
+package gov.cms.madie.madiefhirservice.services;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import gov.cms.madie.madiefhirservice.dto.ValidationOptions;
+import gov.cms.madie.madiefhirservice.utils.NpmPackageUtil;
+import gov.cms.madie.models.common.ModelType;
+import gov.cms.madie.models.measure.HapiOperationOutcome;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+import static gov.cms.madie.madiefhirservice.config.HapiFhirConfig.NPM_PACKAGES_BY_MODEL;
+
+/**
+ * Caches validation outcomes of unchanged bundles. Entries are keyed on the model, the versioned
+ * NPM packages the model's validator was built from and a hash of the canonicalized bundle JSON,
+ * so a changed package set never serves outcomes produced by the old one. The packages are
+ * classpath resources named by version, so their names identify them without reading them.
+ */
+@Slf4j
+@Service
+public class ValidationResultCacheService {
+
+  private static final String CACHE_NAME = "validationResults";
+
+  private final Cache<String, String> outcomes;
+  private final ObjectMapper mapper;
+  private final ObjectMapper canonicalMapper;
+
+  public ValidationResultCacheService(
+      ObjectMapper mapper,
+      MeterRegistry meterRegistry,
+      @Value("${madie.validation.result-cache.max-size}") long maxSize,
+      @Value("${madie.validation.result-cache.ttlMillis}") long ttlMillis) {
+    this.mapper = mapper;
+    this.canonicalMapper =
+        mapper
+            .copy()
+            .enable(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS)
+            .disable(SerializationFeature.INDENT_OUTPUT)
+            .enable(DeserializationFeature.USE_BIG_DECIMAL_FOR_FLOATS);
+    this.outcomes =
+        Caffeine.newBuilder()
+            .maximumSize(maxSize)
+            .expireAfterWrite(Duration.ofMillis(ttlMillis))
+            .recordStats()
+            .build();
+    CaffeineCacheMetrics.monitor(meterRegistry, outcomes, CACHE_NAME);
+  }
+
+  /**
+   * Builds the cache key for a validation request.
+   *
+   * @return the key, or null if the bundle is not valid JSON and therefore not worth caching
+   */
+  public String cacheKey(ModelType modelType, String bundleJson, ValidationOptions options) {
+    if (modelType == null || StringUtils.isBlank(bundleJson)) {
+      return null;
+    }
+    String canonicalJson;
+    try {
+      canonicalJson =
+          canonicalMapper.writeValueAsString(canonicalMapper.readValue(bundleJson, Object.class));
+    } catch (JsonProcessingException ex) {
+      return null;
+    }
+    return String.join(
+        ":",
+        modelType.getShortValue(),
+        packageVersions(modelType),
+        String.valueOf(options),
+        sha256(canonicalJson.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  public Optional<HapiOperationOutcome> get(String cacheKey) {
+    if (cacheKey == null) {
+      return Optional.empty();
+    }
+    String outcome = outcomes.getIfPresent(cacheKey);
+    if (outcome == null) {
+      return Optional.empty();
+    }
+    try {
+      return Optional.of(mapper.readValue(outcome, HapiOperationOutcome.class));
+    } catch (JsonProcessingException ex) {
+      log.warn("Discarding unreadable cached validation outcome", ex);
+      outcomes.invalidate(cacheKey);
+      return Optional.empty();
+    }
+  }
+
+  public void put(String cacheKey, HapiOperationOutcome outcome) {
+    if (cacheKey == null || outcome == null) {
+      return;
+    }
+    try {
+      outcomes.put(cacheKey, mapper.writeValueAsString(outcome));
+    } catch (JsonProcessingException ex) {
+      log.warn("Unable to cache validation outcome", ex);
+    }
+  }
+
+  /** Names the model's packages, e.g. hl7.fhir.us.qicore-4.1.1,hl7.fhir.us.core-3.1.0,... */
+  private static String packageVersions(ModelType modelType) {
+    return NPM_PACKAGES_BY_MODEL.getOrDefault(modelType, List.of()).stream()
+        .map(
+            npmPackage ->
+                StringUtils.removeEnd(StringUtils.substringAfterLast(npmPackage, "/"), ".tgz"))
+        .collect(Collectors.joining(","));
+  }
+
+  private static String sha256(byte[] bytes) {
+    return HexFormat.of().formatHex(NpmPackageUtil.newSha256().digest(bytes));
+  }
+}
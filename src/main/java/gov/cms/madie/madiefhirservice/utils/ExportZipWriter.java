@@ -0,0 +1,91 @@
+package gov.cms.madie.madiefhirservice.utils;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Writes export zips entry by entry. An entry's content is only produced when it is about to be
+ * written, then deflated at the configured level, or stored as is when compression is off or the
+ * entry is below the store threshold. Entries are written in the order given.
+ */
+@Component
+public class ExportZipWriter {
+
+  private final int compressionLevel;
+  private final int storeThresholdBytes;
+
+  /**
+   * @param compressionLevel deflate level 1-9, 0 to store every entry, or -1 for the default level
+   * @param storeThresholdBytes entries smaller than this are stored rather than deflated
+   */
+  public ExportZipWriter(
+      @Value("${madie.export.zip.compression-level}") int compressionLevel,
+      @Value("${madie.export.zip.store-threshold-bytes}") int storeThresholdBytes) {
+    if (compressionLevel < Deflater.DEFAULT_COMPRESSION
+        || compressionLevel > Deflater.BEST_COMPRESSION) {
+      throw new IllegalArgumentException(
+          "Zip compression level must be between -1 and 9, but was " + compressionLevel);
+    }
+    this.compressionLevel = compressionLevel;
+    this.storeThresholdBytes = storeThresholdBytes;
+  }
+
+  /** A zip entry whose content is produced only when the entry is about to be written. */
+  public record Entry(String name, Supplier<byte[]> content) {}
+
+  /**
+   * @param entries entries written in list order
+   * @param out stream the zip is written to, left open
+   */
+  public void write(List<Entry> entries, OutputStream out) throws IOException {
+    try (ZipOutputStream zip = new ZipOutputStream(new UnclosedOutputStream(out))) {
+      zip.setLevel(compressionLevel);
+      for (Entry entry : entries) {
+        writeEntry(zip, entry.name(), entry.content().get());
+      }
+    }
+  }
+
+  private void writeEntry(ZipOutputStream zip, String name, byte[] content) throws IOException {
+    ZipEntry zipEntry = new ZipEntry(name);
+    if (compressionLevel == Deflater.NO_COMPRESSION || content.length < storeThresholdBytes) {
+      // stored entries carry their size and checksum ahead of the content
+      CRC32 crc = new CRC32();
+      crc.update(content);
+      zipEntry.setMethod(ZipEntry.STORED);
+      zipEntry.setSize(content.length);
+      zipEntry.setCompressedSize(content.length);
+      zipEntry.setCrc(crc.getValue());
+    }
+    zip.putNextEntry(zipEntry);
+    zip.write(content);
+    zip.closeEntry();
+  }
+
+  /** Lets the zip stream be closed, releasing its deflater, without closing the target stream. */
+  private static class UnclosedOutputStream extends FilterOutputStream {
+    private UnclosedOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+      flush();
+    }
+  }
+}
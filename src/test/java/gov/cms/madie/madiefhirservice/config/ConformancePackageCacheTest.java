@@ -0,0 +1,73 @@
+package gov.cms.madie.madiefhirservice.config;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class ConformancePackageCacheTest {
+
+  private static final String US_CORE_PROFILE =
+      "http://hl7.org/fhir/us/core/StructureDefinition/us-core-patient";
+  private static final List<String> PACKAGES =
+      List.of("classpath:packages/hl7.fhir.us.core-3.1.0.tgz");
+
+  private final FhirContext fhirContext = FhirContext.forR4();
+
+  @TempDir Path cacheDirectory;
+
+  @Test
+  void testLoadPackagesWritesCacheFileAndReadsItOnNextLoad() throws IOException {
+    ConformancePackageCache cache = new ConformancePackageCache(cacheDirectory.toString());
+
+    IValidationSupport firstBoot = cache.loadPackages(fhirContext, PACKAGES);
+    List<Path> cacheFiles = listCacheFiles();
+    IValidationSupport secondBoot = cache.loadPackages(fhirContext, PACKAGES);
+
+    assertThat(cacheFiles.size(), is(equalTo(1)));
+    assertThat(
+        secondBoot.fetchAllConformanceResources().size(),
+        is(equalTo(firstBoot.fetchAllConformanceResources().size())));
+    assertThat(secondBoot.fetchStructureDefinition(US_CORE_PROFILE), is(notNullValue()));
+  }
+
+  @Test
+  void testLoadPackagesRecoversFromCorruptCacheFile() throws IOException {
+    ConformancePackageCache cache = new ConformancePackageCache(cacheDirectory.toString());
+    cache.loadPackages(fhirContext, PACKAGES);
+    Path cacheFile = listCacheFiles().get(0);
+    Files.writeString(cacheFile, "not gzip");
+
+    IValidationSupport support = cache.loadPackages(fhirContext, PACKAGES);
+
+    assertThat(support.fetchStructureDefinition(US_CORE_PROFILE), is(notNullValue()));
+    assertThat(Files.size(cacheFile) > 8, is(true));
+  }
+
+  @Test
+  void testLoadPackagesWithoutDirectoryDoesNotWriteFile() throws IOException {
+    ConformancePackageCache cache = new ConformancePackageCache("");
+
+    IValidationSupport support = cache.loadPackages(fhirContext, PACKAGES);
+
+    assertThat(support.fetchStructureDefinition(US_CORE_PROFILE), is(notNullValue()));
+    assertThat(listCacheFiles().isEmpty(), is(true));
+  }
+
+  private List<Path> listCacheFiles() throws IOException {
+    try (Stream<Path> files = Files.list(cacheDirectory)) {
+      return files.toList();
+    }
+  }
+}
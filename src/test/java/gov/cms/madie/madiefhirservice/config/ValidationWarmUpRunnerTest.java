@@ -0,0 +1,80 @@
+package gov.cms.madie.madiefhirservice.config;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.validation.FhirValidator;
+import ca.uhn.fhir.validation.ValidationResult;
+import gov.cms.madie.madiefhirservice.factories.ModelAwareFhirFactory;
+import gov.cms.madie.models.common.ModelType;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+
+import static gov.cms.madie.madiefhirservice.utils.ModelEndpointMap.QICORE_4_1_1;
+import static gov.cms.madie.madiefhirservice.utils.ModelEndpointMap.QICORE_6_0_0;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class ValidationWarmUpRunnerTest {
+
+  @Mock private ModelAwareFhirFactory validatorFactory;
+  @Mock private FhirValidator fhirValidator;
+
+  @InjectMocks private ValidationWarmUpRunner warmUpRunner;
+
+  @BeforeEach
+  void setUp() {
+    ReflectionTestUtils.setField(
+        warmUpRunner, "eagerModelVersions", new String[] {QICORE_4_1_1, QICORE_6_0_0});
+    ReflectionTestUtils.setField(warmUpRunner, "warmUpEnabled", true);
+  }
+
+  @Test
+  void testRunValidatesSyntheticBundleForEveryModel() {
+    FhirContext fhirContext = FhirContext.forR4();
+    when(validatorFactory.getValidatorForModel(any(ModelType.class))).thenReturn(fhirValidator);
+    when(fhirValidator.validateWithResult(any(IBaseResource.class)))
+        .thenReturn(new ValidationResult(fhirContext, List.of()));
+
+    warmUpRunner.run(null);
+
+    verify(fhirValidator, times(2)).validateWithResult(any(IBaseResource.class));
+  }
+
+  @Test
+  void testRunOnlyLoadsEagerModels() {
+    ReflectionTestUtils.setField(warmUpRunner, "eagerModelVersions", new String[] {QICORE_6_0_0});
+    ReflectionTestUtils.setField(warmUpRunner, "warmUpEnabled", false);
+
+    warmUpRunner.run(null);
+
+    verify(validatorFactory).getValidatorForModel(ModelType.QI_CORE_6_0_0);
+    verify(validatorFactory, never()).getValidatorForModel(ModelType.QI_CORE);
+    verifyNoInteractions(fhirValidator);
+  }
+
+  @Test
+  void testRunContinuesWhenModelFailsToWarmUp() {
+    FhirContext fhirContext = FhirContext.forR4();
+    when(validatorFactory.getValidatorForModel(ModelType.QI_CORE))
+        .thenThrow(new IllegalStateException("chain failed"));
+    when(validatorFactory.getValidatorForModel(ModelType.QI_CORE_6_0_0)).thenReturn(fhirValidator);
+    when(fhirValidator.validateWithResult(any(IBaseResource.class)))
+        .thenReturn(new ValidationResult(fhirContext, List.of()));
+
+    warmUpRunner.run(null);
+
+    verify(fhirValidator).validateWithResult(any(IBaseResource.class));
+  }
+}
@@ -14,6 +14,8 @@ import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.NoSuchBeanDefinitionException;
 
 import java.util.Map;
 
@@ -23,6 +25,7 @@ import static org.hamcrest.MatcherAssert.assertThat;
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -37,9 +40,9 @@ class ModelAwareFhirFactoryTest {
 
   @Mock private Map<String, FhirContext> fhirContextMap;
 
-  @Mock private Map<String, FhirValidator> fhirValidatorMap;
+  @Mock private BeanFactory beanFactory;
 
-  // Not using @InjectMocks because Mockito seems to have issues injecting two maps
+  // Not using @InjectMocks because Mockito seems to have issues injecting maps
   // especially when running unit tests with coverage
   private ModelAwareFhirFactory modelAwareFhirFactory;
 
@@ -50,7 +53,7 @@ class ModelAwareFhirFactoryTest {
 
     // manually instantiating because test fail when running with coverage
     modelAwareFhirFactory =
-        Mockito.spy(new ModelAwareFhirFactory(fhirValidatorMap, fhirContextMap));
+        Mockito.spy(new ModelAwareFhirFactory(beanFactory, fhirContextMap));
   }
 
   @Test
@@ -58,21 +61,23 @@ class ModelAwareFhirFactoryTest {
     // given
     ModelType modelType = ModelType.QI_CORE;
     String lookup = modelType.getShortValue() + "NpmFhirValidator";
-    when(fhirValidatorMap.get(anyString())).thenReturn(qicoreNpmFhirValidator);
+    when(beanFactory.getBean(anyString(), eq(FhirValidator.class)))
+        .thenReturn(qicoreNpmFhirValidator);
 
     // when
     FhirValidator output = modelAwareFhirFactory.getValidatorForModel(modelType);
 
     // then
     assertThat(output, is(equalTo(qicoreNpmFhirValidator)));
-    verify(fhirValidatorMap).get(lookup);
+    verify(beanFactory).getBean(lookup, FhirValidator.class);
   }
 
   @Test
   public void testGetValidatorForModelThrowsUnsupportedTypeException() {
     ModelType modelType = ModelType.QDM_5_6;
     String lookup = modelType.getShortValue() + "NpmFhirValidator";
-    when(fhirValidatorMap.get(anyString())).thenReturn(null);
+    when(beanFactory.getBean(anyString(), eq(FhirValidator.class)))
+        .thenThrow(new NoSuchBeanDefinitionException(lookup));
 
     // when
     assertThrows(
@@ -80,7 +85,7 @@ class ModelAwareFhirFactoryTest {
         () -> modelAwareFhirFactory.getValidatorForModel(modelType));
 
     // then
-    verify(fhirValidatorMap).get(lookup);
+    verify(beanFactory).getBean(lookup, FhirValidator.class);
   }
 
   @Test
@@ -0,0 +1,104 @@
+package gov.cms.madie.madiefhirservice.resources;
+
+import gov.cms.madie.madiefhirservice.dto.ExportJob;
+import gov.cms.madie.madiefhirservice.exceptions.ExportJobNotReadyException;
+import gov.cms.madie.madiefhirservice.exceptions.ResourceNotFoundException;
+import gov.cms.madie.madiefhirservice.services.ExportJobService;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.mockito.Mockito.when;
+import static org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestPostProcessors.user;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@WebMvcTest({ExportJobController.class})
+class ExportJobControllerMvcTest {
+
+  private static final String TEST_USER_ID = "john_doe";
+
+  @MockBean private ExportJobService exportJobService;
+
+  @Autowired private MockMvc mockMvc;
+
+  @TempDir Path tempDir;
+
+  @Test
+  void getExportJobReturnsProgress() throws Exception {
+    when(exportJobService.getJob(TEST_USER_ID, "job-1"))
+        .thenReturn(
+            ExportJob.builder()
+                .id("job-1")
+                .status(ExportJob.Status.RUNNING)
+                .processed(3)
+                .total(10)
+                .build());
+
+    mockMvc
+        .perform(MockMvcRequestBuilders.get("/fhir/export-jobs/job-1").with(user(TEST_USER_ID)))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.status").value("RUNNING"))
+        .andExpect(jsonPath("$.processed").value(3))
+        .andExpect(jsonPath("$.total").value(10));
+  }
+
+  @Test
+  void getExportJobReturnsNotFoundForUnknownJob() throws Exception {
+    when(exportJobService.getJob(TEST_USER_ID, "job-1"))
+        .thenThrow(new ResourceNotFoundException("Export job", "user " + TEST_USER_ID, "job-1"));
+
+    mockMvc
+        .perform(MockMvcRequestBuilders.get("/fhir/export-jobs/job-1").with(user(TEST_USER_ID)))
+        .andExpect(status().isNotFound());
+  }
+
+  @Test
+  void getExportJobFileDownloadsSpooledZip() throws Exception {
+    Path file = Files.writeString(tempDir.resolve("job-1.zip"), "zip");
+    when(exportJobService.getJob(TEST_USER_ID, "job-1"))
+        .thenReturn(
+            ExportJob.builder()
+                .id("job-1")
+                .status(ExportJob.Status.COMPLETED)
+                .fileName("title-v0.0.000-FHIR.zip")
+                .build());
+    when(exportJobService.getJobFile(TEST_USER_ID, "job-1")).thenReturn(file);
+
+    mockMvc
+        .perform(
+            MockMvcRequestBuilders.get("/fhir/export-jobs/job-1/file").with(user(TEST_USER_ID)))
+        .andExpect(status().isOk())
+        .andExpect(
+            header()
+                .string(
+                    HttpHeaders.CONTENT_DISPOSITION,
+                    "attachment;filename=\"title-v0.0.000-FHIR.zip\""))
+        .andExpect(content().contentType(MediaType.APPLICATION_OCTET_STREAM))
+        .andExpect(content().string("zip"));
+  }
+
+  @Test
+  void getExportJobFileReturnsConflictWhileRunning() throws Exception {
+    when(exportJobService.getJob(TEST_USER_ID, "job-1"))
+        .thenReturn(ExportJob.builder().id("job-1").status(ExportJob.Status.RUNNING).build());
+    when(exportJobService.getJobFile(TEST_USER_ID, "job-1"))
+        .thenThrow(new ExportJobNotReadyException("job-1", "RUNNING"));
+
+    mockMvc
+        .perform(
+            MockMvcRequestBuilders.get("/fhir/export-jobs/job-1/file").with(user(TEST_USER_ID)))
+        .andExpect(status().isConflict());
+  }
+}
@@ -2,6 +2,8 @@ package gov.cms.madie.madiefhirservice.resources;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.rest.api.MethodOutcome;
+import gov.cms.madie.madiefhirservice.dto.ExportJob;
+import gov.cms.madie.madiefhirservice.services.ExportJobService;
 import gov.cms.madie.madiefhirservice.services.ExportService;
 import gov.cms.madie.madiefhirservice.services.MeasureBundleService;
 import gov.cms.madie.madiefhirservice.utils.MeasureTestHelper;
@@ -27,6 +29,7 @@ import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -45,6 +48,8 @@ public class MeasureBundleControllerMvcTest implements ResourceFileUtil {
 
   @MockBean private ExportService exportService;
 
+  @MockBean private ExportJobService exportJobService;
+
   @MockBean private FhirContext fhirContext;
 
   @Autowired private MockMvc mockMvc;
@@ -79,6 +84,32 @@ public class MeasureBundleControllerMvcTest implements ResourceFileUtil {
         .createMeasureBundle(any(Measure.class), any(Principal.class), anyString(), anyString());
   }
 
+  @Test
+  public void testGetMeasureBundleCompact() throws Exception {
+    String madieMeasureJson = getStringFromTestResource("/measures/madie_measure.json");
+    Bundle testBundle = MeasureTestHelper.createTestMeasureBundle();
+
+    when(measureBundleService.createMeasureBundle(
+            any(Measure.class), any(Principal.class), anyString(), anyString()))
+        .thenReturn(testBundle);
+    when(fhirContext.newJsonParser()).thenReturn(FhirContext.forR4().newJsonParser());
+
+    MvcResult result =
+        mockMvc
+            .perform(
+                MockMvcRequestBuilders.put("/fhir/measures/bundles")
+                    .param("format", "compact")
+                    .with(user(TEST_USER_ID))
+                    .with(csrf())
+                    .header(HttpHeaders.AUTHORIZATION, "test-okta")
+                    .content(madieMeasureJson)
+                    .contentType(MediaType.APPLICATION_JSON_VALUE))
+            .andExpect(status().isOk())
+            .andExpect(jsonPath("$.resourceType").value("Bundle"))
+            .andReturn();
+    assertThat(result.getResponse().getContentAsString().contains("\n"), is(false));
+  }
+
   @Test
   public void testGetMeasureBundleXml() throws Exception {
     String madieMeasureJson = getStringFromTestResource("/measures/madie_measure.json");
@@ -127,4 +158,35 @@ public class MeasureBundleControllerMvcTest implements ResourceFileUtil {
         result.getResponse().getHeader("Content-Disposition"),
         is(equalTo("attachment;filename=\"title-v0.0.000-FHIR.zip\"")));
   }
+
+  @Test
+  public void testSubmitMeasureExportJob() throws Exception {
+    String madieMeasureJson = getStringFromTestResource("/measures/madie_measure.json");
+    ExportJob job =
+        ExportJob.builder()
+            .id("job-1")
+            .type(ExportJob.Type.MEASURE)
+            .status(ExportJob.Status.QUEUED)
+            .total(1)
+            .build();
+    when(exportJobService.submitMeasureExport(
+            anyString(), any(Measure.class), any(Principal.class), anyString()))
+        .thenReturn(job);
+
+    mockMvc
+        .perform(
+            MockMvcRequestBuilders.put("/fhir/measures/export:async")
+                .with(user(TEST_USER_ID))
+                .with(csrf())
+                .header(HttpHeaders.AUTHORIZATION, "test-okta")
+                .content(madieMeasureJson)
+                .contentType(MediaType.APPLICATION_JSON_VALUE))
+        .andExpect(status().isAccepted())
+        .andExpect(header().string(HttpHeaders.LOCATION, "http://localhost/fhir/export-jobs/job-1"))
+        .andExpect(jsonPath("$.id").value("job-1"))
+        .andExpect(jsonPath("$.status").value("QUEUED"));
+    verify(exportJobService, times(1))
+        .submitMeasureExport(
+            eq(TEST_USER_ID), any(Measure.class), any(Principal.class), eq("test-okta"));
+  }
 }
@@ -3,6 +3,10 @@ package gov.cms.madie.madiefhirservice.resources;
 import ca.uhn.fhir.context.FhirContext;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import gov.cms.madie.madiefhirservice.dto.EncodingFormat;
+import gov.cms.madie.madiefhirservice.dto.ExportJob;
+import gov.cms.madie.madiefhirservice.dto.TestCaseExportOptions;
+import gov.cms.madie.madiefhirservice.services.ExportJobService;
 import gov.cms.madie.madiefhirservice.services.TestCaseBundleService;
 import gov.cms.madie.madiefhirservice.utils.ResourceFileUtil;
 import gov.cms.madie.models.common.BundleType;
@@ -17,15 +21,24 @@ import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
+import java.io.OutputStream;
 import java.security.Principal;
 import java.util.*;
 
 import static java.util.Arrays.asList;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
 import static org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestPostProcessors.csrf;
 import static org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestPostProcessors.user;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 @WebMvcTest({TestCaseBundleController.class})
@@ -38,6 +51,8 @@ class TestCaseBundleControllerMvcTest implements ResourceFileUtil {
 
   @MockBean private TestCaseBundleService testCaseBundleService;
 
+  @MockBean private ExportJobService exportJobService;
+
   @Autowired private MockMvc mockMvc;
 
   @Autowired private ObjectMapper mapper;
@@ -72,7 +87,10 @@ class TestCaseBundleControllerMvcTest implements ResourceFileUtil {
     testCaseBundleMap.put(
         dto.getMeasure().getTestCases().get(1).getPatientId().toString(), testCaseBundle);
     when(testCaseBundleService.getTestCaseExportBundle(
-            any(Measure.class), any(List.class), any(ExportDTO.class)))
+            any(Measure.class),
+            any(List.class),
+            any(ExportDTO.class),
+            any(TestCaseExportOptions.class)))
         .thenReturn(testCaseBundleMap);
     mockMvc
         .perform(
@@ -84,7 +102,11 @@ class TestCaseBundleControllerMvcTest implements ResourceFileUtil {
                 .contentType(MediaType.APPLICATION_JSON_VALUE))
         .andExpect(status().isOk());
     verify(testCaseBundleService, times(1))
-        .getTestCaseExportBundle(any(Measure.class), any(List.class), any(ExportDTO.class));
+        .getTestCaseExportBundle(
+            any(Measure.class),
+            any(List.class),
+            any(ExportDTO.class),
+            any(TestCaseExportOptions.class));
   }
 
   @Test
@@ -99,7 +121,10 @@ class TestCaseBundleControllerMvcTest implements ResourceFileUtil {
     testCaseBundleMap.put(
         dto.getMeasure().getTestCases().get(1).getPatientId().toString(), testCaseBundle);
     when(testCaseBundleService.getTestCaseExportBundle(
-            any(Measure.class), any(List.class), any(ExportDTO.class)))
+            any(Measure.class),
+            any(List.class),
+            any(ExportDTO.class),
+            any(TestCaseExportOptions.class)))
         .thenReturn(testCaseBundleMap);
     mockMvc
         .perform(
@@ -111,7 +136,11 @@ class TestCaseBundleControllerMvcTest implements ResourceFileUtil {
                 .contentType(MediaType.APPLICATION_JSON_VALUE))
         .andExpect(status().isOk());
     verify(testCaseBundleService, times(1))
-        .getTestCaseExportBundle(any(Measure.class), any(List.class), any(ExportDTO.class));
+        .getTestCaseExportBundle(
+            any(Measure.class),
+            any(List.class),
+            any(ExportDTO.class),
+            any(TestCaseExportOptions.class));
   }
 
   @Test
@@ -127,7 +156,10 @@ class TestCaseBundleControllerMvcTest implements ResourceFileUtil {
     testCaseBundleMap.put(
         dto.getMeasure().getTestCases().get(1).getPatientId().toString(), testCaseBundle);
     when(testCaseBundleService.getTestCaseExportBundle(
-            any(Measure.class), any(List.class), any(ExportDTO.class)))
+            any(Measure.class),
+            any(List.class),
+            any(ExportDTO.class),
+            any(TestCaseExportOptions.class)))
         .thenReturn(testCaseBundleMap);
     mockMvc
         .perform(
@@ -139,7 +171,11 @@ class TestCaseBundleControllerMvcTest implements ResourceFileUtil {
                 .contentType(MediaType.APPLICATION_JSON_VALUE))
         .andExpect(status().isOk());
     verify(testCaseBundleService, times(1))
-        .getTestCaseExportBundle(any(Measure.class), any(List.class), any(ExportDTO.class));
+        .getTestCaseExportBundle(
+            any(Measure.class),
+            any(List.class),
+            any(ExportDTO.class),
+            any(TestCaseExportOptions.class));
   }
 
   @Test
@@ -185,7 +221,10 @@ class TestCaseBundleControllerMvcTest implements ResourceFileUtil {
     testCaseBundleMap.put(
         dto.getMeasure().getTestCases().get(0).getPatientId().toString(), testCaseBundle);
     when(testCaseBundleService.getTestCaseExportBundle(
-            any(Measure.class), any(List.class), any(ExportDTO.class)))
+            any(Measure.class),
+            any(List.class),
+            any(ExportDTO.class),
+            any(TestCaseExportOptions.class)))
         .thenReturn(testCaseBundleMap);
     mockMvc
         .perform(
@@ -197,6 +236,129 @@ class TestCaseBundleControllerMvcTest implements ResourceFileUtil {
                 .contentType(MediaType.APPLICATION_JSON_VALUE))
         .andExpect(status().is(206));
     verify(testCaseBundleService, times(1))
-        .getTestCaseExportBundle(any(Measure.class), any(List.class), any(ExportDTO.class));
+        .getTestCaseExportBundle(
+            any(Measure.class),
+            any(List.class),
+            any(ExportDTO.class),
+            any(TestCaseExportOptions.class));
+  }
+
+  @Test
+  void streamTestCaseExportBundleWritesZipToResponse() throws Exception {
+    Map<String, Bundle> testCaseBundleMap = new HashMap<>();
+    testCaseBundleMap.put(
+        dto.getMeasure().getTestCases().get(0).getPatientId().toString(), testCaseBundle);
+    testCaseBundleMap.put(
+        dto.getMeasure().getTestCases().get(1).getPatientId().toString(), testCaseBundle);
+    when(testCaseBundleService.getTestCaseExportBundle(
+            any(Measure.class),
+            any(List.class),
+            any(ExportDTO.class),
+            any(TestCaseExportOptions.class)))
+        .thenReturn(testCaseBundleMap);
+    MvcResult result =
+        mockMvc
+            .perform(
+                MockMvcRequestBuilders.put("/fhir/test-cases/export-all:stream")
+                    .with(user(TEST_USER_ID))
+                    .with(csrf())
+                    .header(HttpHeaders.AUTHORIZATION, "test-okta")
+                    .content(mapper.writeValueAsString(dto))
+                    .contentType(MediaType.APPLICATION_JSON_VALUE))
+            .andExpect(request().asyncStarted())
+            .andReturn();
+    mockMvc
+        .perform(asyncDispatch(result))
+        .andExpect(status().isOk())
+        .andExpect(content().contentType(MediaType.APPLICATION_OCTET_STREAM));
+    verify(testCaseBundleService, times(1))
+        .writeTestCaseZip(
+            any(Measure.class), eq(testCaseBundleMap), any(List.class), any(OutputStream.class));
+    verify(testCaseBundleService, never())
+        .zipTestCaseContents(any(Measure.class), any(Map.class), any(List.class));
+  }
+
+  @Test
+  void streamTestCaseExportBundlePassesCompactFormat() throws Exception {
+    Map<String, Bundle> testCaseBundleMap = new HashMap<>();
+    testCaseBundleMap.put(
+        dto.getMeasure().getTestCases().get(0).getPatientId().toString(), testCaseBundle);
+    testCaseBundleMap.put(
+        dto.getMeasure().getTestCases().get(1).getPatientId().toString(), testCaseBundle);
+    when(testCaseBundleService.getTestCaseExportBundle(
+            any(Measure.class),
+            any(List.class),
+            any(ExportDTO.class),
+            argThat(options -> options.getFormat() == EncodingFormat.COMPACT)))
+        .thenReturn(testCaseBundleMap);
+    MvcResult result =
+        mockMvc
+            .perform(
+                MockMvcRequestBuilders.put("/fhir/test-cases/export-all:stream")
+                    .param("format", "compact")
+                    .with(user(TEST_USER_ID))
+                    .with(csrf())
+                    .header(HttpHeaders.AUTHORIZATION, "test-okta")
+                    .content(mapper.writeValueAsString(dto))
+                    .contentType(MediaType.APPLICATION_JSON_VALUE))
+            .andExpect(request().asyncStarted())
+            .andReturn();
+    mockMvc.perform(asyncDispatch(result)).andExpect(status().isOk());
+  }
+
+  @Test
+  void getTestCaseExportBundleRejectsUnknownFormat() throws Exception {
+    mockMvc
+        .perform(
+            MockMvcRequestBuilders.put("/fhir/test-cases/export-all")
+                .param("format", "minified")
+                .with(user(TEST_USER_ID))
+                .with(csrf())
+                .header(HttpHeaders.AUTHORIZATION, "test-okta")
+                .content(mapper.writeValueAsString(dto))
+                .contentType(MediaType.APPLICATION_JSON_VALUE))
+        .andExpect(status().isBadRequest());
+    verifyNoInteractions(testCaseBundleService);
+  }
+
+  @Test
+  void submitTestCaseExportJobReturnsAcceptedJob() throws Exception {
+    ExportJob job =
+        ExportJob.builder()
+            .id("job-1")
+            .type(ExportJob.Type.TEST_CASES)
+            .status(ExportJob.Status.QUEUED)
+            .total(2)
+            .build();
+    when(exportJobService.submitTestCaseExport(
+            anyString(),
+            any(ExportDTO.class),
+            any(List.class),
+            any(TestCaseExportOptions.class)))
+        .thenReturn(job);
+    mockMvc
+        .perform(
+            MockMvcRequestBuilders.put("/fhir/test-cases/export-all:async")
+                .param("parallel", "true")
+                .with(user(TEST_USER_ID))
+                .with(csrf())
+                .header(HttpHeaders.AUTHORIZATION, "test-okta")
+                .content(mapper.writeValueAsString(dto))
+                .contentType(MediaType.APPLICATION_JSON_VALUE))
+        .andExpect(status().isAccepted())
+        .andExpect(header().string(HttpHeaders.LOCATION, "http://localhost/fhir/export-jobs/job-1"))
+        .andExpect(jsonPath("$.total").value(2));
+    verify(exportJobService, times(1))
+        .submitTestCaseExport(
+            eq(TEST_USER_ID),
+            any(ExportDTO.class),
+            any(List.class),
+            eq(TestCaseExportOptions.builder().parallel(true).build()));
+    verify(testCaseBundleService, never())
+        .getTestCaseExportBundle(
+            any(Measure.class),
+            any(List.class),
+            any(ExportDTO.class),
+            any(TestCaseExportOptions.class));
   }
 }
@@ -5,7 +5,11 @@ import ca.uhn.fhir.parser.IParser;
 import ca.uhn.fhir.parser.StrictErrorHandler;
 import ca.uhn.fhir.validation.FhirValidator;
 import gov.cms.madie.madiefhirservice.factories.ModelAwareFhirFactory;
+import gov.cms.madie.madiefhirservice.services.BundleEntryValidationService;
+import gov.cms.madie.madiefhirservice.services.IncrementalValidationService;
 import gov.cms.madie.madiefhirservice.services.ResourceValidationService;
+import gov.cms.madie.madiefhirservice.services.StreamingBundleValidationService;
+import gov.cms.madie.madiefhirservice.services.ValidationResultCacheService;
 import gov.cms.madie.madiefhirservice.utils.ResourceFileUtil;
 import gov.cms.madie.models.common.ModelType;
 import gov.cms.madie.models.measure.HapiOperationOutcome;
@@ -42,9 +46,15 @@ import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.
 class ValidationControllerMvcTest implements ResourceFileUtil {
   private static final String TEST_USER_ID = "john_doe";
   private static final String VALIDATION_API_URL = "/fhir/validations/qicore/%s/bundles";
+  private static final String BATCH_VALIDATION_API_URL =
+      "/fhir/validations/qicore/%s/bundles:batch";
 
   @Autowired private FhirContext qicoreFhirContext;
   @MockBean private ResourceValidationService validationService;
+  @MockBean private BundleEntryValidationService entryValidationService;
+  @MockBean private ValidationResultCacheService validationResultCache;
+  @MockBean private StreamingBundleValidationService streamingValidationService;
+  @MockBean private IncrementalValidationService incrementalValidationService;
   @Autowired private MockMvc mockMvc;
   @Autowired FhirValidator qicoreNpmFhirValidator;
   @MockBean private ModelAwareFhirFactory validatorFactory;
@@ -118,6 +128,36 @@ class ValidationControllerMvcTest implements ResourceFileUtil {
         .andExpect(jsonPath("$.code").value(400))
         .andExpect(jsonPath("$.successful").value(false));
   }
+  @Test
+  void testBatchReturnsOneOutcomePerBundle() throws Exception {
+    final String batchJson = "[{ }, {\"resourceType\": \"Patient\" }]";
+    when(validatorFactory.getContextForModel(any(ModelType.class))).thenReturn(qicoreFhirContext);
+    when(validatorFactory.getJsonParserForModel(any(ModelType.class))).thenReturn(r4Parser);
+    when(validatorFactory.parseForModel(any(ModelType.class), anyString()))
+        .thenAnswer(
+            invocationOnMock -> {
+              String bundleString = invocationOnMock.getArgument(1);
+              return r4Parser.parseResource(org.hl7.fhir.r4.model.Bundle.class, bundleString);
+            });
+    when(validationService.invalidErrorOutcome(
+            any(FhirContext.class), any(IParser.class), anyString(), anyString()))
+        .thenReturn(HapiOperationOutcome.builder().code(400).successful(false).build());
+
+    mockMvc
+        .perform(
+            MockMvcRequestBuilders.post(String.format(BATCH_VALIDATION_API_URL, QICORE_4_1_1))
+                .with(user(TEST_USER_ID))
+                .with(csrf())
+                .content(batchJson)
+                .contentType(MediaType.APPLICATION_JSON_VALUE))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.length()").value(2))
+        .andExpect(jsonPath("$[0].code").value(400))
+        .andExpect(jsonPath("$[1].successful").value(false));
+
+    verify(validatorFactory, times(2)).parseForModel(any(ModelType.class), anyString());
+  }
+
 
   @Test
   void testUnsuccessfulOutcomeReturnedForInvalidEncounter() throws Exception {
@@ -9,13 +9,19 @@ import ca.uhn.fhir.validation.FhirValidator;
 import ca.uhn.fhir.validation.ValidationResult;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import gov.cms.madie.madiefhirservice.dto.ValidationOptions;
 import gov.cms.madie.madiefhirservice.exceptions.HapiJsonException;
 import gov.cms.madie.madiefhirservice.factories.ModelAwareFhirFactory;
+import gov.cms.madie.madiefhirservice.services.BundleEntryValidationService;
+import gov.cms.madie.madiefhirservice.services.IncrementalValidationService;
 import gov.cms.madie.madiefhirservice.services.ResourceValidationService;
+import gov.cms.madie.madiefhirservice.services.ResourceValidationService.BudgetedOutcome;
+import gov.cms.madie.madiefhirservice.services.ValidationResultCacheService;
 import gov.cms.madie.madiefhirservice.utils.ResourceFileUtil;
 import gov.cms.madie.models.common.ModelType;
 import gov.cms.madie.models.measure.HapiOperationOutcome;
 import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseOperationOutcome;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.OperationOutcome;
@@ -29,9 +35,14 @@ import org.mockito.Spy;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executor;
 
 import static gov.cms.madie.madiefhirservice.utils.ModelEndpointMap.QICORE_4_1_1;
 import static org.hamcrest.CoreMatchers.equalTo;
@@ -41,7 +52,11 @@ import static org.hamcrest.MatcherAssert.assertThat;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @ExtendWith(MockitoExtension.class)
@@ -61,6 +76,12 @@ class ValidationControllerTest implements ResourceFileUtil {
 
   @Mock ModelAwareFhirFactory validatorFactory;
 
+  @Mock ValidationResultCacheService validationResultCache;
+
+  @Mock BundleEntryValidationService entryValidationService;
+
+  @Mock IncrementalValidationService incrementalValidationService;
+
   @InjectMocks private ValidationController validationController;
 
   @BeforeEach
@@ -71,6 +92,47 @@ class ValidationControllerTest implements ResourceFileUtil {
         .when(parser.setParserErrorHandler(any(IParserErrorHandler.class)))
         .thenReturn(parser);
     Mockito.lenient().when(parser.setPrettyPrint(anyBoolean())).thenReturn(parser);
+    ReflectionTestUtils.setField(
+        validationController, "validationTaskExecutor", (Executor) Runnable::run);
+  }
+
+  @Test
+  void testValidationControllerBatchReturnsOutcomesInInputOrder() {
+    when(validatorFactory.parseForModel(any(ModelType.class), anyString()))
+        .thenThrow(new DataFormatException("BAD JSON, BAD!"));
+    when(validatorFactory.getJsonParserForModel(any(ModelType.class))).thenReturn(parser);
+    when(validatorFactory.getContextForModel(any(ModelType.class))).thenReturn(fhirContext);
+    when(validationService.invalidErrorOutcome(
+            any(FhirContext.class), any(IParser.class), anyString(), anyString()))
+        .thenReturn(
+            HapiOperationOutcome.builder().code(400).message("first").successful(false).build(),
+            HapiOperationOutcome.builder().code(400).message("second").successful(false).build());
+    when(entity.getBody()).thenReturn("{\"foo\": \"foo1\" }\n\n{\"foo\": \"foo2\" }\n");
+
+    List<HapiOperationOutcome> output =
+        validationController.validateBundleBatchByModel(
+            QICORE_4_1_1, entity, new ValidationOptions());
+
+    assertThat(output.size(), is(equalTo(2)));
+    assertThat(output.get(0).getMessage(), is(equalTo("first")));
+    assertThat(output.get(1).getMessage(), is(equalTo("second")));
+  }
+
+  @Test
+  void testValidationControllerReturnsCachedOutcomeForUnchangedBundle() {
+    HapiOperationOutcome cachedOutcome =
+        HapiOperationOutcome.builder().code(200).message("cached").successful(true).build();
+    when(entity.getBody()).thenReturn("{\"foo\": \"foo2\" }");
+    when(validationResultCache.cacheKey(
+            any(ModelType.class), anyString(), any(ValidationOptions.class)))
+        .thenReturn("key");
+    when(validationResultCache.get(anyString())).thenReturn(Optional.of(cachedOutcome));
+
+    HapiOperationOutcome output =
+        validationController.validateBundleByModel(QICORE_4_1_1, entity, new ValidationOptions());
+
+    assertThat(output, is(equalTo(cachedOutcome)));
+    verify(validatorFactory, never()).parseForModel(any(ModelType.class), anyString());
   }
 
   @Test
@@ -90,7 +152,8 @@ class ValidationControllerTest implements ResourceFileUtil {
                 .build());
 
     when(entity.getBody()).thenReturn("{\"foo\": \"foo2\" }");
-    HapiOperationOutcome output = validationController.validateBundleByModel(QICORE_4_1_1, entity);
+    HapiOperationOutcome output =
+        validationController.validateBundleByModel(QICORE_4_1_1, entity, new ValidationOptions());
     assertThat(output, is(notNullValue()));
     assertThat(output.getCode(), is(equalTo(HttpStatus.BAD_REQUEST.value())));
     assertThat(output.isSuccessful(), is(false));
@@ -115,7 +178,8 @@ class ValidationControllerTest implements ResourceFileUtil {
     when(entity.getBody()).thenReturn("{\"foo\": \"foo2\" }");
 
     // when
-    HapiOperationOutcome output = validationController.validateBundleByModel(QICORE_4_1_1, entity);
+    HapiOperationOutcome output =
+        validationController.validateBundleByModel(QICORE_4_1_1, entity, new ValidationOptions());
 
     // then
     assertThat(output, is(notNullValue()));
@@ -138,7 +202,9 @@ class ValidationControllerTest implements ResourceFileUtil {
     // when/then
     assertThrows(
         HapiJsonException.class,
-        () -> validationController.validateBundleByModel(QICORE_4_1_1, entity));
+        () ->
+            validationController.validateBundleByModel(
+                QICORE_4_1_1, entity, new ValidationOptions()));
   }
 
   @Test
@@ -170,7 +236,8 @@ class ValidationControllerTest implements ResourceFileUtil {
         .thenReturn(false);
 
     // when
-    HapiOperationOutcome output = validationController.validateBundleByModel(QICORE_4_1_1, entity);
+    HapiOperationOutcome output =
+        validationController.validateBundleByModel(QICORE_4_1_1, entity, new ValidationOptions());
 
     // then
     assertThat(output, is(notNullValue()));
@@ -178,6 +245,132 @@ class ValidationControllerTest implements ResourceFileUtil {
     assertThat(output.isSuccessful(), is(false));
   }
 
+  @Test
+  void testValidationControllerFailFastValidatesEntriesWithinErrorBudget() {
+    // given
+    when(validatorFactory.parseForModel(any(ModelType.class), anyString()))
+        .thenReturn(new Bundle());
+    when(validatorFactory.getJsonParserForModel(any(ModelType.class))).thenReturn(parser);
+    when(validatorFactory.getContextForModel(any(ModelType.class))).thenReturn(fhirContext);
+    when(validatorFactory.getValidatorForModel(any(ModelType.class))).thenReturn(fhirValidator);
+    when(parser.encodeResourceToString(any(OperationOutcome.class))).thenReturn("{}");
+    when(entity.getBody()).thenReturn("{\"foo\": \"foo2\" }");
+    when(validationService.validateBundleResourcesProfiles(
+            any(FhirContext.class), any(IBaseBundle.class)))
+        .thenReturn(new OperationOutcome());
+    when(validationService.validateBundleResourcesIdValid(
+            any(FhirContext.class), any(IBaseBundle.class)))
+        .thenReturn(new OperationOutcome());
+    when(entryValidationService.validateEntries(
+            any(FhirContext.class), any(FhirValidator.class), any(IBaseBundle.class), eq(1)))
+        .thenReturn(new BudgetedOutcome(new OperationOutcome(), false));
+    when(validationService.combineOutcomes(
+            any(FhirContext.class), any(IBaseOperationOutcome[].class)))
+        .thenReturn(new OperationOutcome());
+    when(validationService.applyErrorBudget(
+            any(FhirContext.class), any(IBaseOperationOutcome.class), eq(1), eq(false)))
+        .thenReturn(new BudgetedOutcome(new OperationOutcome(), false));
+
+    // when
+    HapiOperationOutcome output =
+        validationController.validateBundleByModel(
+            QICORE_4_1_1, entity, ValidationOptions.builder().failFast(true).build());
+
+    // then
+    assertThat(output.getCode(), is(equalTo(HttpStatus.OK.value())));
+    verify(fhirValidator, never()).validateWithResult(any(IBaseResource.class));
+  }
+
+  @Test
+  void testValidationControllerCountsResourceChecksAgainstErrorBudget() {
+    // given
+    when(validatorFactory.parseForModel(any(ModelType.class), anyString()))
+        .thenReturn(new Bundle());
+    when(validatorFactory.getJsonParserForModel(any(ModelType.class))).thenReturn(parser);
+    when(validatorFactory.getContextForModel(any(ModelType.class))).thenReturn(fhirContext);
+    when(validatorFactory.getValidatorForModel(any(ModelType.class))).thenReturn(fhirValidator);
+    when(parser.encodeResourceToString(any(OperationOutcome.class))).thenReturn("{}");
+    when(entity.getBody()).thenReturn("{\"foo\": \"foo2\" }");
+    when(validationService.validateBundleResourcesProfiles(
+            any(FhirContext.class), any(IBaseBundle.class)))
+        .thenReturn(new OperationOutcome());
+    when(validationService.validateBundleResourcesIdValid(
+            any(FhirContext.class), any(IBaseBundle.class)))
+        .thenReturn(new OperationOutcome());
+    when(validationService.validateBundleReferences(
+            any(FhirContext.class), any(IBaseBundle.class)))
+        .thenReturn(new OperationOutcome());
+    // profile, id and reference checks each found an error
+    when(validationService.countErrors(any(FhirContext.class), any(IBaseOperationOutcome.class)))
+        .thenReturn(1);
+    when(validationService.combineOutcomes(
+            any(FhirContext.class), any(IBaseOperationOutcome[].class)))
+        .thenReturn(new OperationOutcome());
+    when(validationService.applyErrorBudget(
+            any(FhirContext.class), any(IBaseOperationOutcome.class), eq(3), eq(true)))
+        .thenReturn(new BudgetedOutcome(new OperationOutcome(), true));
+
+    // when
+    validationController.validateBundleByModel(
+        QICORE_4_1_1, entity, ValidationOptions.builder().maxErrors(3).build());
+
+    // then
+    verify(entryValidationService, never())
+        .validateEntries(
+            any(FhirContext.class), any(FhirValidator.class), any(IBaseBundle.class), anyInt());
+    verify(fhirValidator, never()).validateWithResult(any(IBaseResource.class));
+    verify(validationResultCache, never()).put(any(), any(HapiOperationOutcome.class));
+  }
+
+  @Test
+  void testValidationControllerIncrementalReturnsNextToken() {
+    // given
+    when(validatorFactory.parseForModel(any(ModelType.class), anyString()))
+        .thenReturn(new Bundle());
+    when(validatorFactory.getJsonParserForModel(any(ModelType.class))).thenReturn(parser);
+    when(validatorFactory.getContextForModel(any(ModelType.class))).thenReturn(fhirContext);
+    when(validatorFactory.getValidatorForModel(any(ModelType.class))).thenReturn(fhirValidator);
+    when(parser.encodeResourceToString(any(OperationOutcome.class))).thenReturn("{}");
+    when(entity.getBody()).thenReturn("{\"foo\": \"foo2\" }");
+    when(validationService.validateBundleResourcesProfiles(
+            any(FhirContext.class), any(IBaseBundle.class)))
+        .thenReturn(new OperationOutcome());
+    when(validationService.validateBundleResourcesIdValid(
+            any(FhirContext.class), any(IBaseBundle.class)))
+        .thenReturn(new OperationOutcome());
+    when(incrementalValidationService.validateEntries(
+            eq(ModelType.QI_CORE),
+            any(FhirContext.class),
+            any(FhirValidator.class),
+            any(IBaseBundle.class),
+            eq("previous-token"),
+            anyString()))
+        .thenReturn(new OperationOutcome());
+    when(validationService.combineOutcomes(
+            any(FhirContext.class), any(IBaseOperationOutcome[].class)))
+        .thenReturn(new OperationOutcome());
+
+    // when
+    ResponseEntity<HapiOperationOutcome> output =
+        validationController.validateBundleIncrementallyByModel(
+            QICORE_4_1_1, "previous-token", entity);
+
+    // then
+    String nextToken =
+        output.getHeaders().getFirst(ValidationController.VALIDATION_TOKEN_HEADER);
+    assertThat(output.getBody().getCode(), is(equalTo(HttpStatus.OK.value())));
+    assertThat(nextToken, is(notNullValue()));
+    verify(incrementalValidationService)
+        .validateEntries(
+            eq(ModelType.QI_CORE),
+            any(FhirContext.class),
+            any(FhirValidator.class),
+            any(IBaseBundle.class),
+            eq("previous-token"),
+            eq(nextToken));
+    verify(fhirValidator, never()).validateWithResult(any(IBaseResource.class));
+  }
+
   @Test
   void testValidationControllerReturnsExceptionForErrorProcessingOutput()
       throws JsonProcessingException {
@@ -208,7 +401,9 @@ class ValidationControllerTest implements ResourceFileUtil {
         .thenReturn("{ \"resourceType\": \"OperationOutcome\" }");
     assertThrows(
         HapiJsonException.class,
-        () -> validationController.validateBundleByModel(QICORE_4_1_1, entity));
+        () ->
+            validationController.validateBundleByModel(
+                QICORE_4_1_1, entity, new ValidationOptions()));
   }
 
   @Test
@@ -247,7 +442,8 @@ class ValidationControllerTest implements ResourceFileUtil {
     when(validationService.isSuccessful(any(FhirContext.class), any(OperationOutcome.class)))
         .thenReturn(false);
 
-    HapiOperationOutcome output = validationController.validateBundleByModel(QICORE_4_1_1, entity);
+    HapiOperationOutcome output =
+        validationController.validateBundleByModel(QICORE_4_1_1, entity, new ValidationOptions());
     assertThat(output, is(notNullValue()));
     assertThat(output.getCode(), is(equalTo(HttpStatus.OK.value())));
     assertThat(output.isSuccessful(), is(false));
@@ -295,7 +491,8 @@ class ValidationControllerTest implements ResourceFileUtil {
     when(validationService.isSuccessful(any(FhirContext.class), any(OperationOutcome.class)))
         .thenReturn(false);
 
-    HapiOperationOutcome output = validationController.validateBundleByModel(QICORE_4_1_1, entity);
+    HapiOperationOutcome output =
+        validationController.validateBundleByModel(QICORE_4_1_1, entity, new ValidationOptions());
     assertThat(output, is(notNullValue()));
     assertThat(output.getCode(), is(equalTo(HttpStatus.BAD_REQUEST.value())));
     assertThat(output.getOutcomeResponse() instanceof Map, is(true));
@@ -341,7 +538,8 @@ class ValidationControllerTest implements ResourceFileUtil {
     when(validationService.isSuccessful(any(FhirContext.class), any(OperationOutcome.class)))
         .thenReturn(false);
 
-    HapiOperationOutcome output = validationController.validateBundleByModel(QICORE_4_1_1, entity);
+    HapiOperationOutcome output =
+        validationController.validateBundleByModel(QICORE_4_1_1, entity, new ValidationOptions());
     assertThat(output, is(notNullValue()));
     assertThat(output.getCode(), is(equalTo(HttpStatus.BAD_REQUEST.value())));
     assertThat(output.getOutcomeResponse() instanceof Map, is(true));
@@ -377,7 +575,8 @@ class ValidationControllerTest implements ResourceFileUtil {
     when(fhirValidator.validateWithResult(any(IBaseResource.class))).thenReturn(result);
     when(parser.encodeResourceToString(any(OperationOutcome.class)))
         .thenReturn("{ \"resourceType\": \"OperationOutcome\" }");
-    HapiOperationOutcome output = validationController.validateBundleByModel(QICORE_4_1_1, entity);
+    HapiOperationOutcome output =
+        validationController.validateBundleByModel(QICORE_4_1_1, entity, new ValidationOptions());
     assertThat(output, is(notNullValue()));
     assertThat(output.getCode(), is(equalTo(HttpStatus.OK.value())));
     assertThat(output.isSuccessful(), is(true));
@@ -13,6 +13,8 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Profile;
+import org.springframework.core.task.SyncTaskExecutor;
+import org.springframework.core.task.TaskExecutor;
 
 import java.io.IOException;
 
@@ -35,6 +37,11 @@ public class ValidationMvcTestConfiguration {
     return FhirContext.forR5();
   }
 
+  @Bean
+  public TaskExecutor validationTaskExecutor() {
+    return new SyncTaskExecutor();
+  }
+
   @Bean
   public ValidationSupportChain validationSupportChain411(@Autowired FhirContext qicoreFhirContext)
       throws IOException {
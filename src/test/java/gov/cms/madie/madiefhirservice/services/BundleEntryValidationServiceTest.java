@@ -0,0 +1,222 @@
+package gov.cms.madie.madiefhirservice.services;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.validation.FhirValidator;
+import ca.uhn.fhir.validation.ResultSeverityEnum;
+import ca.uhn.fhir.validation.SingleValidationMessage;
+import ca.uhn.fhir.validation.ValidationResult;
+import gov.cms.madie.madiefhirservice.services.ResourceValidationService.BudgetedOutcome;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class BundleEntryValidationServiceTest {
+
+  @Mock private FhirValidator fhirValidator;
+
+  private FhirContext fhirContext;
+  private BundleEntryValidationService entryValidationService;
+
+  @BeforeEach
+  void setUp() {
+    fhirContext = FhirContext.forR4();
+    entryValidationService = new BundleEntryValidationService(Runnable::run);
+  }
+
+  @Test
+  void testValidateEntriesRewritesLocationsToBundleEntries() {
+    // given
+    Bundle bundle = new Bundle();
+    bundle.addEntry().setResource(new Patient());
+    bundle.addEntry().setResource(new Encounter());
+    when(fhirValidator.validateWithResult(any(Bundle.class)))
+        .thenReturn(new ValidationResult(fhirContext, List.of()));
+    when(fhirValidator.validateWithResult(any(Patient.class)))
+        .thenReturn(resultOf(message("Patient.gender", ResultSeverityEnum.WARNING)));
+    when(fhirValidator.validateWithResult(any(Encounter.class)))
+        .thenReturn(resultOf(message("Encounter.status", ResultSeverityEnum.ERROR)));
+
+    // when
+    OperationOutcome output =
+        (OperationOutcome)
+            entryValidationService.validateEntries(fhirContext, fhirValidator, bundle);
+
+    // then
+    assertThat(output.getIssue().size(), is(equalTo(2)));
+    assertThat(
+        output.getIssue().get(0).getExpression().get(0).getValue(),
+        is(equalTo("Bundle.entry[0].resource.gender")));
+    assertThat(
+        output.getIssue().get(1).getExpression().get(0).getValue(),
+        is(equalTo("Bundle.entry[1].resource.status")));
+    assertThat(output.getIssue().get(1).getSeverity().toCode(), is(equalTo("error")));
+  }
+
+  @Test
+  void testValidateEntriesStopsOnceErrorBudgetIsReached() {
+    // given
+    Bundle bundle = new Bundle();
+    bundle.addEntry().setResource(new Patient());
+    bundle.addEntry().setResource(new Encounter());
+    when(fhirValidator.validateWithResult(any(Bundle.class)))
+        .thenReturn(new ValidationResult(fhirContext, List.of()));
+    when(fhirValidator.validateWithResult(any(Patient.class)))
+        .thenReturn(
+            new ValidationResult(
+                fhirContext,
+                List.of(
+                    message("Patient.gender", ResultSeverityEnum.ERROR),
+                    message("Patient.name", ResultSeverityEnum.ERROR))));
+
+    // when
+    BudgetedOutcome output =
+        entryValidationService.validateEntries(fhirContext, fhirValidator, bundle, 1);
+
+    // then
+    OperationOutcome outcome = (OperationOutcome) output.outcome();
+    assertThat(outcome.getIssue().size(), is(equalTo(1)));
+    assertThat(
+        outcome.getIssue().get(0).getExpression().get(0).getValue(),
+        is(equalTo("Bundle.entry[0].resource.gender")));
+    assertThat(output.stoppedEarly(), is(true));
+    verify(fhirValidator, never()).validateWithResult(any(Encounter.class));
+  }
+
+  @Test
+  void testValidateEntriesCutsOffInEntryOrderRegardlessOfCompletionOrder()
+      throws InterruptedException {
+    // given the second entry finishes first, with an error
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    entryValidationService = new BundleEntryValidationService(executor);
+    Bundle bundle = new Bundle();
+    bundle.addEntry().setResource(new Patient());
+    bundle.addEntry().setResource(new Encounter());
+    CountDownLatch encounterValidated = new CountDownLatch(1);
+    when(fhirValidator.validateWithResult(any(Bundle.class)))
+        .thenReturn(new ValidationResult(fhirContext, List.of()));
+    when(fhirValidator.validateWithResult(any(Patient.class)))
+        .thenAnswer(
+            invocation -> {
+              encounterValidated.await(1, TimeUnit.SECONDS);
+              return resultOf(message("Patient.gender", ResultSeverityEnum.WARNING));
+            });
+    when(fhirValidator.validateWithResult(any(Encounter.class)))
+        .thenAnswer(
+            invocation -> {
+              encounterValidated.countDown();
+              return resultOf(message("Encounter.status", ResultSeverityEnum.ERROR));
+            });
+
+    // when
+    BudgetedOutcome output;
+    try {
+      output = entryValidationService.validateEntries(fhirContext, fhirValidator, bundle, 1);
+    } finally {
+      executor.shutdown();
+    }
+
+    // then both entries count, in entry order, and nothing was cut off
+    OperationOutcome outcome = (OperationOutcome) output.outcome();
+    assertThat(outcome.getIssue().size(), is(equalTo(2)));
+    assertThat(
+        outcome.getIssue().get(0).getExpression().get(0).getValue(),
+        is(equalTo("Bundle.entry[0].resource.gender")));
+    assertThat(
+        outcome.getIssue().get(1).getExpression().get(0).getValue(),
+        is(equalTo("Bundle.entry[1].resource.status")));
+    assertThat(output.stoppedEarly(), is(false));
+  }
+
+  @Test
+  void testValidateEntriesValidatesBundleShell() {
+    // given
+    Bundle bundle = new Bundle();
+    bundle.setType(Bundle.BundleType.COLLECTION);
+    Patient patient = new Patient();
+    patient.setId("patient-1");
+    patient.setGender(Enumerations.AdministrativeGender.FEMALE);
+    bundle.addEntry().setFullUrl("https://madie.cms.gov/Patient/patient-1").setResource(patient);
+    List<Bundle> shells = new ArrayList<>();
+    when(fhirValidator.validateWithResult(any(Bundle.class)))
+        .thenAnswer(
+            invocation -> {
+              shells.add(invocation.getArgument(0));
+              return new ValidationResult(
+                  fhirContext,
+                  List.of(
+                      message("Bundle", ResultSeverityEnum.ERROR),
+                      message(
+                          "Bundle.entry[0].resource/*Patient/patient-1*/.name",
+                          ResultSeverityEnum.ERROR)));
+            });
+    when(fhirValidator.validateWithResult(any(Patient.class)))
+        .thenReturn(resultOf(message("Patient.gender", ResultSeverityEnum.WARNING)));
+
+    // when
+    OperationOutcome output =
+        (OperationOutcome)
+            entryValidationService.validateEntries(fhirContext, fhirValidator, bundle);
+
+    // then bundle issues come first, issues within the stand-in entry resources are dropped
+    assertThat(output.getIssue().size(), is(equalTo(2)));
+    assertThat(
+        output.getIssue().get(0).getExpression().get(0).getValue(), is(equalTo("Bundle")));
+    assertThat(
+        output.getIssue().get(1).getExpression().get(0).getValue(),
+        is(equalTo("Bundle.entry[0].resource.gender")));
+    assertThat(shells.size(), is(equalTo(1)));
+    Bundle shell = shells.get(0);
+    assertThat(shell.getType(), is(equalTo(Bundle.BundleType.COLLECTION)));
+    assertThat(
+        shell.getEntryFirstRep().getFullUrl(),
+        is(equalTo("https://madie.cms.gov/Patient/patient-1")));
+    Patient standIn = (Patient) shell.getEntryFirstRep().getResource();
+    assertThat(standIn.getIdElement().getIdPart(), is(equalTo("patient-1")));
+    assertThat(standIn.hasGender(), is(false));
+  }
+
+  @Test
+  void testToEntryLocationHandlesResourceLevelLocation() {
+    assertThat(
+        BundleEntryValidationService.toEntryLocation("Patient", 3),
+        is(equalTo("Bundle.entry[3].resource")));
+    assertThat(
+        BundleEntryValidationService.toEntryLocation(null, 0),
+        is(equalTo("Bundle.entry[0].resource")));
+  }
+
+  private ValidationResult resultOf(SingleValidationMessage message) {
+    return new ValidationResult(fhirContext, List.of(message));
+  }
+
+  private SingleValidationMessage message(String location, ResultSeverityEnum severity) {
+    SingleValidationMessage message = new SingleValidationMessage();
+    message.setLocationString(location);
+    message.setSeverity(severity);
+    message.setMessage("test message");
+    return message;
+  }
+}
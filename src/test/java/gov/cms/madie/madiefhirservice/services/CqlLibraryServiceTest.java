@@ -1,43 +1,67 @@
 package gov.cms.madie.madiefhirservice.services;
 
+import gov.cms.madie.madiefhirservice.config.CacheConfig;
 import gov.cms.madie.madiefhirservice.exceptions.CqlLibraryNotFoundException;
 import gov.cms.madie.models.common.Version;
 import gov.cms.madie.models.library.CqlLibrary;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
-import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.cache.CacheManager;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.ResourceAccessException;
 import org.springframework.web.client.RestTemplate;
 
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import static org.hamcrest.CoreMatchers.*;
 import static org.hamcrest.MatcherAssert.assertThat;
 
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @ExtendWith(MockitoExtension.class)
 class CqlLibraryServiceTest {
 
-  @InjectMocks private CqlLibraryService cqlLibraryService;
+  private CqlLibraryService cqlLibraryService;
+  private CacheManager cacheManager;
 
   @Mock private RestTemplate restTemplate;
 
   @BeforeEach
   void setup() {
+    cqlLibraryService = newCqlLibraryService(Runnable::run);
+  }
+
+  private CqlLibraryService newCqlLibraryService(Executor refreshExecutor) {
+    cacheManager = new CacheConfig().cacheManager(1_000_000, 60_000, 60_000);
+    CqlLibraryService cqlLibraryService =
+        new CqlLibraryService(restTemplate, cacheManager, refreshExecutor);
+    ReflectionTestUtils.setField(cqlLibraryService, "refreshAfterMillis", 45_000L);
+    ReflectionTestUtils.setField(cqlLibraryService, "loadTimeoutMillis", 5_000L);
     ReflectionTestUtils.setField(
         cqlLibraryService, "madieLibraryService", "http://test.libraries-url");
     ReflectionTestUtils.setField(
         cqlLibraryService, "librariesVersionedUri", "/cql-libraries/versioned");
+    return cqlLibraryService;
   }
 
   @Test
@@ -90,4 +114,209 @@ class CqlLibraryServiceTest {
     CqlLibrary output = cqlLibraryService.getLibrary("FHIRHelpers", "4.0.001", "OKTA_TOKEN");
     assertThat(output, is(nullValue()));
   }
+
+  @Test
+  void getLibraryServesCachedLibrary() {
+    CqlLibrary theLibrary =
+        CqlLibrary.builder()
+            .cqlLibraryName("FHIRHelpers")
+            .version(Version.parse("4.0.001"))
+            .build();
+    when(restTemplate.exchange(
+            any(URI.class), any(HttpMethod.class), any(HttpEntity.class), any(Class.class)))
+        .thenReturn(ResponseEntity.ok(theLibrary));
+
+    cqlLibraryService.getLibrary("FHIRHelpers", "4.0.001", "OKTA_TOKEN");
+    CqlLibrary output = cqlLibraryService.getLibrary("FHIRHelpers", "4.0.001", "OTHER_TOKEN");
+
+    assertThat(output, is(equalTo(theLibrary)));
+    verify(restTemplate, times(1))
+        .exchange(any(URI.class), any(HttpMethod.class), any(HttpEntity.class), any(Class.class));
+  }
+
+  @Test
+  void getLibraryRefreshesLibraryReadAfterRefreshInterval() {
+    ReflectionTestUtils.setField(cqlLibraryService, "refreshAfterMillis", 0L);
+    CqlLibrary theLibrary =
+        CqlLibrary.builder()
+            .cqlLibraryName("FHIRHelpers")
+            .version(Version.parse("4.0.001"))
+            .cql("library FHIRHelpers")
+            .build();
+    CqlLibrary updatedLibrary =
+        CqlLibrary.builder()
+            .cqlLibraryName("FHIRHelpers")
+            .version(Version.parse("4.0.001"))
+            .cql("library FHIRHelpers version '4.0.001'")
+            .build();
+    when(restTemplate.exchange(
+            any(URI.class), any(HttpMethod.class), any(HttpEntity.class), any(Class.class)))
+        .thenReturn(ResponseEntity.ok(theLibrary))
+        .thenReturn(ResponseEntity.ok(updatedLibrary));
+
+    cqlLibraryService.getLibrary("FHIRHelpers", "4.0.001", "OKTA_TOKEN");
+    // served from the cache while the refresh runs
+    CqlLibrary refreshing = cqlLibraryService.getLibrary("FHIRHelpers", "4.0.001", "OKTA_TOKEN");
+    CqlLibrary refreshed = cqlLibraryService.getLibrary("FHIRHelpers", "4.0.001", "OKTA_TOKEN");
+
+    assertThat(refreshing, is(equalTo(theLibrary)));
+    assertThat(refreshed, is(equalTo(updatedLibrary)));
+  }
+
+  @Test
+  void getLibraryDoesNotCacheMissingBody() {
+    when(restTemplate.exchange(
+            any(URI.class), any(HttpMethod.class), any(HttpEntity.class), any(Class.class)))
+        .thenReturn(ResponseEntity.ok().build());
+
+    cqlLibraryService.getLibrary("FHIRHelpers", "4.0.001", "OKTA_TOKEN");
+    cqlLibraryService.getLibrary("FHIRHelpers", "4.0.001", "OKTA_TOKEN");
+
+    verify(restTemplate, times(2))
+        .exchange(any(URI.class), any(HttpMethod.class), any(HttpEntity.class), any(Class.class));
+  }
+
+  @Test
+  void getLibraryServesStaleLibraryWhenRevalidationFails() {
+    ReflectionTestUtils.setField(cqlLibraryService, "refreshAfterMillis", 0L);
+    CqlLibrary theLibrary =
+        CqlLibrary.builder()
+            .cqlLibraryName("FHIRHelpers")
+            .version(Version.parse("4.0.001"))
+            .build();
+    when(restTemplate.exchange(
+            any(URI.class), any(HttpMethod.class), any(HttpEntity.class), any(Class.class)))
+        .thenReturn(ResponseEntity.ok(theLibrary))
+        .thenThrow(new ResourceAccessException("library service is down"));
+
+    cqlLibraryService.getLibrary("FHIRHelpers", "4.0.001", "OKTA_TOKEN");
+    CqlLibrary stale = cqlLibraryService.getLibrary("FHIRHelpers", "4.0.001", "OKTA_TOKEN");
+    CqlLibrary stillStale = cqlLibraryService.getLibrary("FHIRHelpers", "4.0.001", "OKTA_TOKEN");
+
+    assertThat(stale, is(equalTo(theLibrary)));
+    assertThat(stillStale, is(equalTo(theLibrary)));
+  }
+
+  @Test
+  void getLibraryStopsServingLibraryThatNoLongerExists() {
+    ReflectionTestUtils.setField(cqlLibraryService, "refreshAfterMillis", 0L);
+    CqlLibrary theLibrary =
+        CqlLibrary.builder()
+            .cqlLibraryName("FHIRHelpers")
+            .version(Version.parse("4.0.001"))
+            .build();
+    when(restTemplate.exchange(
+            any(URI.class), any(HttpMethod.class), any(HttpEntity.class), any(Class.class)))
+        .thenReturn(ResponseEntity.ok(theLibrary))
+        .thenReturn(ResponseEntity.notFound().build());
+
+    cqlLibraryService.getLibrary("FHIRHelpers", "4.0.001", "OKTA_TOKEN");
+    // served while the revalidation finds it gone
+    cqlLibraryService.getLibrary("FHIRHelpers", "4.0.001", "OKTA_TOKEN");
+
+    assertThrows(
+        CqlLibraryNotFoundException.class,
+        () -> cqlLibraryService.getLibrary("FHIRHelpers", "4.0.001", "OKTA_TOKEN"));
+  }
+
+  @Test
+  void getLibraryServesCachedLibraryWhenRefreshIsRejected() {
+    cqlLibraryService =
+        newCqlLibraryService(
+            task -> {
+              throw new RejectedExecutionException("refresh pool is full");
+            });
+    ReflectionTestUtils.setField(cqlLibraryService, "refreshAfterMillis", 0L);
+    CqlLibrary theLibrary =
+        CqlLibrary.builder()
+            .cqlLibraryName("FHIRHelpers")
+            .version(Version.parse("4.0.001"))
+            .build();
+    when(restTemplate.exchange(
+            any(URI.class), any(HttpMethod.class), any(HttpEntity.class), any(Class.class)))
+        .thenReturn(ResponseEntity.ok(theLibrary));
+
+    cqlLibraryService.getLibrary("FHIRHelpers", "4.0.001", "OKTA_TOKEN");
+    CqlLibrary stale = cqlLibraryService.getLibrary("FHIRHelpers", "4.0.001", "OKTA_TOKEN");
+    CqlLibrary stillStale = cqlLibraryService.getLibrary("FHIRHelpers", "4.0.001", "OKTA_TOKEN");
+
+    assertThat(stale, is(equalTo(theLibrary)));
+    assertThat(stillStale, is(equalTo(theLibrary)));
+    verify(restTemplate, times(1))
+        .exchange(any(URI.class), any(HttpMethod.class), any(HttpEntity.class), any(Class.class));
+  }
+
+  @Test
+  void getLibraryStopsWaitingOnQueuedRefreshAfterLoadTimeout() {
+    // refreshes are queued but never run
+    List<Runnable> queuedRefreshes = new ArrayList<>();
+    cqlLibraryService = newCqlLibraryService(queuedRefreshes::add);
+    ReflectionTestUtils.setField(cqlLibraryService, "refreshAfterMillis", 0L);
+    ReflectionTestUtils.setField(cqlLibraryService, "loadTimeoutMillis", 50L);
+    CqlLibrary theLibrary =
+        CqlLibrary.builder()
+            .cqlLibraryName("FHIRHelpers")
+            .version(Version.parse("4.0.001"))
+            .cql("library FHIRHelpers")
+            .build();
+    CqlLibrary updatedLibrary =
+        CqlLibrary.builder()
+            .cqlLibraryName("FHIRHelpers")
+            .version(Version.parse("4.0.001"))
+            .cql("library FHIRHelpers version '4.0.001'")
+            .build();
+    when(restTemplate.exchange(
+            any(URI.class), any(HttpMethod.class), any(HttpEntity.class), any(Class.class)))
+        .thenReturn(ResponseEntity.ok(theLibrary))
+        .thenReturn(ResponseEntity.ok(updatedLibrary));
+
+    cqlLibraryService.getLibrary("FHIRHelpers", "4.0.001", "OKTA_TOKEN");
+    cqlLibraryService.getLibrary("FHIRHelpers", "4.0.001", "OKTA_TOKEN");
+    // the library expires while its refresh is still queued
+    cacheManager.getCache(CacheConfig.LIBRARIES_CACHE).clear();
+    CqlLibrary output = cqlLibraryService.getLibrary("FHIRHelpers", "4.0.001", "OKTA_TOKEN");
+
+    assertThat(queuedRefreshes.size(), is(equalTo(1)));
+    assertThat(output, is(equalTo(updatedLibrary)));
+  }
+
+  @Test
+  void getLibraryCollapsesConcurrentMisses() throws Exception {
+    CqlLibrary theLibrary =
+        CqlLibrary.builder()
+            .cqlLibraryName("FHIRHelpers")
+            .version(Version.parse("4.0.001"))
+            .build();
+    when(restTemplate.exchange(
+            any(URI.class), any(HttpMethod.class), any(HttpEntity.class), any(Class.class)))
+        .thenAnswer(
+            invocation -> {
+              Thread.sleep(200);
+              return ResponseEntity.ok(theLibrary);
+            });
+
+    int requests = 8;
+    ExecutorService executor = Executors.newFixedThreadPool(requests);
+    CountDownLatch start = new CountDownLatch(1);
+    List<Future<CqlLibrary>> libraries = new ArrayList<>();
+    try {
+      for (int i = 0; i < requests; i++) {
+        libraries.add(
+            executor.submit(
+                () -> {
+                  start.await();
+                  return cqlLibraryService.getLibrary("FHIRHelpers", "4.0.001", "OKTA_TOKEN");
+                }));
+      }
+      start.countDown();
+      for (Future<CqlLibrary> library : libraries) {
+        assertThat(library.get(5, TimeUnit.SECONDS), is(equalTo(theLibrary)));
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    verify(restTemplate, times(1))
+        .exchange(any(URI.class), any(HttpMethod.class), any(HttpEntity.class), any(Class.class));
+  }
 }
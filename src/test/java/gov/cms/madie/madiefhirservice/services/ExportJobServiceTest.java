@@ -0,0 +1,186 @@
+package gov.cms.madie.madiefhirservice.services;
+
+import gov.cms.madie.madiefhirservice.dto.EncodingFormat;
+import gov.cms.madie.madiefhirservice.dto.ExportJob;
+import gov.cms.madie.madiefhirservice.dto.TestCaseExportOptions;
+import gov.cms.madie.madiefhirservice.exceptions.ExportJobNotReadyException;
+import gov.cms.madie.madiefhirservice.exceptions.ResourceNotFoundException;
+import gov.cms.madie.models.dto.ExportDTO;
+import gov.cms.madie.models.measure.Measure;
+import gov.cms.madie.models.measure.TestCase;
+import org.hl7.fhir.r4.model.Bundle;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.Principal;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class ExportJobServiceTest {
+
+  private static final String USER = "john_doe";
+  private static final TestCaseExportOptions COMPACT_PARALLEL =
+      TestCaseExportOptions.builder().format(EncodingFormat.COMPACT).parallel(true).build();
+
+  @Mock private TestCaseBundleService testCaseBundleService;
+  @Mock private ExportService exportService;
+  @Mock private Principal principal;
+
+  @TempDir Path spoolDirectory;
+
+  private Measure measure;
+
+  @BeforeEach
+  void setUp() {
+    measure =
+        Measure.builder().id("measure-1").ecqmTitle("title").model("QI-Core v4.1.1").build();
+  }
+
+  private ExportJobService newService(long ttlMillis) {
+    // runs jobs on the submitting thread so they have finished when submit returns
+    return new ExportJobService(
+        testCaseBundleService,
+        exportService,
+        Runnable::run,
+        spoolDirectory.toString(),
+        ttlMillis);
+  }
+
+  @Test
+  void submitMeasureExportSpoolsTheExport() throws IOException {
+    // given
+    ExportJobService service = newService(60000);
+    when(exportService.createExport(measure, principal, "token"))
+        .thenReturn("zip".getBytes(StandardCharsets.UTF_8));
+
+    // when
+    ExportJob job = service.submitMeasureExport(USER, measure, principal, "token");
+
+    // then
+    ExportJob polled = service.getJob(USER, job.getId());
+    assertThat(polled.getStatus(), is(equalTo(ExportJob.Status.COMPLETED)));
+    assertThat(polled.getProcessed(), is(equalTo(1)));
+    assertThat(polled.getCompletedAt(), is(notNullValue()));
+    Path file = service.getJobFile(USER, job.getId());
+    assertThat(Files.readString(file), is(equalTo("zip")));
+  }
+
+  @Test
+  void submitTestCaseExportReportsProgress() throws IOException {
+    // given
+    ExportJobService service = newService(60000);
+    List<TestCase> testCases =
+        List.of(TestCase.builder().id("tc-1").build(), TestCase.builder().id("tc-2").build());
+    ExportDTO exportDTO = ExportDTO.builder().measure(measure).build();
+    Map<String, Bundle> bundles = Map.of("tc-1/title", new Bundle());
+    when(testCaseBundleService.getTestCaseExportBundle(
+            eq(measure),
+            eq(testCases),
+            eq(exportDTO),
+            eq(COMPACT_PARALLEL)))
+        .thenAnswer(
+            invocation -> {
+              TestCaseExportOptions options = invocation.getArgument(3);
+              testCases.forEach(testCase -> options.getOnTestCaseProcessed().run());
+              return bundles;
+            });
+    when(testCaseBundleService.getExportedTestCases(testCases, bundles))
+        .thenReturn(testCases.subList(0, 1));
+    doAnswer(
+            invocation -> {
+              OutputStream out = invocation.getArgument(3);
+              out.write("zip".getBytes(StandardCharsets.UTF_8));
+              return null;
+            })
+        .when(testCaseBundleService)
+        .writeTestCaseZip(eq(measure), eq(bundles), anyList(), any(OutputStream.class));
+
+    // when
+    ExportJob job =
+        service.submitTestCaseExport(USER, exportDTO, testCases, COMPACT_PARALLEL);
+
+    // then
+    ExportJob polled = service.getJob(USER, job.getId());
+    assertThat(polled.getStatus(), is(equalTo(ExportJob.Status.COMPLETED)));
+    assertThat(polled.getProcessed(), is(equalTo(2)));
+    assertThat(polled.getTotal(), is(equalTo(2)));
+    assertThat(
+        polled.getMessage(), is(equalTo("1 test cases could not be parsed and were left out")));
+    assertThat(Files.readString(service.getJobFile(USER, job.getId())), is(equalTo("zip")));
+  }
+
+  @Test
+  void failedExportIsReportedAndHasNoFile() {
+    // given
+    ExportJobService service = newService(60000);
+    ExportDTO exportDTO = ExportDTO.builder().measure(measure).build();
+    when(testCaseBundleService.getTestCaseExportBundle(
+            any(Measure.class),
+            anyList(),
+            any(ExportDTO.class),
+            any(TestCaseExportOptions.class)))
+        .thenThrow(new ResourceNotFoundException("test cases", "measure", "measure-1"));
+
+    // when
+    ExportJob job =
+        service.submitTestCaseExport(
+            USER, exportDTO, List.of(), TestCaseExportOptions.defaults());
+
+    // then
+    assertThat(service.getJob(USER, job.getId()).getStatus(), is(equalTo(ExportJob.Status.FAILED)));
+    assertThrows(ExportJobNotReadyException.class, () -> service.getJobFile(USER, job.getId()));
+  }
+
+  @Test
+  void jobsOfOtherUsersAreNotFound() {
+    // given
+    ExportJobService service = newService(60000);
+    when(exportService.createExport(measure, principal, "token")).thenReturn(new byte[0]);
+    ExportJob job = service.submitMeasureExport(USER, measure, principal, "token");
+
+    // when / then
+    assertThrows(ResourceNotFoundException.class, () -> service.getJob("jane_doe", job.getId()));
+    assertThrows(
+        ResourceNotFoundException.class, () -> service.getJobFile("jane_doe", job.getId()));
+  }
+
+  @Test
+  void removeExpiredJobsDeletesJobsAndFiles() throws IOException {
+    // given
+    // a negative TTL expires everything, including files written just now
+    ExportJobService service = newService(-1000);
+    when(exportService.createExport(measure, principal, "token")).thenReturn(new byte[0]);
+    ExportJob job = service.submitMeasureExport(USER, measure, principal, "token");
+    Path file = service.getJobFile(USER, job.getId());
+    Path strayFile = Files.writeString(spoolDirectory.resolve("stray.zip"), "stray");
+
+    // when
+    service.removeExpiredJobs();
+
+    // then
+    assertThat(Files.exists(file), is(false));
+    assertThat(Files.exists(strayFile), is(false));
+    assertThrows(ResourceNotFoundException.class, () -> service.getJob(USER, job.getId()));
+  }
+}
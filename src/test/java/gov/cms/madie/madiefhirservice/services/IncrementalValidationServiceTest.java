@@ -0,0 +1,174 @@
+package gov.cms.madie.madiefhirservice.services;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.validation.FhirValidator;
+import ca.uhn.fhir.validation.ResultSeverityEnum;
+import ca.uhn.fhir.validation.SingleValidationMessage;
+import ca.uhn.fhir.validation.ValidationResult;
+import gov.cms.madie.models.common.ModelType;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class IncrementalValidationServiceTest {
+
+  @Mock private FhirValidator fhirValidator;
+
+  private FhirContext fhirContext;
+  private IncrementalValidationService incrementalValidationService;
+
+  @BeforeEach
+  void setUp() {
+    fhirContext = FhirContext.forR4();
+    incrementalValidationService =
+        new IncrementalValidationService(
+            new BundleEntryValidationService(Runnable::run),
+            Runnable::run,
+            new SimpleMeterRegistry(),
+            10,
+            60000);
+    when(fhirValidator.validateWithResult(any(IBaseResource.class)))
+        .thenAnswer(
+            invocation -> {
+              if (invocation.getArgument(0) instanceof Bundle) {
+                return new ValidationResult(fhirContext, List.of());
+              }
+              SingleValidationMessage message = new SingleValidationMessage();
+              message.setSeverity(ResultSeverityEnum.WARNING);
+              message.setLocationString("Patient.gender");
+              message.setMessage("check gender");
+              return new ValidationResult(fhirContext, List.of(message));
+            });
+  }
+
+  @Test
+  void testValidateEntriesOnlyRevalidatesChangedEntries() {
+    // given
+    Bundle bundle = bundleOf(patient("p1"), patient("p2"));
+    incrementalValidationService.validateEntries(
+        ModelType.QI_CORE, fhirContext, fhirValidator, bundle, null, "token-1");
+    ((Patient) bundle.getEntry().get(1).getResource())
+        .setGender(Enumerations.AdministrativeGender.FEMALE);
+
+    // when
+    OperationOutcome output =
+        (OperationOutcome)
+            incrementalValidationService.validateEntries(
+                ModelType.QI_CORE, fhirContext, fhirValidator, bundle, "token-1", "token-2");
+
+    // then
+    verify(fhirValidator, times(5)).validateWithResult(any(IBaseResource.class));
+    verify(fhirValidator, times(2)).validateWithResult(any(Bundle.class));
+    assertThat(output.getIssue().size(), is(equalTo(2)));
+    assertThat(
+        output.getIssue().get(0).getExpression().get(0).getValue(),
+        is(equalTo("Bundle.entry[0].resource.gender")));
+    assertThat(
+        output.getIssue().get(1).getExpression().get(0).getValue(),
+        is(equalTo("Bundle.entry[1].resource.gender")));
+  }
+
+  @Test
+  void testValidateEntriesIgnoresTokenOfOtherModel() {
+    // given
+    Bundle bundle = bundleOf(patient("p1"));
+    incrementalValidationService.validateEntries(
+        ModelType.QI_CORE, fhirContext, fhirValidator, bundle, null, "token-1");
+
+    // when
+    incrementalValidationService.validateEntries(
+        ModelType.QI_CORE_6_0_0, fhirContext, fhirValidator, bundle, "token-1", "token-2");
+
+    // then
+    verify(fhirValidator, times(4)).validateWithResult(any(IBaseResource.class));
+  }
+
+  @Test
+  void testValidateEntriesReusesOutcomesForMovedEntries() {
+    // given
+    Patient first = patient("p1");
+    Patient second = patient("p2");
+    incrementalValidationService.validateEntries(
+        ModelType.QI_CORE, fhirContext, fhirValidator, bundleOf(first, second), null, "token-1");
+
+    // when
+    OperationOutcome output =
+        (OperationOutcome)
+            incrementalValidationService.validateEntries(
+                ModelType.QI_CORE,
+                fhirContext,
+                fhirValidator,
+                bundleOf(second, first),
+                "token-1",
+                "token-2");
+
+    // then
+    verify(fhirValidator, times(4)).validateWithResult(any(IBaseResource.class));
+    assertThat(output.getIssue().size(), is(equalTo(2)));
+    assertThat(
+        output.getIssue().get(1).getExpression().get(0).getValue(),
+        is(equalTo("Bundle.entry[1].resource.gender")));
+  }
+
+  @Test
+  void testValidateEntriesValidatesBundleShell() {
+    // given
+    Bundle bundle = bundleOf(patient("p1"));
+    incrementalValidationService.validateEntries(
+        ModelType.QI_CORE, fhirContext, fhirValidator, bundle, null, "token-1");
+    SingleValidationMessage shellMessage = new SingleValidationMessage();
+    shellMessage.setSeverity(ResultSeverityEnum.ERROR);
+    shellMessage.setLocationString("Bundle");
+    shellMessage.setMessage("Bundle.type: minimum required = 1, but only found 0");
+    when(fhirValidator.validateWithResult(any(Bundle.class)))
+        .thenReturn(new ValidationResult(fhirContext, List.of(shellMessage)));
+
+    // when
+    OperationOutcome output =
+        (OperationOutcome)
+            incrementalValidationService.validateEntries(
+                ModelType.QI_CORE, fhirContext, fhirValidator, bundle, "token-1", "token-2");
+
+    // then
+    assertThat(output.getIssue().size(), is(equalTo(2)));
+    assertThat(
+        output.getIssue().get(0).getSeverity(),
+        is(equalTo(OperationOutcome.IssueSeverity.ERROR)));
+    assertThat(
+        output.getIssue().get(1).getExpression().get(0).getValue(),
+        is(equalTo("Bundle.entry[0].resource.gender")));
+  }
+
+  private Patient patient(String id) {
+    Patient patient = new Patient();
+    patient.setId(id);
+    return patient;
+  }
+
+  private Bundle bundleOf(Patient... patients) {
+    Bundle bundle = new Bundle();
+    for (Patient patient : patients) {
+      bundle.addEntry().setResource(patient);
+    }
+    return bundle;
+  }
+}
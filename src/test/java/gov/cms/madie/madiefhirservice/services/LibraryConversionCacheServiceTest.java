@@ -0,0 +1,70 @@
+package gov.cms.madie.madiefhirservice.services;
+
+import gov.cms.madie.madiefhirservice.utils.BundleUtil;
+import gov.cms.madie.models.common.Version;
+import gov.cms.madie.models.library.CqlLibrary;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hl7.fhir.r4.model.Library;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Optional;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class LibraryConversionCacheServiceTest {
+
+  private LibraryConversionCacheService libraryConversionCache;
+  private CqlLibrary cqlLibrary;
+
+  @BeforeEach
+  void setUp() {
+    libraryConversionCache =
+        new LibraryConversionCacheService(new SimpleMeterRegistry(), 10, 60000);
+    cqlLibrary =
+        CqlLibrary.builder()
+            .cqlLibraryName("FHIRHelpers")
+            .version(Version.builder().major(4).minor(0).revisionNumber(1).build())
+            .cql("library FHIRHelpers version '4.0.001'")
+            .build();
+  }
+
+  @Test
+  void testCacheKeyDiffersByContentAndVariant() {
+    String key =
+        libraryConversionCache.cacheKey(cqlLibrary, BundleUtil.MEASURE_BUNDLE_TYPE_CALCULATION);
+    String exportKey =
+        libraryConversionCache.cacheKey(cqlLibrary, BundleUtil.MEASURE_BUNDLE_TYPE_EXPORT);
+    String changedCqlKey =
+        libraryConversionCache.cacheKey(
+            CqlLibrary.builder()
+                .cqlLibraryName("FHIRHelpers")
+                .version(cqlLibrary.getVersion())
+                .cql(cqlLibrary.getCql() + "\n")
+                .build(),
+            BundleUtil.MEASURE_BUNDLE_TYPE_CALCULATION);
+
+    assertThat(libraryConversionCache.cacheKey(cqlLibrary, null), is(equalTo(key)));
+    assertThat(exportKey, is(not(equalTo(key))));
+    assertThat(changedCqlKey, is(not(equalTo(key))));
+  }
+
+  @Test
+  void testGetReturnsCopies() {
+    String key = libraryConversionCache.cacheKey(cqlLibrary, BundleUtil.MEASURE_BUNDLE_TYPE_EXPORT);
+    Library library = new Library().setName("FHIRHelpers");
+    libraryConversionCache.put(key, library);
+    library.setName("changed after caching");
+
+    Optional<Library> first = libraryConversionCache.get(key);
+    Optional<Library> second = libraryConversionCache.get(key);
+
+    assertThat(first.get().getName(), is(equalTo("FHIRHelpers")));
+    assertThat(first.get(), is(not(sameInstance(second.get()))));
+    assertThat(libraryConversionCache.get("unknown").isPresent(), is(false));
+  }
+}
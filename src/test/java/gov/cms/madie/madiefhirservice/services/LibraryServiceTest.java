@@ -7,46 +7,65 @@ import gov.cms.madie.madiefhirservice.utils.LibraryHelper;
 import gov.cms.madie.madiefhirservice.utils.ResourceFileUtil;
 import gov.cms.madie.models.common.Version;
 import gov.cms.madie.models.library.CqlLibrary;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.hl7.fhir.r4.model.Attachment;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Library;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
-import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @ExtendWith(MockitoExtension.class)
 class LibraryServiceTest implements LibraryHelper, ResourceFileUtil {
 
-  @InjectMocks private LibraryService libraryService;
+  private LibraryService libraryService;
 
   @Mock private CqlLibraryService cqlLibraryService;
   @Mock private LibraryTranslatorService libraryTranslatorService;
   @Mock private LibraryCqlVisitorFactory libCqlVisitorFactory;
   @Mock private HumanReadableService humanReadableService;
+  private LibraryConversionCacheService libraryConversionCache;
   private Library fhirHelpersLibrary;
 
   Bundle bundle = new Bundle();
 
   @BeforeEach
   void buildLibraryBundle() {
+    libraryConversionCache =
+        new LibraryConversionCacheService(new SimpleMeterRegistry(), 10, 60000);
+    libraryService =
+        new LibraryService(
+            cqlLibraryService,
+            libraryTranslatorService,
+            libCqlVisitorFactory,
+            humanReadableService,
+            Runnable::run,
+            libraryConversionCache);
 
     String fhirHelpersCql = getStringFromTestResource("/includes/FHIRHelpers.cql");
     fhirHelpersLibrary = createLibrary(fhirHelpersCql);
@@ -102,6 +121,39 @@ class LibraryServiceTest implements LibraryHelper, ResourceFileUtil {
         "Cannot find CQL for library name: FHIRHelpers, version: 4.0.001", exception.getMessage());
   }
 
+  @Test
+  void testCqlLibraryToFhirLibraryConvertsEachVariantOnce() {
+    CqlLibrary cqlLibrary =
+        CqlLibrary.builder()
+            .cqlLibraryName("FHIRHelpers")
+            .version(Version.builder().major(4).minor(0).revisionNumber(1).build())
+            .cql("library FHIRHelpers version '4.0.001'")
+            .build();
+    when(libraryTranslatorService.convertToFhirLibrary(any(CqlLibrary.class)))
+        .thenAnswer(invocation -> new Library().setName("FHIRHelpers").setVersion("4.0.001"));
+    when(humanReadableService.generateLibraryHumanReadable(any(Library.class)))
+        .thenReturn("<div>FHIRHelpers</div>");
+
+    Library calculation =
+        libraryService.cqlLibraryToFhirLibrary(
+            cqlLibrary, BundleUtil.MEASURE_BUNDLE_TYPE_CALCULATION);
+    calculation.setPublisher("changed by the caller");
+    Library cachedCalculation =
+        libraryService.cqlLibraryToFhirLibrary(
+            cqlLibrary, BundleUtil.MEASURE_BUNDLE_TYPE_CALCULATION);
+    Library export =
+        libraryService.cqlLibraryToFhirLibrary(cqlLibrary, BundleUtil.MEASURE_BUNDLE_TYPE_EXPORT);
+    Library cachedExport =
+        libraryService.cqlLibraryToFhirLibrary(cqlLibrary, BundleUtil.MEASURE_BUNDLE_TYPE_EXPORT);
+
+    verify(libraryTranslatorService, times(2)).convertToFhirLibrary(cqlLibrary);
+    assertThat(cachedCalculation, is(not(sameInstance(calculation))));
+    assertThat(cachedCalculation.hasPublisher(), is(false));
+    assertThat(cachedCalculation.hasText(), is(false));
+    assertThat(
+        cachedExport.getText().getDivAsString(), is(equalTo(export.getText().getDivAsString())));
+  }
+
   @Test
   public void testGetIncludedLibraries() {
     String mainLibrary =
@@ -141,6 +193,66 @@ class LibraryServiceTest implements LibraryHelper, ResourceFileUtil {
     assertNotNull(includedLibraryMap.get("IncludedLibrary0.1.0"));
   }
 
+  @Test
+  public void testGetIncludedLibrariesFetchesSharedIncludeOnceInIncludeOrder() {
+    String mainLibrary =
+        "library MainLibrary version '1.0.000'\n"
+            + "include LibraryA version '1.0.000' called A\n"
+            + "include LibraryB version '1.0.000' called B\n";
+    Map<String, String> includedCql =
+        Map.of(
+            "LibraryA",
+            "library LibraryA version '1.0.000'\ninclude Common version '1.0.000' called C\n",
+            "LibraryB",
+            "library LibraryB version '1.0.000'\ninclude Common version '1.0.000' called C\n",
+            "Common",
+            "library Common version '1.0.000'\n");
+
+    when(libCqlVisitorFactory.visit(anyString()))
+        .thenAnswer(invocation -> new LibraryCqlVisitorFactory().visit(invocation.getArgument(0)));
+    when(cqlLibraryService.getLibrary(anyString(), eq("1.0.000"), anyString()))
+        .thenAnswer(
+            invocation ->
+                CqlLibrary.builder()
+                    .cqlLibraryName(invocation.getArgument(0))
+                    .cql(includedCql.get(invocation.getArgument(0, String.class)))
+                    .build());
+    when(libraryTranslatorService.convertToFhirLibrary(any(CqlLibrary.class)))
+        .thenAnswer(
+            invocation -> {
+              CqlLibrary cqlLibrary = invocation.getArgument(0);
+              return new Library()
+                  .setName(cqlLibrary.getCqlLibraryName())
+                  .setVersion("1.0.000")
+                  .setContent(
+                      List.of(
+                          new Attachment()
+                              .setContentType("text/cql")
+                              .setData(cqlLibrary.getCql().getBytes())));
+            });
+
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    Map<String, Library> libraries = new LinkedHashMap<>();
+    try {
+      new LibraryService(
+              cqlLibraryService,
+              libraryTranslatorService,
+              libCqlVisitorFactory,
+              humanReadableService,
+              executor,
+              libraryConversionCache)
+          .getIncludedLibraries(
+              mainLibrary, libraries, BundleUtil.MEASURE_BUNDLE_TYPE_CALCULATION, "TOKEN");
+    } finally {
+      executor.shutdown();
+    }
+
+    assertThat(
+        List.copyOf(libraries.keySet()),
+        is(equalTo(List.of("LibraryA1.0.000", "Common1.0.000", "LibraryB1.0.000"))));
+    verify(cqlLibraryService, times(1)).getLibrary("Common", "1.0.000", "TOKEN");
+  }
+
   @Test
   public void testGetIncludedLibrariesWhenBlankCql() {
     String mainLibrary = "";
@@ -17,12 +17,16 @@ import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
-import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 
 import java.security.Principal;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.is;
@@ -39,7 +43,7 @@ import static org.mockito.Mockito.when;
 
 @ExtendWith(MockitoExtension.class)
 public class MeasureBundleServiceTest implements ResourceFileUtil {
-  @InjectMocks private MeasureBundleService measureBundleService;
+  private MeasureBundleService measureBundleService;
 
   @Mock private MeasureTranslatorService measureTranslatorService;
   @Mock private LibraryTranslatorService libraryTranslatorService;
@@ -57,6 +61,8 @@ public class MeasureBundleServiceTest implements ResourceFileUtil {
 
   @BeforeEach
   public void setup() throws JsonProcessingException {
+    measureBundleService = createMeasureBundleService(Runnable::run);
+
     String madieMeasureJson = getStringFromTestResource("/measures/madie_measure.json");
     madieMeasure = MeasureTestHelper.createMadieMeasureFromJson(madieMeasureJson);
 
@@ -224,4 +230,69 @@ public class MeasureBundleServiceTest implements ResourceFileUtil {
         r4MeasureLibrary.getPublisher(),
         is(equalTo(madieMeasure.getMeasureMetaData().getSteward().getName())));
   }
+
+  @Test
+  public void testCreateMeasureBundleForExportOverlapsRemoteCalls() throws Exception {
+    when(measureTranslatorService.createFhirMeasureForMadieMeasure(madieMeasure))
+        .thenReturn(measure);
+    when(libraryTranslatorService.convertToFhirLibrary(any(CqlLibrary.class))).thenReturn(library);
+
+    // the included libraries only arrive once both translator calls are in flight
+    CountDownLatch translatorCalls = new CountDownLatch(2);
+    doAnswer(
+            invocation -> {
+              assertThat(translatorCalls.await(5, TimeUnit.SECONDS), is(true));
+              return null;
+            })
+        .when(libraryService)
+        .getIncludedLibraries(anyString(), anyMap(), anyString(), anyString());
+    when(elmTranslatorClient.getEffectiveDataRequirements(
+            any(CqlLibraryDetails.class), anyBoolean(), anyString()))
+        .thenAnswer(
+            invocation -> {
+              translatorCalls.countDown();
+              return effectiveDataRequirements;
+            });
+    when(elmTranslatorClient.getModuleDefinitionLibrary(
+            any(CqlLibraryDetails.class), anyBoolean(), anyString()))
+        .thenAnswer(
+            invocation -> {
+              translatorCalls.countDown();
+              return effectiveDataRequirements;
+            });
+    when(humanReadableService.generateMeasureHumanReadable(
+            any(Measure.class), any(Bundle.class), any(org.hl7.fhir.r5.model.Library.class)))
+        .thenReturn(humanReadable);
+    when(humanReadableService.generateLibraryHumanReadable(
+            any(org.hl7.fhir.r4.model.Library.class)))
+        .thenReturn("<div>test narrative</div>");
+
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    Bundle bundle;
+    try {
+      bundle =
+          createMeasureBundleService(executor)
+              .createMeasureBundle(
+                  madieMeasure,
+                  mock(Principal.class),
+                  BundleUtil.MEASURE_BUNDLE_TYPE_EXPORT,
+                  "token");
+    } finally {
+      executor.shutdown();
+    }
+
+    assertThat(bundle.getEntry().size(), is(2));
+    var r4Measure = (org.hl7.fhir.r4.model.Measure) bundle.getEntry().get(0).getResource();
+    assertThat(r4Measure.getContained().get(0).getId(), is(equalTo("effective-data-requirements")));
+  }
+
+  private MeasureBundleService createMeasureBundleService(Executor executor) {
+    return new MeasureBundleService(
+        measureTranslatorService,
+        libraryTranslatorService,
+        libraryService,
+        elmTranslatorClient,
+        humanReadableService,
+        executor);
+  }
 }
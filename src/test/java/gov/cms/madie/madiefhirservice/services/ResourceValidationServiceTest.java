@@ -4,6 +4,7 @@ import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.util.BundleUtil;
 import ca.uhn.fhir.util.OperationOutcomeUtil;
 import gov.cms.madie.madiefhirservice.constants.UriConstants;
+import gov.cms.madie.madiefhirservice.services.ResourceValidationService.BudgetedOutcome;
 import org.hl7.fhir.instance.model.api.IBaseBundle;
 import org.hl7.fhir.instance.model.api.IBaseOperationOutcome;
 import org.hl7.fhir.r4.model.Bundle;
@@ -11,6 +12,7 @@ import org.hl7.fhir.r4.model.Encounter;
 import org.hl7.fhir.r4.model.OperationOutcome;
 import org.hl7.fhir.r4.model.Patient;
 import org.hl7.fhir.r4.model.Procedure;
+import org.hl7.fhir.r4.model.Reference;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
@@ -346,6 +348,106 @@ class ResourceValidationServiceTest {
     assertThat(output, is(false));
   }
 
+  @Test
+  void testValidateBundleReferencesReturnsIssueForUnresolvedReference() {
+    // given
+    Patient patient = new Patient();
+    patient.setId("p1");
+    Encounter encounter = new Encounter().setSubject(new Reference("Patient/p1"));
+    encounter.setId("e1");
+    Procedure procedure = new Procedure().setSubject(new Reference("Patient/missing"));
+    procedure.setId("pr1");
+    Bundle bundle = new Bundle();
+    bundle.addEntry().setFullUrl("https://madie.cms.gov/Patient/p1").setResource(patient);
+    bundle.addEntry().setFullUrl("https://madie.cms.gov/Encounter/e1").setResource(encounter);
+    bundle.addEntry().setFullUrl("https://madie.cms.gov/Procedure/pr1").setResource(procedure);
+
+    // when
+    OperationOutcome output =
+        (OperationOutcome) validationService.validateBundleReferences(fhirContext, bundle);
+
+    // then
+    assertThat(output.getIssue().size(), is(equalTo(1)));
+    assertThat(output.getIssue().get(0).getSeverity().toCode(), is(equalTo("warning")));
+    assertThat(
+        output.getIssue().get(0).getDiagnostics(),
+        is(
+            equalTo(
+                "Resource of type [Procedure] with Id [pr1] has an unresolved reference "
+                    + "[Patient/missing].")));
+    assertThat(
+        output.getIssue().get(0).getLocation().get(0).getValue(),
+        is(equalTo("Bundle.entry[2].resource")));
+  }
+
+  @Test
+  void testCountErrorsCountsErrorAndFatalIssues() {
+    // given
+    OperationOutcome outcome = new OperationOutcome();
+    outcome.addIssue().setSeverity(OperationOutcome.IssueSeverity.ERROR);
+    outcome.addIssue().setSeverity(OperationOutcome.IssueSeverity.WARNING);
+    outcome.addIssue().setSeverity(OperationOutcome.IssueSeverity.FATAL);
+
+    // when
+    int output = validationService.countErrors(fhirContext, outcome);
+
+    // then
+    assertThat(output, is(equalTo(2)));
+  }
+
+  @Test
+  void testApplyErrorBudgetDropsIssuesAfterLastAllowedError() {
+    // given profile checks that alone exceed the budget
+    OperationOutcome outcome = new OperationOutcome();
+    outcome.addIssue().setSeverity(OperationOutcome.IssueSeverity.ERROR).setDiagnostics("first");
+    outcome.addIssue().setSeverity(OperationOutcome.IssueSeverity.WARNING);
+    outcome.addIssue().setSeverity(OperationOutcome.IssueSeverity.ERROR).setDiagnostics("second");
+    outcome.addIssue().setSeverity(OperationOutcome.IssueSeverity.ERROR).setDiagnostics("third");
+
+    // when
+    BudgetedOutcome output = validationService.applyErrorBudget(fhirContext, outcome, 2, false);
+
+    // then
+    OperationOutcome budgeted = (OperationOutcome) output.outcome();
+    assertThat(output.stoppedEarly(), is(true));
+    assertThat(validationService.countErrors(fhirContext, budgeted), is(equalTo(2)));
+    assertThat(budgeted.getIssue().size(), is(equalTo(4)));
+    assertThat(budgeted.getIssue().get(2).getDiagnostics(), is(equalTo("second")));
+    assertThat(
+        budgeted.getIssue().get(3).getSeverity(),
+        is(equalTo(OperationOutcome.IssueSeverity.INFORMATION)));
+  }
+
+  @Test
+  void testApplyErrorBudgetKeepsOutcomeWithinBudget() {
+    // given
+    OperationOutcome outcome = new OperationOutcome();
+    outcome.addIssue().setSeverity(OperationOutcome.IssueSeverity.ERROR);
+    outcome.addIssue().setSeverity(OperationOutcome.IssueSeverity.WARNING);
+
+    // when
+    BudgetedOutcome output = validationService.applyErrorBudget(fhirContext, outcome, 1, false);
+
+    // then
+    assertThat(output.stoppedEarly(), is(false));
+    assertThat(((OperationOutcome) output.outcome()).getIssue().size(), is(equalTo(2)));
+  }
+
+  @Test
+  void testApplyErrorBudgetNotesValidationThatAlreadyStopped() {
+    // when
+    BudgetedOutcome output =
+        validationService.applyErrorBudget(fhirContext, new OperationOutcome(), 1, true);
+
+    // then
+    OperationOutcome budgeted = (OperationOutcome) output.outcome();
+    assertThat(output.stoppedEarly(), is(true));
+    assertThat(budgeted.getIssue().size(), is(equalTo(1)));
+    assertThat(
+        budgeted.getIssue().get(0).getSeverity(),
+        is(equalTo(OperationOutcome.IssueSeverity.INFORMATION)));
+  }
+
   @Test
   void testCombineOutcomesHandlesR4NoIssues() {
     // given
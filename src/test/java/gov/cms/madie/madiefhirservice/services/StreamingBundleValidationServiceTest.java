@@ -0,0 +1,218 @@
+package gov.cms.madie.madiefhirservice.services;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.validation.FhirValidator;
+import ca.uhn.fhir.validation.ResultSeverityEnum;
+import ca.uhn.fhir.validation.SingleValidationMessage;
+import ca.uhn.fhir.validation.ValidationResult;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class StreamingBundleValidationServiceTest {
+
+  private static final String PROFILE =
+      "\"meta\": {\"profile\": "
+          + "[\"http://hl7.org/fhir/us/qicore/StructureDefinition/qicore-patient\"]}";
+
+  @Mock private FhirValidator fhirValidator;
+
+  private final ObjectMapper mapper = new ObjectMapper();
+  private FhirContext fhirContext;
+  private StreamingBundleValidationService streamingValidationService;
+
+  @BeforeEach
+  void setUp() {
+    fhirContext = FhirContext.forR4();
+    streamingValidationService =
+        new StreamingBundleValidationService(
+            new ResourceValidationService(mapper),
+            new BundleEntryValidationService(Runnable::run),
+            mapper);
+  }
+
+  @Test
+  void testValidateBundleStreamWritesEntryOutcomesAndSummary() throws IOException {
+    when(fhirValidator.validateWithResult(any(IBaseResource.class)))
+        .thenReturn(new ValidationResult(fhirContext, List.of()));
+    String bundle =
+        "{\"resourceType\": \"Bundle\", \"type\": \"collection\", \"entry\": ["
+            + "{\"fullUrl\": \"https://madie.cms.gov/Patient/p1\", \"resource\": "
+            + "{\"resourceType\": \"Patient\", \"id\": \"p1\", " + PROFILE + "}},"
+            + "{\"resource\": {\"resourceType\": \"Encounter\", \"id\": \"e1\", "
+            + PROFILE + ", \"status\": \"finished\", "
+            + "\"subject\": {\"reference\": \"Patient/missing\"}}},"
+            + "{\"resource\": {\"resourceType\": \"Patient\", \"id\": \"p1\", " + PROFILE + "}}"
+            + "]}";
+
+    List<JsonNode> lines = validate(bundle);
+
+    // only the duplicate entry has issues, followed by the summary
+    assertThat(lines.size(), is(equalTo(2)));
+    assertThat(
+        lines.get(0).at("/issue/0/location/0").asText(), is(equalTo("Bundle.entry[2].resource")));
+    assertThat(lines.get(0).at("/issue/0/diagnostics").asText(), containsString("[p1]"));
+    JsonNode summary = lines.get(1);
+    assertThat(summary.get("code").asInt(), is(equalTo(400)));
+    assertThat(summary.get("successful").asBoolean(), is(false));
+    assertThat(summary.get("message").asText(), is(equalTo("Validated 3 entries")));
+    assertThat(
+        summary.at("/outcomeResponse/issue/0/diagnostics").asText(),
+        containsString("[Patient/missing]"));
+    // three entries and the bundle shell
+    verify(fhirValidator, times(4)).validateWithResult(any(IBaseResource.class));
+  }
+
+  @Test
+  void testValidateBundleStreamReportsBundleIssuesInSummary() throws IOException {
+    when(fhirValidator.validateWithResult(any(Bundle.class)))
+        .thenReturn(
+            new ValidationResult(
+                fhirContext, List.of(message("Bundle.type", ResultSeverityEnum.ERROR))));
+    when(fhirValidator.validateWithResult(any(Patient.class)))
+        .thenReturn(new ValidationResult(fhirContext, List.of()));
+    String bundle =
+        "{\"resourceType\": \"Bundle\", \"type\": \"collection\", \"entry\": ["
+            + "{\"fullUrl\": \"https://madie.cms.gov/Patient/p1\", \"resource\": "
+            + "{\"resourceType\": \"Patient\", \"id\": \"p1\", " + PROFILE
+            + ", \"gender\": \"female\"}}]}";
+
+    List<JsonNode> lines = validate(bundle);
+
+    assertThat(lines.size(), is(equalTo(1)));
+    JsonNode summary = lines.get(0);
+    assertThat(summary.get("successful").asBoolean(), is(false));
+    assertThat(
+        summary.at("/outcomeResponse/issue/0/location/0").asText(), is(equalTo("Bundle.type")));
+    ArgumentCaptor<IBaseResource> validated = ArgumentCaptor.forClass(IBaseResource.class);
+    verify(fhirValidator, times(2)).validateWithResult(validated.capture());
+    Bundle validatedShell = (Bundle) validated.getAllValues().get(1);
+    assertThat(validatedShell.getType(), is(equalTo(Bundle.BundleType.COLLECTION)));
+    Patient standIn = (Patient) validatedShell.getEntryFirstRep().getResource();
+    assertThat(standIn.getIdElement().getIdPart(), is(equalTo("p1")));
+    assertThat(standIn.hasGender(), is(false));
+  }
+
+  @Test
+  void testValidateBundleStreamHoldsEntriesUntilResourceTypeIsRead() throws IOException {
+    when(fhirValidator.validateWithResult(any(IBaseResource.class)))
+        .thenReturn(new ValidationResult(fhirContext, List.of()));
+    String bundle =
+        "{\"entry\": [{\"resource\": {\"resourceType\": \"Patient\", \"id\": \"p1\", "
+            + PROFILE
+            + "}}, {\"resource\": {\"resourceType\": \"Patient\", \"id\": \"p1\", "
+            + PROFILE
+            + "}}], \"resourceType\": \"Bundle\", \"type\": \"collection\"}";
+
+    List<JsonNode> lines = validate(bundle);
+
+    assertThat(lines.size(), is(equalTo(2)));
+    assertThat(
+        lines.get(0).at("/issue/0/location/0").asText(), is(equalTo("Bundle.entry[1].resource")));
+    assertThat(lines.get(1).get("message").asText(), is(equalTo("Validated 2 entries")));
+  }
+
+  @Test
+  void testValidateBundleStreamRejectsUnknownElementsInEntries() throws IOException {
+    when(fhirValidator.validateWithResult(any(IBaseResource.class)))
+        .thenReturn(new ValidationResult(fhirContext, List.of()));
+    String bundle =
+        "{\"resourceType\": \"Bundle\", \"type\": \"collection\", \"entry\": ["
+            + "{\"resource\": {\"resourceType\": \"Patient\", \"id\": \"p1\", "
+            + PROFILE
+            + ", \"nickname\": \"Pat\"}}]}";
+
+    List<JsonNode> lines = validate(bundle);
+
+    assertThat(lines.size(), is(equalTo(2)));
+    assertThat(lines.get(0).at("/issue/0/code").asText(), is(equalTo("structure")));
+    assertThat(
+        lines.get(0).at("/issue/0/location/0").asText(), is(equalTo("Bundle.entry[0].resource")));
+    // only the bundle shell reaches the validator
+    verify(fhirValidator, times(1)).validateWithResult(any(IBaseResource.class));
+  }
+
+  @Test
+  void testValidateBundleStreamWritesNothingForEntriesOfNonBundle() throws IOException {
+    String notABundle =
+        "{\"entry\": [{\"resource\": {\"resourceType\": \"Patient\", \"id\": \"p1\"}}], "
+            + "\"resourceType\": \"Parameters\"}";
+
+    List<JsonNode> lines = validate(notABundle);
+
+    assertThat(lines.size(), is(equalTo(1)));
+    assertThat(lines.get(0).get("code").asInt(), is(equalTo(400)));
+    verify(fhirValidator, never()).validateWithResult(any(IBaseResource.class));
+  }
+
+  @Test
+  void testValidateBundleStreamRejectsNonBundle() throws IOException {
+    List<JsonNode> lines = validate("{\"resourceType\": \"Patient\", \"id\": \"p1\"}");
+
+    assertThat(lines.size(), is(equalTo(1)));
+    assertThat(lines.get(0).get("code").asInt(), is(equalTo(400)));
+    assertThat(lines.get(0).get("successful").asBoolean(), is(false));
+    verify(fhirValidator, never()).validateWithResult(any(IBaseResource.class));
+  }
+
+  @Test
+  void testValidateBundleStreamReportsMalformedJson() throws IOException {
+    List<JsonNode> lines = validate("{\"resourceType\": \"Bundle\", \"entry\": [ {");
+
+    assertThat(lines.size(), is(equalTo(1)));
+    assertThat(
+        lines.get(0).get("message").asText(),
+        is(equalTo("An error occurred while parsing the resource")));
+  }
+
+  private SingleValidationMessage message(String location, ResultSeverityEnum severity) {
+    SingleValidationMessage message = new SingleValidationMessage();
+    message.setLocationString(location);
+    message.setSeverity(severity);
+    message.setMessage("test message");
+    return message;
+  }
+
+  private List<JsonNode> validate(String bundle) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    streamingValidationService.validateBundleStream(
+        fhirContext,
+        fhirValidator,
+        new ByteArrayInputStream(bundle.getBytes(StandardCharsets.UTF_8)),
+        out);
+    return out.toString(StandardCharsets.UTF_8).lines().map(this::readLine).toList();
+  }
+
+  private JsonNode readLine(String line) {
+    try {
+      return mapper.readTree(line);
+    } catch (IOException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+}
@@ -6,20 +6,19 @@ import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.junit.jupiter.api.Assertions.*;
-import static org.mockito.ArgumentMatchers.any;
-import static org.mockito.ArgumentMatchers.anyString;
-import static org.mockito.ArgumentMatchers.isNull;
-import static org.mockito.Mockito.doReturn;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -27,17 +26,15 @@ import gov.cms.madie.models.dto.ExportDTO;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.lang3.time.DateFormatUtils;
 import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Encounter;
 import org.hl7.fhir.r4.model.MeasureReport;
 import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Patient;
 import org.hl7.fhir.r4.model.Reference;
-import org.junit.jupiter.api.AfterAll;
-import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.InjectMocks;
-import org.mockito.MockedStatic;
-import org.mockito.Mockito;
 import org.mockito.Spy;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.springframework.test.util.ReflectionTestUtils;
@@ -48,16 +45,17 @@ import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.parser.IParser;
 import ca.uhn.fhir.parser.StrictErrorHandler;
 import gov.cms.madie.madiefhirservice.constants.UriConstants;
+import gov.cms.madie.madiefhirservice.dto.EncodingFormat;
+import gov.cms.madie.madiefhirservice.dto.TestCaseExportOptions;
 import gov.cms.madie.madiefhirservice.exceptions.InternalServerException;
 import gov.cms.madie.madiefhirservice.exceptions.ResourceNotFoundException;
+import gov.cms.madie.madiefhirservice.utils.ExportZipWriter;
 import gov.cms.madie.madiefhirservice.utils.FhirResourceHelpers;
 import gov.cms.madie.madiefhirservice.utils.MeasureTestHelper;
 import gov.cms.madie.madiefhirservice.utils.ResourceFileUtil;
 import gov.cms.madie.models.common.BundleType;
 import gov.cms.madie.models.measure.Measure;
 import gov.cms.madie.models.measure.TestCase;
-import gov.cms.madie.packaging.utils.PackagingUtilityFactory;
-import gov.cms.madie.packaging.utils.qicore411.PackagingUtilityImpl;
 
 @ExtendWith(MockitoExtension.class)
 class TestCaseBundleServiceTest implements ResourceFileUtil {
@@ -68,23 +66,14 @@ class TestCaseBundleServiceTest implements ResourceFileUtil {
 
   @Spy private FhirResourceHelpers fhirResourceHelpers;
 
+  @Spy private ExportZipWriter exportZipWriter = new ExportZipWriter(-1, 0);
+
   private Measure madieMeasure;
 
   private TestCase testCase;
 
   private ExportDTO exportDTO;
   private IParser parser;
-  private static MockedStatic<PackagingUtilityFactory> factory;
-
-  @BeforeAll
-  public static void staticSetup() {
-    factory = Mockito.mockStatic(PackagingUtilityFactory.class);
-  }
-
-  @AfterAll
-  public static void close() {
-    factory.close();
-  }
 
   @BeforeEach
   public void setUp() throws JsonProcessingException {
@@ -112,7 +101,7 @@ class TestCaseBundleServiceTest implements ResourceFileUtil {
     assertNull(patientEntry.getRequest().getMethod());
 
     var updatedBundle =
-        testCaseBundleService.updateEntry(testBundle, BundleType.TRANSACTION, parser, "123");
+        testCaseBundleService.updateEntry(testBundle, BundleType.TRANSACTION, "123");
 
     Bundle.BundleEntryComponent updatedPatientEntry = updatedBundle.getEntry().get(0);
     Bundle.BundleEntryComponent updatedEncounterEntry = updatedBundle.getEntry().get(1);
@@ -147,7 +136,7 @@ class TestCaseBundleServiceTest implements ResourceFileUtil {
     assertNull(testBundle.getEntry().get(0).getRequest().getMethod());
 
     var updatedBundle =
-        testCaseBundleService.updateEntry(testBundle, BundleType.COLLECTION, parser, "123");
+        testCaseBundleService.updateEntry(testBundle, BundleType.COLLECTION, "123");
 
     Bundle.BundleEntryComponent updatedPatientEntry = updatedBundle.getEntry().get(0);
     Bundle.BundleEntryComponent updatedEncounterEntry = updatedBundle.getEntry().get(1);
@@ -172,12 +161,57 @@ class TestCaseBundleServiceTest implements ResourceFileUtil {
   }
 
   @Test
-  void zipTestCaseContentsTest() throws IOException {
-
-    PackagingUtilityImpl utility = Mockito.mock(PackagingUtilityImpl.class);
+  void updateEntryRewritesReferencesStructurally() {
+    // given
+    Patient patient = new Patient();
+    patient.setId("Patient-1");
+    Encounter encounter = new Encounter();
+    encounter.setId("Encounter-1");
+    encounter.setSubject(new Reference("https://madie.cms.gov/Patient/Patient-1"));
+    Encounter otherEncounter = new Encounter();
+    otherEncounter.setId("Encounter-10");
+    otherEncounter.setSubject(new Reference("Patient/Patient-1"));
+    otherEncounter.addReasonReference(new Reference("Encounter/Encounter-1"));
+    Bundle testBundle = new Bundle();
+    testBundle
+        .addEntry()
+        .setFullUrl("https://madie.cms.gov/Patient/Patient-1")
+        .setResource(patient);
+    testBundle
+        .addEntry()
+        .setFullUrl("https://madie.cms.gov/Encounter/Encounter-1")
+        .setResource(encounter);
+    testBundle.addEntry().setResource(otherEncounter);
+
+    // when
+    Bundle updatedBundle =
+        testCaseBundleService.updateEntry(testBundle, BundleType.COLLECTION, "123");
+
+    // then
+    Bundle.BundleEntryComponent updatedPatientEntry = updatedBundle.getEntry().get(0);
+    Bundle.BundleEntryComponent updatedEncounterEntry = updatedBundle.getEntry().get(1);
+    Encounter updatedEncounter = (Encounter) updatedEncounterEntry.getResource();
+    Encounter updatedOtherEncounter = (Encounter) updatedBundle.getEntry().get(2).getResource();
+    String encounterId = updatedEncounter.getIdPart();
+    assertEquals("123", updatedPatientEntry.getResource().getIdPart());
+    assertEquals("https://madie.cms.gov/Patient/123", updatedPatientEntry.getFullUrl());
+    assertNotEquals("Encounter-1", encounterId);
+    assertEquals(
+        "https://madie.cms.gov/Encounter/" + encounterId, updatedEncounterEntry.getFullUrl());
+    assertEquals("https://madie.cms.gov/Patient/123", updatedEncounter.getSubject().getReference());
+    // Encounter-10 is not rewritten as if it started with Encounter-1
+    assertNotEquals("Encounter-10", updatedOtherEncounter.getIdPart());
+    assertNotEquals(encounterId, updatedOtherEncounter.getIdPart());
+    assertEquals("Patient/123", updatedOtherEncounter.getSubject().getReference());
+    assertEquals(
+        "Encounter/" + encounterId,
+        updatedOtherEncounter.getReasonReferenceFirstRep().getReference());
+    // the original bundle is left untouched
+    assertEquals("Patient/Patient-1", otherEncounter.getSubject().getReference());
+  }
 
-    factory.when(() -> PackagingUtilityFactory.getInstance("QI-Core v4.1.1")).thenReturn(utility);
-    doReturn("THis is a test".getBytes()).when(utility).getZipBundle(any(), isNull());
+  @Test
+  void zipTestCaseContentsTest() throws IOException {
     IParser parser =
         fhirContext
             .newJsonParser()
@@ -194,9 +228,77 @@ class TestCaseBundleServiceTest implements ResourceFileUtil {
             madieMeasure, exportableTestCaseBundle, testCaseList);
     assertNotNull(results);
     Map<String, String> zipContents = getZipContents(results);
-    assertEquals(2, zipContents.size());
+    assertEquals(3, zipContents.size());
     assertTrue(zipContents.containsKey("README.txt"));
     assertTrue(zipContents.containsKey(".madie"));
+    assertTrue(zipContents.containsKey("Test.json"));
+  }
+
+  @Test
+  void exportedBundleIsEncodedOnceForZip() throws IOException {
+    // given
+    exportDTO = ExportDTO.builder().bundleType(BundleType.COLLECTION).build();
+    Map<String, Bundle> exportMap =
+        testCaseBundleService.getTestCaseExportBundle(
+            madieMeasure, List.of(testCase), exportDTO, TestCaseExportOptions.defaults());
+
+    // when
+    byte[] results =
+        testCaseBundleService.zipTestCaseContents(madieMeasure, exportMap, List.of(testCase));
+
+    // then
+    Map.Entry<String, Bundle> export = exportMap.entrySet().iterator().next();
+    String zippedJson =
+        getZipContents(results).get(FilenameUtils.getName(export.getKey()) + ".json");
+    assertThat(
+        export.getValue().getUserData(TestCaseBundleService.EXPORT_JSON_USER_DATA),
+        is(equalTo(zippedJson.getBytes(StandardCharsets.UTF_8))));
+    // the test case JSON handed back is the updated bundle, without the measure report
+    Bundle handedBack = parser.parseResource(Bundle.class, testCase.getJson());
+    assertThat(
+        handedBack.getEntry().size(), is(equalTo(export.getValue().getEntry().size() - 1)));
+    assertFalse(testCase.getJson().contains("MeasureReport"));
+  }
+
+  @Test
+  void writeTestCaseZipStreamsEntriesIntoOneZip() throws IOException {
+    // given
+    Bundle bundle = parser.parseResource(Bundle.class, testCase.getJson());
+    Map<String, Bundle> exportableTestCaseBundle = new HashMap<>();
+    exportableTestCaseBundle.put(testCase.getPatientId() + "/Test", bundle);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    // when
+    testCaseBundleService.writeTestCaseZip(
+        madieMeasure, exportableTestCaseBundle, List.of(testCase), out);
+
+    // then
+    Map<String, String> zipContents = getZipContents(out.toByteArray());
+    assertEquals(3, zipContents.size());
+    assertTrue(zipContents.get("README.txt").contains(testCase.getPatientId().toString()));
+    assertTrue(zipContents.get(".madie").contains(testCase.getId()));
+    Bundle zippedBundle = parser.parseResource(Bundle.class, zipContents.get("Test.json"));
+    assertEquals(bundle.getEntry().size(), zippedBundle.getEntry().size());
+  }
+
+  @Test
+  void getTestCaseExportBundleEncodesCompactJson() {
+    // given
+    exportDTO = ExportDTO.builder().bundleType(BundleType.COLLECTION).build();
+
+    // when
+    Map<String, Bundle> exportMap =
+        testCaseBundleService.getTestCaseExportBundle(
+            madieMeasure,
+            List.of(testCase),
+            exportDTO,
+            TestCaseExportOptions.builder().format(EncodingFormat.COMPACT).build());
+
+    // then
+    Bundle bundle = exportMap.values().iterator().next();
+    assertFalse(testCase.getJson().contains("\n"));
+    byte[] encoded = (byte[]) bundle.getUserData(TestCaseBundleService.EXPORT_JSON_USER_DATA);
+    assertFalse(new String(encoded, StandardCharsets.UTF_8).contains("\n"));
   }
 
   @Test
@@ -204,7 +306,7 @@ class TestCaseBundleServiceTest implements ResourceFileUtil {
     exportDTO = ExportDTO.builder().bundleType(BundleType.COLLECTION).build();
     Map<String, Bundle> exportMap =
         testCaseBundleService.getTestCaseExportBundle(
-            madieMeasure, madieMeasure.getTestCases(), exportDTO);
+            madieMeasure, madieMeasure.getTestCases(), exportDTO, TestCaseExportOptions.defaults());
     assertEquals(2, exportMap.size());
 
     // first test case bundle(collection)
@@ -269,12 +371,44 @@ class TestCaseBundleServiceTest implements ResourceFileUtil {
     assertNull(bundleEntry.getRequest().getUrl());
   }
 
+  @Test
+  void getTestCaseExportBundleInParallelKeepsTestCaseOrder() {
+    // given
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    ReflectionTestUtils.setField(testCaseBundleService, "exportTaskExecutor", executor);
+    exportDTO = ExportDTO.builder().bundleType(BundleType.COLLECTION).build();
+    List<TestCase> testCases = new ArrayList<>(madieMeasure.getTestCases());
+    Collections.reverse(testCases);
+
+    try {
+      // when
+      Map<String, Bundle> exportMap =
+          testCaseBundleService.getTestCaseExportBundle(
+              madieMeasure,
+              testCases,
+              exportDTO,
+              TestCaseExportOptions.builder().parallel(true).build());
+
+      // then
+      assertThat(
+          new ArrayList<>(exportMap.keySet()),
+          is(
+              equalTo(
+                  List.of(
+                      "0ec1197a-4895-43ed-b2eb-27971f8fb95b/title-v0.0.000-testcaseseries-testcasetitle1",
+                      "285d114d-9c36-4d66-b0a0-06f395bbf23d/title-v0.0.000-testcaseseries-testcasetitle"))));
+      exportMap.values().forEach(bundle -> assertEquals(5, bundle.getEntry().size()));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
   @Test
   void getTestCaseExportBundleMultiReducedResult() {
     madieMeasure.getTestCases().get(1).setJson("malformed");
     Map<String, Bundle> exportMap =
         testCaseBundleService.getTestCaseExportBundle(
-            madieMeasure, madieMeasure.getTestCases(), exportDTO);
+            madieMeasure, madieMeasure.getTestCases(), exportDTO, TestCaseExportOptions.defaults());
     // The service should remove the malformed testCase and return only the valid one
     assertEquals(1, exportMap.size());
 
@@ -326,14 +460,18 @@ class TestCaseBundleServiceTest implements ResourceFileUtil {
   void getTestCaseExportAllThrowExceptionWhenTestCaseIsNotFound() {
     assertThrows(
         InternalServerException.class,
-        () -> testCaseBundleService.getTestCaseExportBundle(madieMeasure, null, exportDTO));
+        () ->
+            testCaseBundleService.getTestCaseExportBundle(
+                madieMeasure, null, exportDTO, TestCaseExportOptions.defaults()));
   }
 
   @Test
   void getTestCaseExportAllThrowExceptionWhenTestCaseListIsEmpty() {
     assertThrows(
         InternalServerException.class,
-        () -> testCaseBundleService.getTestCaseExportBundle(madieMeasure, emptyList(), exportDTO));
+        () ->
+            testCaseBundleService.getTestCaseExportBundle(
+                madieMeasure, emptyList(), exportDTO, TestCaseExportOptions.defaults()));
   }
 
   @Test
@@ -343,7 +481,10 @@ class TestCaseBundleServiceTest implements ResourceFileUtil {
         InternalServerException.class,
         () ->
             testCaseBundleService.getTestCaseExportBundle(
-                madieMeasure, singletonList(testCase), exportDTO));
+                madieMeasure,
+                singletonList(testCase),
+                exportDTO,
+                TestCaseExportOptions.defaults()));
   }
 
   @Test
@@ -353,7 +494,10 @@ class TestCaseBundleServiceTest implements ResourceFileUtil {
         ResourceNotFoundException.class,
         () ->
             testCaseBundleService.getTestCaseExportBundle(
-                madieMeasure, singletonList(testCase), exportDTO));
+                madieMeasure,
+                singletonList(testCase),
+                exportDTO,
+                TestCaseExportOptions.defaults()));
   }
 
   @Test
@@ -363,7 +507,10 @@ class TestCaseBundleServiceTest implements ResourceFileUtil {
         ResourceNotFoundException.class,
         () ->
             testCaseBundleService.getTestCaseExportBundle(
-                madieMeasure, singletonList(testCase), exportDTO));
+                madieMeasure,
+                singletonList(testCase),
+                exportDTO,
+                TestCaseExportOptions.defaults()));
   }
 
   @Test
@@ -373,7 +520,10 @@ class TestCaseBundleServiceTest implements ResourceFileUtil {
         ResourceNotFoundException.class,
         () ->
             testCaseBundleService.getTestCaseExportBundle(
-                madieMeasure, singletonList(testCase), exportDTO));
+                madieMeasure,
+                singletonList(testCase),
+                exportDTO,
+                TestCaseExportOptions.defaults()));
   }
 
   @Test
@@ -382,7 +532,7 @@ class TestCaseBundleServiceTest implements ResourceFileUtil {
     madieMeasure.getTestCases().get(0).setGroupPopulations(null);
     Map<String, Bundle> exportMap =
         testCaseBundleService.getTestCaseExportBundle(
-            madieMeasure, madieMeasure.getTestCases(), exportDTO);
+            madieMeasure, madieMeasure.getTestCases(), exportDTO, TestCaseExportOptions.defaults());
     assertEquals(2, exportMap.size());
 
     Bundle bundle =
@@ -394,13 +544,7 @@ class TestCaseBundleServiceTest implements ResourceFileUtil {
 
   //  @Disabled
   @Test
-  void zipTestCaseContents()
-      throws IOException,
-          ClassNotFoundException,
-          InvocationTargetException,
-          InstantiationException,
-          IllegalAccessException,
-          NoSuchMethodException {
+  void zipTestCaseContents() throws IOException {
 
     Map<String, Bundle> testCaseBundleMap = new HashMap<>();
     testCaseBundleMap.put(
@@ -414,9 +558,6 @@ class TestCaseBundleServiceTest implements ResourceFileUtil {
             .newJsonParser()
             .parseResource(Bundle.class, madieMeasure.getTestCases().get(1).getJson()));
 
-    factory
-        .when(() -> PackagingUtilityFactory.getInstance(anyString()))
-        .thenReturn(new PackagingUtilityImpl());
     byte[] result =
         testCaseBundleService.zipTestCaseContents(
             madieMeasure, testCaseBundleMap, madieMeasure.getTestCases());
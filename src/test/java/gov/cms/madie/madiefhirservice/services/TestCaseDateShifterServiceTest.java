@@ -3,6 +3,8 @@ package gov.cms.madie.madiefhirservice.services;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.parser.IParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import gov.cms.madie.madiefhirservice.dto.DateShiftOptions;
+import gov.cms.madie.madiefhirservice.dto.EncodingFormat;
 import gov.cms.madie.madiefhirservice.utils.MeasureTestHelper;
 import gov.cms.madie.madiefhirservice.utils.ResourceFileUtil;
 import gov.cms.madie.madiefhirservice.utils.ResourceUtils;
@@ -29,6 +31,9 @@ import static org.junit.jupiter.api.Assertions.*;
 @SpringBootTest
 public class TestCaseDateShifterServiceTest implements ResourceFileUtil {
 
+  private static final DateShiftOptions PRESERVE_FORMATTING =
+      DateShiftOptions.builder().preserveFormatting(true).build();
+
   @Autowired FhirContext qicoreFhirContext;
 
   @Autowired TestCaseDateShifterService testCaseDateShifterService;
@@ -181,6 +186,23 @@ public class TestCaseDateShifterServiceTest implements ResourceFileUtil {
         shiftedCondition.getOnsetDateTimeType().getValue());
   }
 
+  @Test
+  void testTestCaseDateShiftWithCompactFormat() {
+    Patient orgPatient = (Patient) ResourceUtils.getResource(testCaseBundle, "Patient").copy();
+    TestCase shiftedTestCase =
+        testCaseDateShifterService.shiftDates(
+            measure.getTestCases().get(0),
+            1,
+            DateShiftOptions.builder().format(EncodingFormat.COMPACT).build());
+
+    assertFalse(shiftedTestCase.getJson().contains("\n"));
+    Bundle bundle =
+        (Bundle) testCaseDateShifterService.getIParser().parseResource(shiftedTestCase.getJson());
+    assertEquals(
+        DateUtils.addYears(orgPatient.getBirthDate(), 1),
+        ((Patient) ResourceUtils.getResource(bundle, "Patient")).getBirthDate());
+  }
+
   @Test
   void testMultipleTestCaseDateShift() {
     Patient orgPatient = (Patient) ResourceUtils.getResource(testCaseBundle, "Patient").copy();
@@ -227,6 +249,104 @@ public class TestCaseDateShifterServiceTest implements ResourceFileUtil {
     assertFalse(shiftedTestCases.contains(badTestCase));
   }
 
+  @Test
+  void parallelShiftKeepsOrderAndSkipsUnparsableTestCase() {
+    Patient orgPatient = (Patient) ResourceUtils.getResource(testCaseBundle, "Patient").copy();
+    List<TestCase> testCases = new ArrayList<>(measure.getTestCases());
+    TestCase badTestCase = TestCase.builder().id("1234").json("").build();
+    testCases.add(1, badTestCase);
+
+    List<TestCase> shiftedTestCases =
+        testCaseDateShifterService.shiftDates(
+            testCases, 5, DateShiftOptions.builder().parallel(true).build());
+
+    assertEquals(List.of(testCases.get(0), testCases.get(2)), shiftedTestCases);
+    shiftedTestCases.forEach(
+        testCase -> {
+          Bundle bundle =
+              (Bundle) testCaseDateShifterService.getIParser().parseResource(testCase.getJson());
+          assertEquals(
+              DateUtils.addYears(orgPatient.getBirthDate(), 5),
+              ((Patient) ResourceUtils.getResource(bundle, "Patient")).getBirthDate());
+        });
+  }
+
+  @Test
+  void preserveFormattingShiftsLikeTheResourceModel() {
+    String json = measure.getTestCases().get(0).getJson();
+    TestCase modelShifted =
+        testCaseDateShifterService.shiftDates(
+            TestCase.builder().id("1").json(json).build(), 3, DateShiftOptions.defaults());
+    TestCase jsonShifted =
+        testCaseDateShifterService.shiftDates(
+            TestCase.builder().id("2").json(json).build(), 3, PRESERVE_FORMATTING);
+
+    Bundle modelBundle = (Bundle) fhirParser.parseResource(modelShifted.getJson());
+    Bundle jsonBundle = (Bundle) fhirParser.parseResource(jsonShifted.getJson());
+    assertTrue(modelBundle.equalsDeep(jsonBundle));
+  }
+
+  @Test
+  void preserveFormattingOnlyRewritesEntryResourceDates() {
+    String json =
+        "{\"resourceType\":\"Bundle\", \"type\":\"collection\","
+            + " \"timestamp\":\"2020-05-01T10:00:00Z\",\n"
+            + "  \"entry\":[{\"resource\":{\"resourceType\":\"Patient\","
+            + " \"birthDate\":\"2000-02-29\", \"_birthDate\":{\"extension\":[]}}}]}";
+    TestCase testCase = TestCase.builder().id("1").json(json).build();
+
+    TestCase shifted =
+        testCaseDateShifterService.shiftDates(testCase, 1, PRESERVE_FORMATTING);
+
+    assertEquals(json.replace("2000-02-29", "2001-02-28"), shifted.getJson());
+  }
+
+  @Test
+  void preserveFormattingKeepsPrimitiveExtensionDatesLikeTheResourceModel() {
+    String json =
+        "{\"resourceType\":\"Bundle\",\"type\":\"collection\",\"entry\":[{\"resource\":"
+            + "{\"resourceType\":\"Patient\",\"birthDate\":\"2000-01-01\",\"_birthDate\":"
+            + "{\"extension\":[{\"url\":"
+            + "\"http://hl7.org/fhir/StructureDefinition/patient-birthTime\","
+            + "\"valueDateTime\":\"2000-01-01T10:00:00Z\"}]}}}]}";
+    TestCase modelShifted =
+        testCaseDateShifterService.shiftDates(
+            TestCase.builder().id("1").json(json).build(), 1, DateShiftOptions.defaults());
+    TestCase jsonShifted =
+        testCaseDateShifterService.shiftDates(
+            TestCase.builder().id("2").json(json).build(), 1, PRESERVE_FORMATTING);
+
+    Bundle modelBundle = (Bundle) fhirParser.parseResource(modelShifted.getJson());
+    Bundle jsonBundle = (Bundle) fhirParser.parseResource(jsonShifted.getJson());
+    assertTrue(modelBundle.equalsDeep(jsonBundle));
+    assertEquals(json.replace("\"2000-01-01\"", "\"2001-01-01\""), jsonShifted.getJson());
+  }
+
+  @Test
+  void preserveFormattingFallsBackToTheResourceModel() {
+    // resourceType is not the first property, so the JSON is shifted through the resource model
+    String json =
+        "{\"type\":\"collection\",\"resourceType\":\"Bundle\",\"entry\":[{\"resource\":"
+            + "{\"resourceType\":\"Patient\",\"birthDate\":\"2000-01-01\"}}]}";
+    TestCase testCase = TestCase.builder().id("1").json(json).build();
+    TestCase notABundle =
+        TestCase.builder().id("2").json("{\"resourceType\":\"Patient\"}").build();
+
+    List<TestCase> shiftedTestCases =
+        testCaseDateShifterService.shiftDates(
+            List.of(testCase, notABundle),
+            1,
+            DateShiftOptions.builder()
+                .format(EncodingFormat.COMPACT)
+                .preserveFormatting(true)
+                .build());
+
+    assertEquals(List.of(testCase), shiftedTestCases);
+    Bundle bundle = (Bundle) fhirParser.parseResource(testCase.getJson());
+    Patient patient = (Patient) ResourceUtils.getResource(bundle, "Patient");
+    assertEquals("2001-01-01", patient.getBirthDateElement().asStringValue());
+  }
+
   @Test
   void verifiesPartialDateTypeHasDateValue() {
     // Parse a Procedure with partial Performed element that only contains an extension and no date
@@ -263,6 +383,27 @@ public class TestCaseDateShifterServiceTest implements ResourceFileUtil {
     assertTrue(copy.getPerformed().equalsDeep(procedure.getPerformed()));
   }
 
+  @Test
+  void testDateShiftExtensionsAndContainedResources() {
+    Patient patient = (Patient) ResourceUtils.getResource(testCaseBundle, "Patient");
+    Date recorded = new Date(1600000000000L);
+    patient.addExtension("http://example.com/recorded", new DateTimeType(recorded));
+    Encounter contained =
+        (Encounter) ResourceUtils.getResource(testCaseBundle, "Encounter").copy();
+    Date orgPeriodStart = (Date) contained.getPeriod().getStart().clone();
+    patient.addContained(contained);
+
+    testCaseDateShifterService.shiftDates(patient, 3);
+
+    assertEquals(
+        DateUtils.addYears(recorded, 3),
+        ((DateTimeType) patient.getExtensionByUrl("http://example.com/recorded").getValue())
+            .getValue());
+    assertEquals(
+        DateUtils.addYears(orgPeriodStart, 3),
+        ((Encounter) patient.getContained().get(0)).getPeriod().getStart());
+  }
+
   @Test
   void limitsUpperYearRangeTo9999() {
     Patient patient = (Patient) ResourceUtils.getResource(testCaseBundle, "Patient");
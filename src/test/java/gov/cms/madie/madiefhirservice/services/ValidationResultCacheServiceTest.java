@@ -0,0 +1,100 @@
+package gov.cms.madie.madiefhirservice.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import gov.cms.madie.madiefhirservice.dto.ValidationOptions;
+import gov.cms.madie.models.common.ModelType;
+import gov.cms.madie.models.measure.HapiOperationOutcome;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.Optional;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class ValidationResultCacheServiceTest {
+
+  private static final String BUNDLE =
+      "{\"resourceType\": \"Bundle\", \"type\": \"collection\", \"entry\": []}";
+  private static final String REORDERED_BUNDLE =
+      "{ \"entry\": [], \"type\": \"collection\",\n  \"resourceType\": \"Bundle\" }";
+
+  private SimpleMeterRegistry meterRegistry;
+  private ValidationResultCacheService validationResultCache;
+
+  @BeforeEach
+  void setUp() {
+    meterRegistry = new SimpleMeterRegistry();
+    validationResultCache =
+        new ValidationResultCacheService(new ObjectMapper(), meterRegistry, 10, 60000);
+  }
+
+  @Test
+  void testCacheKeyIgnoresKeyOrderAndWhitespace() {
+    String key = validationResultCache.cacheKey(ModelType.QI_CORE, BUNDLE, new ValidationOptions());
+    String reorderedKey =
+        validationResultCache.cacheKey(
+            ModelType.QI_CORE, REORDERED_BUNDLE, new ValidationOptions());
+
+    assertThat(key, is(notNullValue()));
+    assertThat(reorderedKey, is(equalTo(key)));
+  }
+
+  @Test
+  void testCacheKeyDiffersByModelAndOptions() {
+    String key = validationResultCache.cacheKey(ModelType.QI_CORE, BUNDLE, new ValidationOptions());
+    String qiCore6Key =
+        validationResultCache.cacheKey(ModelType.QI_CORE_6_0_0, BUNDLE, new ValidationOptions());
+    String parallelKey =
+        validationResultCache.cacheKey(
+            ModelType.QI_CORE, BUNDLE, ValidationOptions.builder().parallel(true).build());
+
+    assertThat(qiCore6Key, is(not(equalTo(key))));
+    assertThat(parallelKey, is(not(equalTo(key))));
+  }
+
+  @Test
+  void testCacheKeyNamesModelPackageVersions() {
+    String key = validationResultCache.cacheKey(ModelType.QI_CORE, BUNDLE, new ValidationOptions());
+
+    assertThat(key.contains("hl7.fhir.us.qicore-4.1.1,hl7.fhir.us.core-3.1.0"), is(true));
+  }
+
+  @Test
+  void testCacheKeyIsNullForInvalidJson() {
+    assertThat(
+        validationResultCache.cacheKey(ModelType.QI_CORE, "{ not json", new ValidationOptions()),
+        is(nullValue()));
+  }
+
+  @Test
+  void testGetReturnsCachedOutcomeAndRecordsMetrics() {
+    String key = validationResultCache.cacheKey(ModelType.QI_CORE, BUNDLE, new ValidationOptions());
+    assertThat(validationResultCache.get(key).isPresent(), is(false));
+
+    validationResultCache.put(
+        key,
+        HapiOperationOutcome.builder()
+            .code(200)
+            .successful(true)
+            .outcomeResponse(Map.of("resourceType", "OperationOutcome"))
+            .build());
+    Optional<HapiOperationOutcome> cached = validationResultCache.get(key);
+
+    assertThat(cached.isPresent(), is(true));
+    assertThat(cached.get().getCode(), is(equalTo(200)));
+    assertThat(cached.get().isSuccessful(), is(true));
+    assertThat(
+        meterRegistry.get("cache.gets").tag("result", "hit").functionCounter().count(),
+        is(equalTo(1.0)));
+    assertThat(
+        meterRegistry.get("cache.gets").tag("result", "miss").functionCounter().count(),
+        is(equalTo(1.0)));
+  }
+}
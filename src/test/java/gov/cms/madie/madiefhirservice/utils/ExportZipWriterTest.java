@@ -0,0 +1,134 @@
+package gov.cms.madie.madiefhirservice.utils;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class ExportZipWriterTest {
+
+  private Map<String, byte[]> contents;
+  private List<ExportZipWriter.Entry> entries;
+
+  @BeforeEach
+  void setUp() {
+    contents = new LinkedHashMap<>();
+    contents.put("README.txt", "read me".getBytes(StandardCharsets.UTF_8));
+    contents.put(".madie", "[]".getBytes(StandardCharsets.UTF_8));
+    contents.put(
+        "patient-1/title-v0.0.000-series-title.json",
+        "{\"resourceType\":\"Bundle\"}\n".repeat(500).getBytes(StandardCharsets.UTF_8));
+    entries =
+        contents.entrySet().stream()
+            .map(content -> new ExportZipWriter.Entry(content.getKey(), content::getValue))
+            .toList();
+  }
+
+  @Test
+  void writeDeflatesEntriesInOrder() throws IOException {
+    // given
+    ExportZipWriter writer = new ExportZipWriter(-1, 0);
+
+    // when
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writer.write(entries, out);
+
+    // then
+    List<ZipEntry> zipEntries = readZip(out.toByteArray());
+    assertThat(
+        zipEntries.stream().map(ZipEntry::getName).toList(),
+        is(equalTo(List.copyOf(contents.keySet()))));
+    assertThat(zipEntries.get(2).getMethod(), is(equalTo(ZipEntry.DEFLATED)));
+  }
+
+  @Test
+  void writeStoresEverythingAtLevelZero() throws IOException {
+    // given
+    ExportZipWriter writer = new ExportZipWriter(0, 0);
+
+    // when
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writer.write(entries, out);
+
+    // then
+    assertThat(
+        readZip(out.toByteArray()).stream().allMatch(e -> e.getMethod() == ZipEntry.STORED),
+        is(true));
+  }
+
+  @Test
+  void writeStoresEntriesBelowThreshold() throws IOException {
+    // given
+    ExportZipWriter writer = new ExportZipWriter(9, 100);
+
+    // when
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writer.write(entries, out);
+
+    // then
+    List<ZipEntry> zipEntries = readZip(out.toByteArray());
+    assertThat(zipEntries.get(0).getMethod(), is(equalTo(ZipEntry.STORED)));
+    assertThat(zipEntries.get(1).getMethod(), is(equalTo(ZipEntry.STORED)));
+    assertThat(zipEntries.get(2).getMethod(), is(equalTo(ZipEntry.DEFLATED)));
+  }
+
+  @Test
+  void writeProducesEachEntryWhenItIsWritten() throws IOException {
+    // given
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    List<Integer> bytesWrittenWhenProduced = new ArrayList<>();
+    List<ExportZipWriter.Entry> trackedEntries =
+        entries.stream()
+            .map(
+                entry ->
+                    new ExportZipWriter.Entry(
+                        entry.name(),
+                        () -> {
+                          bytesWrittenWhenProduced.add(out.size());
+                          return entry.content().get();
+                        }))
+            .toList();
+    ExportZipWriter writer = new ExportZipWriter(-1, 0);
+
+    // when
+    writer.write(trackedEntries, out);
+
+    // then only the first entry is produced before anything is written
+    assertThat(bytesWrittenWhenProduced.size(), is(equalTo(3)));
+    assertThat(bytesWrittenWhenProduced.get(0), is(equalTo(0)));
+    assertThat(bytesWrittenWhenProduced.get(1) > 0, is(true));
+    readZip(out.toByteArray());
+  }
+
+  @Test
+  void rejectsUnknownCompressionLevel() {
+    assertThrows(IllegalArgumentException.class, () -> new ExportZipWriter(10, 0));
+  }
+
+  /** Reads the zip back, checking every entry's content against what was written. */
+  private List<ZipEntry> readZip(byte[] zip) throws IOException {
+    List<ZipEntry> zipEntries = new ArrayList<>();
+    try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(zip))) {
+      ZipEntry entry;
+      while ((entry = zis.getNextEntry()) != null) {
+        assertThat(zis.readAllBytes(), is(equalTo(contents.get(entry.getName()))));
+        zipEntries.add(entry);
+      }
+    }
+    return zipEntries;
+  }
+}